@@ -50,21 +50,22 @@ class ItemStoreTest {
                 random.nextInt(1000)
         );
 
+        final Dictionary dictionary = new Dictionary();
         final ByteBufferChannel byteBufferChannel = new ByteBufferChannel();
         try (DataOutputChannel channel = new DataOutputChannel(byteBufferChannel)) {
-            Assertions.assertTrue(SoulDatabase.serializeSoul(soul, channel));
+            Assertions.assertTrue(SoulDatabase.serializeSoul(soul, channel, dictionary));
         }
         byteBufferChannel.position(0L);
-        final SoulDatabase.Soul soulFromHell = SoulDatabase.deserializeSoul(new DataInputChannel(byteBufferChannel), SoulDatabase.CURRENT_DB_VERSION);
+        final SoulDatabase.Soul soulFromHell = SoulDatabase.deserializeSoul(new DataInputChannel(byteBufferChannel), SoulDatabase.CURRENT_DB_VERSION, dictionary);
 
         Assertions.assertEquals(soul.locationWorld, soulFromHell.locationWorld);
         Assertions.assertEquals(soul.locationX, soulFromHell.locationX);
         Assertions.assertEquals(soul.locationY, soulFromHell.locationY);
         Assertions.assertEquals(soul.locationZ, soulFromHell.locationZ);
         Assertions.assertEquals(soul.timestamp, soulFromHell.timestamp);
-        Assertions.assertEquals(soul.xp, soulFromHell.xp);
-        Assertions.assertEquals(soul.owner, soulFromHell.owner);
-        Assertions.assertArrayEquals(soul.items, soulFromHell.items);
+        Assertions.assertEquals(soul.getExperiencePoints(), soulFromHell.getExperiencePoints());
+        Assertions.assertEquals(soul.getOwner(), soulFromHell.getOwner());
+        Assertions.assertArrayEquals(soul.getItems(), soulFromHell.getItems());
     }
 
     private static void savingTest() throws IOException, Serialization.Exception {
@@ -11,7 +11,7 @@ import java.nio.channels.SeekableByteChannel;
 final class ByteBufferChannel implements SeekableByteChannel {
 
     @NotNull
-    private final ByteBuffer buffer;
+    private ByteBuffer buffer;
 
 
     public ByteBufferChannel(int size) {
@@ -23,6 +23,11 @@ final class ByteBufferChannel implements SeekableByteChannel {
         this(8096);
     }
 
+    /** Channel which contains the bytes, positioned at the start. */
+    public ByteBufferChannel(byte @NotNull [] bytes) {
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
     @Override
     public int read(@NotNull ByteBuffer dst) {
         final int available = buffer.remaining();
@@ -46,9 +51,22 @@ final class ByteBufferChannel implements SeekableByteChannel {
     @Override
     public int write(@NotNull ByteBuffer src) {
         final int toWrite = src.remaining();
-        if (buffer.remaining() < toWrite) {
+        ByteBuffer buffer = this.buffer;
+        final int required = buffer.position() + toWrite;
+        if (required > buffer.capacity()) {
+            // Grow
+            final int position = buffer.position();
+            final int limit = buffer.limit();
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+            buffer.position(0);
+            grown.put(buffer);
+            grown.limit(limit);
+            grown.position(position);
+            buffer = this.buffer = grown;
+        }
+        if (buffer.limit() < required) {
             // Expand
-            buffer.limit(buffer.position() + toWrite);
+            buffer.limit(required);
         }
         buffer.put(src);
         return toWrite;
@@ -71,6 +89,11 @@ final class ByteBufferChannel implements SeekableByteChannel {
         return buffer.limit();
     }
 
+    /** @return the backing array, valid up to {@link #size()}. Changes when the channel grows. */
+    public byte @NotNull [] array() {
+        return buffer.array();
+    }
+
     @NotNull
     @Override
     public ByteBufferChannel truncate(long size) {
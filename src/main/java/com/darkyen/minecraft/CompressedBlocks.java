@@ -0,0 +1,152 @@
+package com.darkyen.minecraft;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Blocks of data compressed by {@link Deflater}, which are written and read one at a time,
+ * so the whole file is never held in memory.
+ *
+ * Block format: {@link #BLOCK_MAGIC}, compressed length, uncompressed length, CRC32 of the compressed bytes, compressed bytes.
+ */
+final class CompressedBlocks {
+
+    /** Starts each block, so that reading can find the next block after damaged bytes */
+    static final int BLOCK_MAGIC = 0x536F757A;
+    /** Magic, compressed length, uncompressed length and CRC */
+    static final int BLOCK_HEADER_SIZE = 16;
+
+    private CompressedBlocks() {}
+
+    /** Compresses blocks, which are then written by {@link #write(DataOutput)}.
+     * Can be reused, but not by multiple threads at once. */
+    static final class Compressor {
+
+        @NotNull
+        private final Deflater deflater = new Deflater();
+        @NotNull
+        private final CRC32 crc = new CRC32();
+        private byte @NotNull [] compressed = new byte[1 << 16];
+        /** Of the block which was compressed last */
+        private int compressedLength, uncompressedLength, compressedCrc;
+
+        /** Compress length bytes into a new block, which replaces the previous one.
+         * @param level of the {@link Deflater}, 1 (fastest) to 9 (smallest) */
+        void compress(byte @NotNull [] bytes, int length, int level) {
+            final Deflater deflater = this.deflater;
+            deflater.reset();
+            deflater.setLevel(level);
+            deflater.setInput(bytes, 0, length);
+            deflater.finish();
+            byte[] compressed = this.compressed;
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = this.compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+
+            final CRC32 crc = this.crc;
+            crc.reset();
+            crc.update(compressed, 0, compressedLength);
+            this.compressedLength = compressedLength;
+            this.uncompressedLength = length;
+            this.compressedCrc = (int) crc.getValue();
+        }
+
+        /** Write the block which was compressed last. */
+        void write(@NotNull DataOutput out) throws IOException {
+            out.writeInt(BLOCK_MAGIC);
+            out.writeInt(compressedLength);
+            out.writeInt(uncompressedLength);
+            out.writeInt(compressedCrc);
+            out.write(compressed, 0, compressedLength);
+        }
+    }
+
+    /** Reads blocks written by {@link Compressor}. */
+    static final class Reader implements Closeable {
+
+        @NotNull
+        private final Inflater inflater = new Inflater();
+        @NotNull
+        private final CRC32 crc = new CRC32();
+        private byte @NotNull [] compressed = new byte[1 << 16];
+        /** Of the block which was checked last */
+        private int compressedRead, uncompressedLength;
+
+        /** Check whether there is an intact block at the current position, which ends before end.
+         * @return length of the compressed bytes, which are now read, or -1 if there is no intact block */
+        int check(@NotNull SeekableDataInput in, long end) {
+            try {
+                final long position = in.position();
+                if (end - position < BLOCK_HEADER_SIZE || in.readInt() != BLOCK_MAGIC) {
+                    return -1;
+                }
+                final int compressedLength = in.readInt();
+                final int length = in.readInt();
+                final int expectedCrc = in.readInt();
+                if (compressedLength < 0 || length < 0 || compressedLength > end - position - BLOCK_HEADER_SIZE) {
+                    return -1;
+                }
+
+                byte[] compressed = this.compressed;
+                if (compressed.length < compressedLength) {
+                    compressed = this.compressed = new byte[Math.max(compressedLength, compressed.length * 2)];
+                }
+                in.readFully(compressed, 0, compressedLength);
+                final CRC32 crc = this.crc;
+                crc.reset();
+                crc.update(compressed, 0, compressedLength);
+                if ((int) crc.getValue() != expectedCrc) {
+                    return -1;
+                }
+                uncompressedLength = length;
+                compressedRead = compressedLength;
+                return compressedLength;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        /** Decompress the block which was just checked by {@link #check(SeekableDataInput, long)}.
+         * @return channel with the uncompressed bytes */
+        @NotNull
+        ByteBufferChannel inflate() throws IOException {
+            final byte[] uncompressed = new byte[uncompressedLength];
+            final Inflater inflater = this.inflater;
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedRead);
+            try {
+                int length = 0;
+                while (length < uncompressed.length && !inflater.finished()) {
+                    final int inflated = inflater.inflate(uncompressed, length, uncompressed.length - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (length != uncompressed.length || !inflater.finished()) {
+                    throw new IOException("Compressed block should have "+uncompressed.length+" bytes, but has "+length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Compressed block is damaged", e);
+            }
+            return new ByteBufferChannel(uncompressed);
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+}
@@ -4,7 +4,6 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.DataInput;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.UTFDataFormatException;
@@ -17,7 +16,7 @@ import java.nio.channels.SeekableByteChannel;
 /**
  *
  */
-final class DataInputChannel implements DataInput, Channel {
+final class DataInputChannel implements SeekableDataInput, Channel {
 
     @NotNull
     private final SeekableByteChannel chn;
@@ -34,10 +33,12 @@ final class DataInputChannel implements DataInput, Channel {
         this(chn, 4096);
     }
 
+    @Override
     public long position() throws IOException {
         return chn.position() - buffer.limit() + buffer.position();
     }
 
+    @Override
     public void position(long newPosition) throws IOException {
         final long currentBasePosition = chn.position();
         final long positionRelativeToBuffer = newPosition - (currentBasePosition - buffer.limit());
@@ -49,6 +50,12 @@ final class DataInputChannel implements DataInput, Channel {
         }
     }
 
+    /** Drop the buffered bytes and continue at the given position, because the bytes of the channel have been replaced. */
+    void reset(long newPosition) throws IOException {
+        buffer.limit(0);
+        chn.position(newPosition);
+    }
+
     private void require(int bytes) throws IOException {
         final ByteBuffer buffer = this.buffer;
         if (buffer.remaining() < bytes) {
@@ -62,10 +69,12 @@ final class DataInputChannel implements DataInput, Channel {
         }
     }
 
+    @Override
     public long remaining() throws IOException {
         return buffer.remaining() + chn.size() - chn.position();
     }
 
+    @Override
     public boolean hasRemaining() throws IOException {
         return buffer.hasRemaining() || remaining() > 0;
     }
@@ -207,12 +216,18 @@ final class DataInputChannel implements DataInput, Channel {
             assert charArr != null;
         }
 
+        readFully(byteArr, 0, utfLen);
+        return decodeUTF(byteArr, utfLen, charArr);
+    }
+
+    /** Decode modified UTF-8 as written by {@link java.io.DataOutput#writeUTF(String)}, without the length.
+     * @param charArr at least utfLen long */
+    @NotNull
+    static String decodeUTF(byte @NotNull [] byteArr, int utfLen, char @NotNull [] charArr) throws UTFDataFormatException {
         int c, char2, char3;
         int count = 0;
         int chararr_count = 0;
 
-        readFully(byteArr, 0, utfLen);
-
         while (count < utfLen) {
             c = (int) byteArr[count] & 0xff;
             if (c > 127) break;
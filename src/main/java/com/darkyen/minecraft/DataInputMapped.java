@@ -0,0 +1,242 @@
+package com.darkyen.minecraft;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link SeekableDataInput} over a memory mapped file, which reads straight from the page cache,
+ * without copying the file into a buffer first.
+ *
+ * A single mapping can't be larger than 2 GB, so the file is mapped in segments.
+ * Values which cross a segment boundary are read byte by byte.
+ *
+ * NOTE: The mapping stays alive until the buffers are garbage collected, even after {@link #close()}.
+ */
+final class DataInputMapped implements SeekableDataInput {
+
+    private static final int DEFAULT_SEGMENT_SHIFT = 30;
+
+    @Nullable
+    private final FileChannel chn;
+    private final long size;
+    private final int segmentShift;
+    @NotNull
+    private final ByteBuffer @NotNull [] segments;
+    private int segmentIndex;
+    @NotNull
+    private ByteBuffer segment;
+
+    public DataInputMapped(@NotNull FileChannel chn) throws IOException {
+        this(chn, DEFAULT_SEGMENT_SHIFT);
+    }
+
+    /** @param segmentShift log2 of the segment size, for testing */
+    DataInputMapped(@NotNull FileChannel chn, int segmentShift) throws IOException {
+        this.chn = chn;
+        this.size = chn.size();
+        this.segmentShift = segmentShift;
+        final long segmentSize = 1L << segmentShift;
+        final int segmentCount = (int) Math.max((size + segmentSize - 1) >>> segmentShift, 1);
+        segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            final long segmentStart = (long) i << segmentShift;
+            segments[i] = chn.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(segmentSize, size - segmentStart))
+                    .order(ByteOrder.BIG_ENDIAN);
+        }
+        segmentIndex = 0;
+        segment = segments[0];
+    }
+
+    private DataInputMapped(@NotNull DataInputMapped original) {
+        this.chn = null;
+        this.size = original.size;
+        this.segmentShift = original.segmentShift;
+        final ByteBuffer[] segments = this.segments = new ByteBuffer[original.segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = original.segments[i].duplicate().order(ByteOrder.BIG_ENDIAN);
+        }
+        segmentIndex = original.segmentIndex;
+        segment = segments[segmentIndex];
+        segment.position(original.segment.position());
+    }
+
+    /** @return input which shares the mapping, but has its own position. Can be used from a different thread.
+     * Closing it does nothing, close the original instead. */
+    @NotNull
+    public DataInputMapped duplicate() {
+        return new DataInputMapped(this);
+    }
+
+    @Override
+    public long position() {
+        return ((long) segmentIndex << segmentShift) + segment.position();
+    }
+
+    @Override
+    public void position(long newPosition) throws IOException {
+        if (newPosition < 0 || newPosition > size) {
+            throw new EOFException("Position "+newPosition+" is outside of the file ("+size+" bytes)");
+        }
+        final int segmentIndex = Math.min((int) (newPosition >>> segmentShift), segments.length - 1);
+        this.segmentIndex = segmentIndex;
+        final ByteBuffer segment = this.segment = segments[segmentIndex];
+        segment.position((int) (newPosition - ((long) segmentIndex << segmentShift)));
+    }
+
+    @Override
+    public long remaining() {
+        return size - position();
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return segment.hasRemaining() || remaining() > 0;
+    }
+
+    /** Move to the start of the next segment, because the current one has ended. */
+    @NotNull
+    private ByteBuffer nextSegment() throws EOFException {
+        if (segmentIndex + 1 >= segments.length) {
+            throw new EOFException("End of file");
+        }
+        final ByteBuffer segment = this.segment = segments[++segmentIndex];
+        segment.position(0);
+        return segment;
+    }
+
+    @Override
+    public void readFully(byte @NotNull [] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte @NotNull [] b, int off, int len) throws IOException {
+        ByteBuffer segment = this.segment;
+        while (len > 0) {
+            if (!segment.hasRemaining()) {
+                segment = nextSegment();
+            }
+            final int part = Math.min(segment.remaining(), len);
+            segment.get(b, off, part);
+            off += part;
+            len -= part;
+        }
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        final int skipped = (int) Math.min(n, remaining());
+        position(position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        ByteBuffer segment = this.segment;
+        if (!segment.hasRemaining()) {
+            segment = nextSegment();
+        }
+        return segment.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        final ByteBuffer segment = this.segment;
+        if (segment.remaining() >= 2) {
+            return segment.getShort();
+        }
+        return (short) ((readUnsignedByte() << 8) | readUnsignedByte());
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        final ByteBuffer segment = this.segment;
+        if (segment.remaining() >= 4) {
+            return segment.getInt();
+        }
+        return (readUnsignedShort() << 16) | readUnsignedShort();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        final ByteBuffer segment = this.segment;
+        if (segment.remaining() >= 8) {
+            return segment.getLong();
+        }
+        return ((long) readInt() << 32) | (readInt() & 0xFFFF_FFFFL);
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Contract("-> fail")
+    @Override
+    public String readLine() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("readLine is deprecated and not supported");
+    }
+
+    private byte @Nullable [] byteArr;
+    private char @Nullable [] charArr;
+
+    @NotNull
+    @Override
+    public String readUTF() throws IOException {
+        final int utfLen = readUnsignedShort();
+
+        byte[] byteArr = this.byteArr;
+        char[] charArr = this.charArr;
+        if (byteArr == null || byteArr.length < utfLen) {
+            byteArr = this.byteArr = new byte[utfLen * 2];
+            charArr = this.charArr = new char[utfLen * 2];
+        } else {
+            assert charArr != null;
+        }
+
+        readFully(byteArr, 0, utfLen);
+        return DataInputChannel.decodeUTF(byteArr, utfLen, charArr);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (chn != null) {
+            chn.close();
+        }
+    }
+}
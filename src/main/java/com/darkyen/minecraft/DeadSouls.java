@@ -48,11 +48,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -142,14 +142,21 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
 
     @NotNull
     private final HashMap<Player, PlayerSoulInfo> watchedPlayers = new HashMap<>();
-    private boolean refreshNearbySoulCache = false;
 
     private static final double COLLECTION_DISTANCE2 = NumberConversions.square(1);
+    /** How many nearest souls are shown to each player */
+    private static final int MAX_VISIBLE_SOULS = 16;
+    /** How far (in blocks, horizontally) can a soul be to be shown */
+    private static final double SOUL_VISIBILITY_RADIUS = 100;
 
     @NotNull
     private static final ItemStack[] NO_ITEM_STACKS = new ItemStack[0];
     @NotNull
-    private final ComparatorSoulDistanceTo processPlayers_comparatorDistanceTo = new ComparatorSoulDistanceTo();
+    private final SoulAccessibleFilter processPlayers_accessibleFilter = new SoulAccessibleFilter();
+    @NotNull
+    private final ArrayList<SoulDatabase.Soul> processPlayers_visibleSouls = new ArrayList<>();
+    @NotNull
+    private final ArrayList<SoulDatabase.Soul> processPlayers_collectableSouls = new ArrayList<>();
     @NotNull
     private final Location processPlayers_playerLocation = new Location(null, 0, 0, 0);
     @NotNull
@@ -157,7 +164,6 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
     @NotNull
     private final DeadSoulsAPI.SoulPickupEvent soulPickupEvent = new SoulPickupEvent();
 
-    private long processPlayers_nextFadeCheck = 0;
     private long processPlayers_nextAutoSave = 0;
 
     private void processPlayers() {
@@ -166,25 +172,30 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
             getLogger().log(Level.WARNING, "processPlayers: soulDatabase not loaded yet");
             return;
         }
+        if (!soulDatabase.isReady()) {
+            // Still loading in the background, there are no souls to process
+            return;
+        }
 
         final PluginManager pluginManager = getServer().getPluginManager();
         final long now = System.currentTimeMillis();
 
-        if (now > processPlayers_nextFadeCheck && soulFadesAfterMs < Long.MAX_VALUE) {
+        // Cheap, only touches souls which are due
+        if (soulFadesAfterMs < Long.MAX_VALUE) {
             final int faded = soulDatabase.removeFadedSouls(soulFadesAfterMs);
             if (faded > 0) {
-                this.refreshNearbySoulCache = true;
                 getLogger().log(Level.FINE, "Removed "+faded+" faded soul(s)");
             }
-            processPlayers_nextFadeCheck = now + 1000 * 60 * 5;// Check every 5 minutes
         }
-
-        final boolean refreshNearbySoulCache = this.refreshNearbySoulCache;
-        this.refreshNearbySoulCache = false;
+        if (soulFreeAfterMs < Long.MAX_VALUE) {
+            final int freed = soulDatabase.freeExpiredSouls(soulFreeAfterMs);
+            if (freed > 0) {
+                getLogger().log(Level.FINE, "Freed "+freed+" soul(s)");
+            }
+        }
 
         final boolean playCallingSounds = !soundSoulCalling.isEmpty() && volumeSoulCalling > 0f && this.processPlayers_random.nextInt(12) == 0;
 
-        boolean databaseChanged = false;
 
         for (Map.Entry<Player, PlayerSoulInfo> entry : watchedPlayers.entrySet()) {
             final Player player = entry.getKey();
@@ -192,14 +203,7 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
             final World world = player.getWorld();
             final PlayerSoulInfo info = entry.getValue();
 
-            boolean searchNewSouls = refreshNearbySoulCache;
-
-            // Update location
             final Location playerLocation = player.getLocation(processPlayers_playerLocation);
-            if (!isNear(playerLocation, info.lastKnownLocation, 16)) {
-                set(info.lastKnownLocation, playerLocation);
-                searchNewSouls = true;
-            }
 
             if (playerGameMode != GameMode.SPECTATOR) {
                 final Block underPlayer =
@@ -214,67 +218,73 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
                 }
             }
 
-            // Update visible souls
-            final ArrayList<SoulDatabase.Soul> visibleSouls = info.visibleSouls;
-            if (searchNewSouls) {
-                visibleSouls.clear();
-                soulDatabase.findSouls(world.getUID(), playerLocation.getBlockX(), playerLocation.getBlockZ(), 100, visibleSouls);
-            }
+            // Find nearest visible souls
+            final boolean canSeeAllSouls = playerGameMode == GameMode.SPECTATOR && player.hasPermission("com.darkyen.minecraft.deadsouls.spectatesouls");
+            final SoulAccessibleFilter accessibleFilter = this.processPlayers_accessibleFilter;
+            accessibleFilter.soulDatabase = soulDatabase;
+            accessibleFilter.player = player;
+            accessibleFilter.now = now;
+            final ArrayList<SoulDatabase.Soul> visibleSouls = this.processPlayers_visibleSouls;
+            visibleSouls.clear();
+            soulDatabase.findNearestSouls(world.getUID(), playerLocation.getX(), playerLocation.getY(), playerLocation.getZ(),
+                    MAX_VISIBLE_SOULS, SOUL_VISIBILITY_RADIUS, canSeeAllSouls ? null : accessibleFilter, visibleSouls);
 
             if (visibleSouls.isEmpty()) {
                 continue;
             }
 
-            { // Sort souls
-                final ComparatorSoulDistanceTo comparator = this.processPlayers_comparatorDistanceTo;
-                comparator.toX = playerLocation.getX();
-                comparator.toY = playerLocation.getY();
-                comparator.toZ = playerLocation.getZ();
-                visibleSouls.sort(comparator);
-            }
-
             // Send particles
-            final int soulCount = visibleSouls.size();
-            int remainingSoulsToShow = 16;
-            final boolean canSeeAllSouls = playerGameMode == GameMode.SPECTATOR && player.hasPermission("com.darkyen.minecraft.deadsouls.spectatesouls");
-            for (int i = 0; i < soulCount && remainingSoulsToShow > 0; i++) {
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < visibleSouls.size(); i++) {
                 final SoulDatabase.Soul soul = visibleSouls.get(i);
-                if (!canSeeAllSouls && !soul.isAccessibleBy(player, now, soulFreeAfterMs)) {
-                    // Soul of somebody else, do not show nor collect
-                    continue;
-                }
-
-                final Location soulLocation = soul.getLocation(player.getWorld());
+                final Location soulLocation = soul.getLocation(world);
                 if (soulLocation == null) {
                     continue;
                 }
 
                 // Show this soul!
-                if (soul.xp > 0 && soul.items.length > 0) {
+                if (soul.getExperiencePoints() > 0 && soul.hasItems()) {
                     player.spawnParticle(Particle.REDSTONE, soulLocation, 10, 0.1, 0.1, 0.1, soulDustOptionsItems);
                     player.spawnParticle(Particle.REDSTONE, soulLocation, 10, 0.12, 0.12, 0.12, soulDustOptionsXp);
-                } else if (soul.xp > 0) {
+                } else if (soul.getExperiencePoints() > 0) {
                     // Only xp
                     player.spawnParticle(Particle.REDSTONE, soulLocation, 20, 0.1, 0.1, 0.1, soulDustOptionsXp);
                 } else {
                     // Only items
                     player.spawnParticle(Particle.REDSTONE, soulLocation, 20, 0.1, 0.1, 0.1, soulDustOptionsItems);
                 }
-                remainingSoulsToShow--;
             }
 
             // Process collisions
             if (!player.isDead()) {
                 final boolean playerCanCollectByDefault = (playerGameMode == GameMode.SURVIVAL || playerGameMode == GameMode.ADVENTURE);
 
-                //noinspection ForLoopReplaceableByForEach
-                for (int soulI = 0; soulI < visibleSouls.size(); soulI++) {
-                    final SoulDatabase.Soul closestSoul = visibleSouls.get(soulI);
-                    if (!closestSoul.isAccessibleBy(player, now, soulFreeAfterMs)) {
-                        // Soul of somebody else, do not collect
-                        continue;
+                SoulDatabase.Soul closestSoul = null;
+                if (!canSeeAllSouls) {
+                    // Visible souls are all accessible
+                    closestSoul = visibleSouls.get(0);
+                } else {
+                    //noinspection ForLoopReplaceableByForEach
+                    for (int i = 0; i < visibleSouls.size(); i++) {
+                        final SoulDatabase.Soul soul = visibleSouls.get(i);
+                        if (accessibleFilter.test(soul)) {
+                            closestSoul = soul;
+                            break;
+                        }
+                    }
+
+                    if (closestSoul == null) {
+                        // Everything visible is somebody else's, look further
+                        final ArrayList<SoulDatabase.Soul> collectableSouls = this.processPlayers_collectableSouls;
+                        collectableSouls.clear();
+                        if (soulDatabase.findNearestSouls(world.getUID(), playerLocation.getX(), playerLocation.getY(), playerLocation.getZ(),
+                                1, SOUL_VISIBILITY_RADIUS, accessibleFilter, collectableSouls) > 0) {
+                            closestSoul = collectableSouls.get(0);
+                        }
                     }
+                }
 
+                if (closestSoul != null) {
                     final double dst2 = distance2(closestSoul, playerLocation, 0.4);
                     final Location closestSoulLocation = closestSoul.getLocation(player.getWorld());
 
@@ -286,33 +296,40 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
 
                         if (!soulPickupEvent.cancelled) {
                             // Collect it!
-                            if (closestSoul.xp > 0) {
-                                player.giveExp(closestSoul.xp);
-                                closestSoul.xp = 0;
+                            boolean soulChanged = false;
+                            final int xp = closestSoul.getExperiencePoints();
+                            if (xp > 0) {
+                                player.giveExp(xp);
+                                closestSoul.setExperiencePoints(0);
                                 if (!soundSoulCollectXp.isEmpty() && closestSoulLocation != null) {
                                     player.playSound(closestSoulLocation, soundSoulCollectXp, 1f, 1f);
                                 }
-                                databaseChanged = true;
+                                soulChanged = true;
                             }
 
-                            final @NotNull ItemStack[] items = closestSoul.items;
+                            final @NotNull ItemStack[] items = closestSoul.getItems();
                             if (items.length > 0) {
-                                final HashMap<Integer, ItemStack> overflow = player.getInventory().addItem(items);
+                                // addItem() changes the amounts of the stacks it gets, the soul's own stacks may be saved meanwhile
+                                final ItemStack[] collected = new ItemStack[items.length];
+                                for (int i = 0; i < items.length; i++) {
+                                    collected[i] = items[i].clone();
+                                }
+                                final HashMap<Integer, ItemStack> overflow = player.getInventory().addItem(collected);
                                 if (overflow.isEmpty()) {
-                                    closestSoul.items = NO_ITEM_STACKS;
+                                    closestSoul.setItems(NO_ITEM_STACKS);
                                 } else {
-                                    closestSoul.items = overflow.values().toArray(NO_ITEM_STACKS);
+                                    closestSoul.setItems(overflow.values().toArray(NO_ITEM_STACKS));
                                 }
 
                                 boolean someCollected = false;
                                 if (overflow.size() < items.length) {
                                     someCollected = true;
-                                    databaseChanged = true;
+                                    soulChanged = true;
                                 } else {
                                     for (Map.Entry<Integer, ItemStack> overflowEntry : overflow.entrySet()) {
                                         if (!items[overflowEntry.getKey()].equals(overflowEntry.getValue())) {
                                             someCollected = true;
-                                            databaseChanged = true;
+                                            soulChanged = true;
                                             break;
                                         }
                                     }
@@ -323,10 +340,13 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
                                 }
                             }
 
-                            if (closestSoul.xp <= 0 && closestSoul.items.length <= 0) {
+                            if (soulChanged) {
+                                soulDatabase.markDirty(closestSoul);
+                            }
+
+                            if (closestSoul.getExperiencePoints() <= 0 && !closestSoul.hasItems()) {
                                 // Soul is depleted
                                 soulDatabase.removeSoul(closestSoul);
-                                this.refreshNearbySoulCache = true;
 
                                 // Do some fancy effect
                                 if (closestSoulLocation != null) {
@@ -340,14 +360,12 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
                     } else if (playCallingSounds && closestSoulLocation != null) {
                         player.playSound(closestSoulLocation, soundSoulCalling, volumeSoulCalling, 0.75f);
                     }
-                    break;
                 }
             }
         }
 
-        if (databaseChanged) {
-            soulDatabase.markDirty();
-        }
+        processPlayers_visibleSouls.clear();
+        processPlayers_collectableSouls.clear();
 
         final long autoSaveMs = this.autoSaveMs;
         if (now > processPlayers_nextAutoSave) {
@@ -486,19 +504,26 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
         {
             final Path dataFolder = getDataFolder().toPath();
             final Path soulDb = dataFolder.resolve("soul-db.bin");
-            soulDatabase = new SoulDatabase(this, soulDb);
+            final SoulDatabase soulDatabase = this.soulDatabase = new SoulDatabase(this, soulDb, false);
 
-            final Path legacySoulDb = dataFolder.resolve("souldb.bin");
-            if (Files.exists(legacySoulDb)) {
-                try {
-                    soulDatabase.loadLegacy(legacySoulDb);
-                } catch (Exception e) {
-                    LOG.log(Level.SEVERE, "Failed to load legacy soul database, old souls will not be present", e);
-                }
+            final int compressionLevel = config.getInt("database-compression", SoulDatabase.DEFAULT_COMPRESSION_LEVEL);
+            if (compressionLevel < 0 || compressionLevel > 9) {
+                LOG.log(Level.WARNING, "Invalid configuration: database-compression must be between 0 and 9");
+            } else {
+                soulDatabase.setCompressionLevel(compressionLevel);
+            }
+
+            final int saveThreads = config.getInt("database-save-threads", 0);
+            final int savePipelineDepth = config.getInt("database-save-pipeline-depth", SoulDatabase.DEFAULT_SAVE_PIPELINE_DEPTH);
+            if (saveThreads < 0 || savePipelineDepth < 1) {
+                LOG.log(Level.WARNING, "Invalid configuration: database-save-threads must not be negative and database-save-pipeline-depth must be at least 1");
+            } else {
+                soulDatabase.setSavePipeline(saveThreads, savePipelineDepth);
             }
-        }
 
-        refreshNearbySoulCache = true;
+            final Path legacySoulDb = dataFolder.resolve("souldb.bin");
+            soulDatabase.loadInBackground(Files.exists(legacySoulDb) ? legacySoulDb : null, null);
+        }
 
         for (Player onlinePlayer : server.getOnlinePlayers()) {
             watchedPlayers.put(onlinePlayer, new PlayerSoulInfo());
@@ -536,7 +561,8 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
                 if (faded > 0) {
                     getLogger().log(Level.FINE, "Removed "+faded+" faded soul(s)");
                 }
-                soulDatabase.save();
+                // Waits for the background save, then saves the rest synchronously
+                soulDatabase.close();
             } catch (Exception e) {
                 getLogger().log(Level.SEVERE, "Failed to save soul database", e);
             }
@@ -558,6 +584,11 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
             return false;
         }
 
+        if (!soulDatabase.isReady()) {
+            sender.sendMessage(org.bukkit.ChatColor.GRAY+"Souls are still loading ("+Math.round(soulDatabase.getLoadProgress() * 100.0)+" %), try again later");
+            return true;
+        }
+
         final String word = args.length >= 1 ? args[0] : "";
         int number;
         try {
@@ -650,32 +681,31 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
             // Console output
             final List<SoulDatabase.@Nullable Soul> soulsById = soulDatabase.getSoulsById();
             int shownSouls = 0;
-            synchronized (soulsById) {
-                for (int id = 0; id < soulsById.size(); id++) {
-                    final SoulDatabase.Soul soul = soulsById.get(id);
-                    if (soul == null) {
-                        continue;
-                    }
-                    shownSouls++;
+            for (int id = 0; id < soulsById.size(); id++) {
+                final SoulDatabase.Soul soul = soulsById.get(id);
+                if (soul == null) {
+                    continue;
+                }
+                shownSouls++;
 
-                    final World world = getServer().getWorld(soul.locationWorld);
-                    final String worldStr = world == null ? soul.locationWorld.toString() : world.getName();
+                final World world = getServer().getWorld(soul.locationWorld);
+                final String worldStr = world == null ? soul.locationWorld.toString() : world.getName();
 
-                    final String ownerStr;
-                    if (soul.owner == null) {
-                        ownerStr = "<free>";
+                final UUID owner = soul.getOwner();
+                final String ownerStr;
+                if (owner == null) {
+                    ownerStr = "<free>";
+                } else {
+                    final OfflinePlayer ownerPlayer = getServer().getOfflinePlayer(owner);
+                    final String ownerPlayerName = ownerPlayer.getName();
+                    if (ownerPlayerName == null) {
+                        ownerStr = owner.toString();
                     } else {
-                        final OfflinePlayer ownerPlayer = getServer().getOfflinePlayer(soul.owner);
-                        final String ownerPlayerName = ownerPlayer.getName();
-                        if (ownerPlayerName == null) {
-                            ownerStr = soul.owner.toString();
-                        } else {
-                            ownerStr = ownerPlayerName;
-                        }
+                        ownerStr = ownerPlayerName;
                     }
-
-                    sender.sendMessage(String.format("%d) %s %.1f %.1f %.1f   %s", id, worldStr, soul.locationX, soul.locationY, soul.locationZ, ownerStr));
                 }
+
+                sender.sendMessage(String.format("%d) %s %.1f %.1f %.1f   %s", id, worldStr, soul.locationX, soul.locationY, soul.locationZ, ownerStr));
             }
             sender.sendMessage(shownSouls+" souls");
         } else {
@@ -735,7 +765,7 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
 
                 final boolean ownSoul = soul.isOwnedBy(sender);
 
-                if (soul.owner != null && (canFreeAll || (ownSoul && canFree))) {
+                if (soul.getOwner() != null && (canFreeAll || (ownSoul && canFree))) {
                     final TextComponent freeButton = new TextComponent("Free");
                     freeButton.setColor(ChatColor.GREEN);
                     freeButton.setBold(true);
@@ -883,7 +913,6 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
 
         final int soulId = soulDatabase.addSoul(owner, world.getUID(),
                 soulLocation.getX(), soulLocation.getY(), soulLocation.getZ(), soulItems, soulXp).id;
-        refreshNearbySoulCache = true;
 
         // Show coordinates if the player has poor taste
         if (player.hasPermission("com.darkyen.minecraft.deadsouls.coordinates")) {
@@ -954,7 +983,6 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
 
         final World world = entity.getWorld();
         soulDatabase.addSoul(null, world.getUID(), soulLocation.getX(), soulLocation.getY(), soulLocation.getZ(), soulItems, soulXp);
-        refreshNearbySoulCache = true;
 
         if (!soundSoulDropped.isEmpty()) {
             world.playSound(soulLocation, soundSoulDropped, SoundCategory.MASTER, 1.1f, 1.7f);
@@ -977,14 +1005,9 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
     private static final class PlayerSoulInfo {
         static final double SOUL_HOVER_OFFSET = 1.2;
 
-        @NotNull
-        final Location lastKnownLocation = new Location(null, 0, 0, 0);
-
         @NotNull
         final Location lastSafeLocation = new Location(null, 0, 0, 0);
 
-        final ArrayList<SoulDatabase.Soul> visibleSouls = new ArrayList<>();
-
         @NotNull
         Location findSafeSoulSpawnLocation(@NotNull Player player) {
             final Location playerLocation = player.getLocation();
@@ -1037,20 +1060,16 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
         }
     }
 
-    private static final class ComparatorSoulDistanceTo implements Comparator<SoulDatabase.Soul> {
-
-        double toX, toY, toZ;
+    /** Accepts souls which are accessible by the player at given time. */
+    private final class SoulAccessibleFilter implements Predicate<SoulDatabase.Soul> {
 
-        private double distanceTo(@NotNull SoulDatabase.Soul s) {
-            final double x = toX - s.locationX;
-            final double y = toY - s.locationY;
-            final double z = toZ - s.locationZ;
-            return x*x + y*y + z*z;
-        }
+        SoulDatabase soulDatabase;
+        Player player;
+        long now;
 
         @Override
-        public int compare(@NotNull SoulDatabase.Soul o1, @NotNull SoulDatabase.Soul o2) {
-            return Double.compare(distanceTo(o1), distanceTo(o2));
+        public boolean test(@NotNull SoulDatabase.Soul soul) {
+            return soulDatabase.isAccessibleBy(soul, player, now, soulFreeAfterMs);
         }
     }
 
@@ -1072,16 +1091,7 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
         if (soulDatabase == null) {
             return;
         }
-        final List<SoulDatabase.@Nullable Soul> souls = soulDatabase.getSoulsById();
-        synchronized (souls) {
-            final int size = souls.size();
-            //noinspection ForLoopReplaceableByForEach
-            for (int i = 0; i < size; i++) {
-                final SoulDatabase.Soul soul = souls.get(i);
-                if (soul == null) continue;
-                out.add(soul);
-            }
-        }
+        soulDatabase.findAllSouls(null, out);
     }
 
     @Override
@@ -1091,16 +1101,7 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
         if (soulDatabase == null) {
             return;
         }
-        final List<SoulDatabase.@Nullable Soul> souls = soulDatabase.getSoulsById();
-        synchronized (souls) {
-            final int size = souls.size();
-            //noinspection ForLoopReplaceableByForEach
-            for (int i = 0; i < size; i++) {
-                final SoulDatabase.Soul soul = souls.get(i);
-                if (soul == null || !Objects.equals(playerUUID, soul.owner)) continue;
-                out.add(soul);
-            }
-        }
+        soulDatabase.findSoulsByOwner(playerUUID, null, out);
     }
 
     @Override
@@ -1110,16 +1111,7 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
         if (soulDatabase == null) {
             return;
         }
-        final List<SoulDatabase.@Nullable Soul> souls = soulDatabase.getSoulsById();
-        synchronized (souls) {
-            final int size = souls.size();
-            //noinspection ForLoopReplaceableByForEach
-            for (int i = 0; i < size; i++) {
-                final SoulDatabase.Soul soul = souls.get(i);
-                if (soul == null || !soul.locationWorld.equals(worldUUID)) continue;
-                out.add(soul);
-            }
-        }
+        soulDatabase.findAllSouls(worldUUID, out);
     }
 
     @Override
@@ -1129,16 +1121,7 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
         if (soulDatabase == null) {
             return;
         }
-        final List<SoulDatabase.@Nullable Soul> souls = soulDatabase.getSoulsById();
-        synchronized (souls) {
-            final int size = souls.size();
-            //noinspection ForLoopReplaceableByForEach
-            for (int i = 0; i < size; i++) {
-                final SoulDatabase.Soul soul = souls.get(i);
-                if (soul == null || !soul.locationWorld.equals(worldUUID) || !Objects.equals(playerUUID, soul.owner)) continue;
-                out.add(soul);
-            }
-        }
+        soulDatabase.findSoulsByOwner(playerUUID, worldUUID, out);
     }
 
     @Override
@@ -1148,39 +1131,54 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
         if (soulDatabase == null) {
             return;
         }
-        //noinspection unchecked
-        soulDatabase.findSouls(worldUUID, x, z, radius, (Collection<SoulDatabase.Soul>) (Object) out);
+        soulDatabase.findSouls(worldUUID, x, z, radius, soul -> {
+            out.add(soul);
+            return true;
+        });
+    }
+
+    @Override
+    public void getSoulsByLocation(@NotNull Collection<@NotNull Soul> out, @NotNull UUID worldUUID, int x, int z, int radius, int yMin, int yMax) {
+        out.clear();
+        final SoulDatabase soulDatabase = this.soulDatabase;
+        if (soulDatabase == null) {
+            return;
+        }
+        soulDatabase.findSouls(worldUUID, x, z, radius, yMin, yMax, soul -> {
+            out.add(soul);
+            return true;
+        });
     }
 
     @Override
     public void freeSoul(@NotNull Soul soul) {
-        if (((SoulDatabase.Soul) soul).freeSoul(System.currentTimeMillis(), soulFreeAfterMs)) {
-            final SoulDatabase soulDatabase = this.soulDatabase;
-            if (soulDatabase == null) {
-                return;
-            }
-            soulDatabase.markDirty();
+        final SoulDatabase soulDatabase = this.soulDatabase;
+        if (soulDatabase == null) {
+            // Soul can't be in the database, so there is no index to update
+            ((SoulDatabase.Soul) soul).setOwner(null);
+            return;
         }
+        soulDatabase.freeSoul((SoulDatabase.Soul) soul, System.currentTimeMillis(), soulFreeAfterMs);
     }
 
     @Override
     public void setSoulItems(@NotNull Soul soul, @NotNull ItemStack @NotNull [] items) {
-        ((SoulDatabase.Soul) soul).items = items;
+        ((SoulDatabase.Soul) soul).setItems(items);
         final SoulDatabase soulDatabase = this.soulDatabase;
         if (soulDatabase == null) {
             return;
         }
-        soulDatabase.markDirty();
+        soulDatabase.markDirty((SoulDatabase.Soul) soul);
     }
 
     @Override
     public void setSoulExperiencePoints(@NotNull Soul soul, int xp) {
-        ((SoulDatabase.Soul) soul).xp = xp;
+        ((SoulDatabase.Soul) soul).setExperiencePoints(xp);
         final SoulDatabase soulDatabase = this.soulDatabase;
         if (soulDatabase == null) {
             return;
         }
-        soulDatabase.markDirty();
+        soulDatabase.markDirty((SoulDatabase.Soul) soul);
     }
 
     @Override
@@ -1190,24 +1188,29 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
             return;
         }
         soulDatabase.removeSoul((SoulDatabase.Soul) soul);
-        refreshNearbySoulCache = true;
     }
 
     @Override
     public boolean soulExists(@NotNull Soul soul) {
-        final SoulDatabase.Soul ssoul = (SoulDatabase.Soul) soul;
-        if (ssoul.id < 0) {
-            return false;
-        }
         final SoulDatabase soulDatabase = this.soulDatabase;
         if (soulDatabase == null) {
             return false;
         }
 
-        final ArrayList<SoulDatabase.@Nullable Soul> souls = soulDatabase.getSoulsById();
-        synchronized (souls) {
-            return ssoul.id < souls.size() && souls.get(ssoul.id) == soul;
-        }
+        // Souls created during loading have no id yet, but exist
+        return soulDatabase.contains((SoulDatabase.Soul) soul);
+    }
+
+    @Override
+    public boolean isLoaded() {
+        final SoulDatabase soulDatabase = this.soulDatabase;
+        return soulDatabase != null && soulDatabase.isReady();
+    }
+
+    @Override
+    public double getLoadProgress() {
+        final SoulDatabase soulDatabase = this.soulDatabase;
+        return soulDatabase == null ? 0.0 : soulDatabase.getLoadProgress();
     }
 
     @Override
@@ -1218,7 +1221,6 @@ public final class DeadSouls extends JavaPlugin implements Listener, DeadSoulsAP
             // Sad, but better than returning null which would probably cause crash. This situation can be tested through soulExists.
             return new SoulDatabase.Soul(owner, world, x, y, z, System.currentTimeMillis(), nnContents, xp);
         }
-        refreshNearbySoulCache = true;
         return soulDatabase.addSoul(owner, world, x, y, z, nnContents, xp);
     }
     //endregion
@@ -21,7 +21,9 @@ import java.util.UUID;
  *
  * Most methods are designed to be efficient and allocation free.
  *
- * Unless specified otherwise, the methods are not thread safe and MUST be called
+ * The queries ({@code getSouls*}, {@link #soulExists(Soul)}, {@link #isLoaded()} and {@link #getLoadProgress()})
+ * are thread safe and can be called from any thread, also while the main thread changes the souls.
+ * Unless specified otherwise, the other methods are not thread safe and MUST be called
  * from the main thread (the one from which standard Spigot callbacks are called).
  *
  * Reference of this interface when the plugin is not present on the server will result
@@ -65,11 +67,17 @@ public interface DeadSoulsAPI {
 
 	/** Similar to {@link #getSouls(Collection)}, but only return souls which belong to a certain world and are located inside
 	 * a cylinder of infinite height, centered at (x, z) and having the given radius.
-	 * NOTE: For efficiency, returned souls might actually be outside of the radius.
-	 * If you care about the exact distance, compute it yourself.
-	 * NOTE: This method is NOT thread safe. */
+	 * This method is thread safe. */
 	void getSoulsByLocation(@NotNull Collection<@NotNull Soul> out, @NotNull UUID worldUUID, int x, int z, int radius);
 
+	/** Same as {@link #getSoulsByLocation(Collection, UUID, int, int, int)}, but the cylinder only spans
+	 * from yMin to yMax (both inclusive).
+	 * This method is thread safe. */
+	default void getSoulsByLocation(@NotNull Collection<@NotNull Soul> out, @NotNull UUID worldUUID, int x, int z, int radius, int yMin, int yMax) {
+		getSoulsByLocation(out, worldUUID, x, z, radius);
+		out.removeIf(soul -> !(soul.getLocationY() >= yMin && soul.getLocationY() <= yMax));
+	}
+
 	/** Free the soul (remove its owner), if not free yet. */
 	void freeSoul(@NotNull Soul soul);
 
@@ -85,13 +93,25 @@ public interface DeadSoulsAPI {
 
 	/** Return whether the soul still exists.
 	 * Soul may disappear, for example, by player collecting it, it fading away or explicit {@link #removeSoul(Soul)}.
-	 * Note that all other methods still work correctly even if the soul does not exist anymore. */
+	 * Note that all other methods still work correctly even if the soul does not exist anymore.
+	 * This method is thread safe, but when called off the main thread, the soul may disappear right after it returns. */
 	boolean soulExists(@NotNull Soul soul);
 
 	/** Create a new soul and add it into the world. Parameters correspond to the getters of {@link Soul}.
 	 * @param contents similarly to {@link #setSoulItems(Soul, ItemStack[])}, DO NOT MODIFY the contents of the array after it is passed in */
 	@NotNull Soul createSoul(@Nullable UUID owner, @NotNull UUID world, double x, double y, double z, @Nullable ItemStack[] contents, int xp);
 
+	/** Return whether the souls are loaded. The database is loaded in the background when the plugin is enabled,
+	 * until then no souls are returned by the getters and created souls are only added once it is done. */
+	default boolean isLoaded() {
+		return true;
+	}
+
+	/** @return how much of the souls is loaded, from 0 to 1, see {@link #isLoaded()} */
+	default double getLoadProgress() {
+		return 1.0;
+	}
+
 	/**
 	 * A soul representation.
 	 * All methods are thread safe, unless specified otherwise.
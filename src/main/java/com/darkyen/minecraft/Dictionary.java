@@ -0,0 +1,148 @@
+package com.darkyen.minecraft;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.UUID;
+
+import static com.darkyen.minecraft.Serialization.deserializeUUID;
+import static com.darkyen.minecraft.Serialization.readVarInt;
+import static com.darkyen.minecraft.Serialization.serializeUUID;
+import static com.darkyen.minecraft.Serialization.writeVarInt;
+
+/**
+ * Strings and UUIDs which repeat throughout the soul database (map keys, aliases, string values which repeat, worlds, owners...),
+ * stored once per snapshot and its journal and referred to by their index everywhere else.
+ *
+ * Entries are never removed or moved, because serialized items, which refer to them,
+ * are kept around and saved back verbatim (see {@link SoulDatabase.Soul}).
+ * Instead, each snapshot starts a new dictionary, which holds only the entries of souls which still exist,
+ * and the kept items are transcoded into it.
+ * Entries can be added and read from any thread.
+ */
+final class Dictionary {
+
+    /** Strings longer than this are written inline, because they are most likely unique (lore, book pages...) */
+    static final int MAX_STRING_LENGTH = 32;
+
+    @NotNull
+    final Table<String> strings = new Table<>();
+    @NotNull
+    final Table<UUID> uuids = new Table<>();
+
+    /** Write entries starting at the given indices.
+     * Format: first string index, string count, strings, first UUID index, UUID count, UUIDs. Indices and counts are varints. */
+    void write(@NotNull DataOutput out, int fromString, int fromUuid) throws IOException {
+        final int stringCount = strings.size();
+        writeVarInt(out, fromString);
+        writeVarInt(out, stringCount - fromString);
+        for (int i = fromString; i < stringCount; i++) {
+            out.writeUTF(strings.get(i));
+        }
+
+        final int uuidCount = uuids.size();
+        writeVarInt(out, fromUuid);
+        writeVarInt(out, uuidCount - fromUuid);
+        for (int i = fromUuid; i < uuidCount; i++) {
+            serializeUUID(uuids.get(i), out);
+        }
+    }
+
+    /** Read entries written by {@link #write(DataOutput, int, int)}, which must directly follow the existing ones. */
+    void read(@NotNull DataInput in) throws IOException, Serialization.Exception {
+        final int fromString = readVarInt(in);
+        final int stringCount = readVarInt(in);
+        if (fromString != strings.size() || stringCount < 0) {
+            throw new Serialization.Exception("Dictionary strings "+fromString+"+"+stringCount+" don't follow the "+strings.size()+" known ones");
+        }
+        for (int i = 0; i < stringCount; i++) {
+            strings.add(in.readUTF());
+        }
+
+        final int fromUuid = readVarInt(in);
+        final int uuidCount = readVarInt(in);
+        if (fromUuid != uuids.size() || uuidCount < 0) {
+            throw new Serialization.Exception("Dictionary UUIDs "+fromUuid+"+"+uuidCount+" don't follow the "+uuids.size()+" known ones");
+        }
+        for (int i = 0; i < uuidCount; i++) {
+            uuids.add(deserializeUUID(in));
+        }
+    }
+
+    static final class Table<T> {
+        /** NOTE: Synchronize on the table before accessing */
+        @NotNull
+        private final HashMap<T, Integer> indices = new HashMap<>();
+        /** Grows by copying, so that readers see a consistent array without locking.
+         * Always written before {@link #size}, so entries below size are visible in it. */
+        private volatile Object @NotNull [] entries = new Object[16];
+        private volatile int size = 0;
+        /** Entries asked for by {@link #indexOfRepeated} only once so far, which are not in the table.
+         * NOTE: Synchronize on the table before accessing */
+        @NotNull
+        private final HashSet<T> seenOnce = new HashSet<>();
+
+        /** @return amount of entries */
+        int size() {
+            return size;
+        }
+
+        /** @return index of the entry, which is added if it is not present yet */
+        synchronized int indexOf(@NotNull T entry) {
+            final Integer index = indices.get(entry);
+            if (index != null) {
+                return index;
+            }
+            return add(entry);
+        }
+
+        /** Like {@link #indexOf}, but an entry is added only when it is asked for the second time,
+         * so that entries which don't repeat don't take up space in the table.
+         * @return index of the entry, -1 if it is not in the table (yet) */
+        synchronized int indexOfRepeated(@NotNull T entry) {
+            final Integer index = indices.get(entry);
+            if (index != null) {
+                return index;
+            }
+            if (seenOnce.add(entry)) {
+                return -1;
+            }
+            seenOnce.remove(entry);
+            return add(entry);
+        }
+
+        /** Add the entry at the end, even if it is already present.
+         * @return its index */
+        synchronized int add(@NotNull T entry) {
+            final int index = size;
+            Object[] entries = this.entries;
+            if (index == entries.length) {
+                entries = this.entries = Arrays.copyOf(entries, index * 2);
+            }
+            entries[index] = entry;
+            indices.putIfAbsent(entry, index);
+            size = index + 1;
+            return index;
+        }
+
+        @NotNull
+        T entry(int index) throws Serialization.Exception {
+            final int size = this.size;
+            if (index < 0 || index >= size) {
+                throw new Serialization.Exception("Dictionary entry "+index+" does not exist, there are only "+size);
+            }
+            return get(index);
+        }
+
+        @NotNull
+        @SuppressWarnings("unchecked")
+        private T get(int index) {
+            return (T) entries[index];
+        }
+    }
+}
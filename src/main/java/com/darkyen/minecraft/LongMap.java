@@ -0,0 +1,184 @@
+package com.darkyen.minecraft;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Hash map with primitive long keys and non-null values.
+ * Uses open addressing with linear probing and backward shift deletion, so there are no tombstones.
+ *
+ * Iterate through {@link #capacity()} and {@link #valueAt(int)}, skipping nulls.
+ */
+final class LongMap<V> {
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long @NotNull [] keys;
+    private @Nullable Object @NotNull [] values;
+    private int size = 0;
+    private int mask;
+    private int shift;
+    private int threshold;
+
+    public LongMap(int initialCapacity) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < initialCapacity) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new Object[capacity];
+        resized(capacity);
+    }
+
+    public LongMap() {
+        this(16);
+    }
+
+    private void resized(int capacity) {
+        mask = capacity - 1;
+        shift = Long.numberOfLeadingZeros(capacity - 1);
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int place(long key) {
+        // Fibonacci hashing, the high bits of the product are well mixed
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift) & mask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    /** @return value stored at given table index or null if that index is empty */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index) {
+        return (V) values[index];
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        final int mask = this.mask;
+        for (int i = place(key); ; i = (i + 1) & mask) {
+            final Object value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return (V) value;
+            }
+        }
+    }
+
+    /** @return previous value or null */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V put(long key, @NotNull V value) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        final int mask = this.mask;
+        int i = place(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                final V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > threshold) {
+            grow();
+        }
+        return null;
+    }
+
+    /** @return removed value or null if not present */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        final int mask = this.mask;
+        int i = place(key);
+        while (true) {
+            final Object value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+
+        final V removed = (V) values[i];
+        // Shift following entries of the cluster back, so that they stay reachable
+        int gap = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            final int home = place(keys[j]);
+            // Can the entry at j move into the gap? Only if its home is not cyclically in (gap, j]
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = null;
+        size--;
+        return removed;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /** Make sure that the given amount of entries fits without growing.
+     * Call before inserting entries in the table order of another map, which would cluster badly while growing. */
+    public void ensureCapacity(int size) {
+        int capacity = values.length;
+        while (capacity * LOAD_FACTOR < size) {
+            capacity <<= 1;
+        }
+        if (capacity != values.length) {
+            rehash(capacity);
+        }
+    }
+
+    private void grow() {
+        rehash(values.length << 1);
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = this.keys;
+        final Object[] oldValues = this.values;
+        final long[] keys = this.keys = new long[capacity];
+        final Object[] values = this.values = new Object[capacity];
+        resized(capacity);
+        final int mask = this.mask;
+
+        for (int o = 0; o < oldValues.length; o++) {
+            final Object value = oldValues[o];
+            if (value == null) {
+                continue;
+            }
+            final long key = oldKeys[o];
+            int i = place(key);
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.darkyen.minecraft;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs saves on one dedicated thread, which is started by the first request.
+ *
+ * Requests which come while a save is already waiting are coalesced into it, so there is at most one save running
+ * and one waiting, no matter how slow the disk is. The save decides what to write only when it starts,
+ * so coalesced requests don't cost anything.
+ */
+final class PersistenceService {
+
+    private static final Logger LOG = Logger.getLogger("DeadSouls-Persistence");
+    /** Saves which take longer than this from the request are reported, the disk can't keep up */
+    private static final long SLOW_SAVE_NANOS = 10_000_000_000L;
+
+    @NotNull
+    private final String threadName;
+    @NotNull
+    private final Runnable save;
+
+    /** NOTE: Synchronize on this before accessing */
+    @Nullable
+    private Thread thread = null;
+    /** Whether a save is waiting. NOTE: Synchronize on this before accessing */
+    private boolean requested = false;
+    /** When was the oldest waiting request made and how many more were coalesced into it.
+     * NOTE: Synchronize on this before accessing */
+    private long requestedAt;
+    private int coalesced;
+    /** NOTE: Synchronize on this before accessing */
+    private boolean saving = false, stopped = false;
+
+    /** From the oldest request served by the last save to the end of that save */
+    private volatile long lastLatencyNanos = 0L;
+    private volatile long maxLatencyNanos = 0L;
+    private volatile long completedSaves = 0L;
+
+    /** @param save which reports its own failures */
+    PersistenceService(@NotNull String threadName, @NotNull Runnable save) {
+        this.threadName = threadName;
+        this.save = save;
+    }
+
+    /** Save in the background as soon as possible. Never blocks.
+     * @return false if stopped */
+    synchronized boolean request() {
+        if (stopped) {
+            return false;
+        }
+        if (requested) {
+            coalesced++;
+            return true;
+        }
+        requested = true;
+        requestedAt = System.nanoTime();
+        coalesced = 0;
+        if (saving) {
+            LOG.log(Level.FINE, "Previous save is still running, next one will follow it");
+        }
+
+        if (thread == null) {
+            final Thread thread = this.thread = new Thread(this::run, threadName);
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            notifyAll();
+        }
+        return true;
+    }
+
+    private void run() {
+        while (true) {
+            final long requestedAt;
+            final int coalesced;
+            synchronized (this) {
+                while (!requested && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        stopped = true;
+                    }
+                }
+                if (stopped) {
+                    // Whoever stopped it saves the rest
+                    return;
+                }
+                requested = false;
+                requestedAt = this.requestedAt;
+                coalesced = this.coalesced;
+                saving = true;
+            }
+
+            try {
+                save.run();
+            } catch (Throwable t) {
+                LOG.log(Level.SEVERE, "Background save failed", t);
+            } finally {
+                final long latency = System.nanoTime() - requestedAt;
+                lastLatencyNanos = latency;
+                if (latency > maxLatencyNanos) {
+                    maxLatencyNanos = latency;
+                }
+                completedSaves++;
+                synchronized (this) {
+                    saving = false;
+                    notifyAll();
+                }
+                LOG.log(latency > SLOW_SAVE_NANOS ? Level.WARNING : Level.FINE, "Background save done "+(latency / 1_000_000L)
+                        +" ms after it was requested"+(coalesced > 0 ? ", "+coalesced+" more request(s) coalesced into it" : "")
+                        +", "+queueDepth()+" request(s) waiting");
+            }
+        }
+    }
+
+    /** Stop the thread and wait for the save in progress to finish. Waiting requests are dropped,
+     * the caller is expected to save synchronously afterwards. No more requests are accepted. */
+    void stop() {
+        final Thread thread;
+        synchronized (this) {
+            stopped = true;
+            requested = false;
+            thread = this.thread;
+            notifyAll();
+        }
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                // The save must not be cut short, the synchronous save would race with it
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return amount of requests which wait for the next save, all served by it */
+    synchronized int queueDepth() {
+        return requested ? 1 + coalesced : 0;
+    }
+
+    /** @return whether a save is running right now */
+    synchronized boolean isSaving() {
+        return saving;
+    }
+
+    /** @return nanoseconds from the oldest request served by the last save to its end, 0 if there was none yet */
+    long lastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    /** @return the highest {@link #lastLatencyNanos()} so far */
+    long maxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /** @return amount of saves done on the thread */
+    long completedSaves() {
+        return completedSaves;
+    }
+}
@@ -0,0 +1,20 @@
+package com.darkyen.minecraft;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * {@link DataInput} over a file, which knows where in the file it is and can move around.
+ */
+interface SeekableDataInput extends DataInput, Closeable {
+
+    long position() throws IOException;
+
+    void position(long newPosition) throws IOException;
+
+    /** @return amount of bytes until the end */
+    long remaining() throws IOException;
+
+    boolean hasRemaining() throws IOException;
+}
@@ -7,6 +7,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -26,6 +27,12 @@ final class Serialization {
     private static final Logger LOG = Logger.getLogger("DeadSouls-Serialization");
 
     public static void serializeObject(@Nullable Object object, @NotNull DataOutput out) throws IOException, Exception {
+        serializeObject(object, out, null);
+    }
+
+    /** @param dictionary to which map keys, aliases and repeating strings are moved and whose indices are written instead,
+     *                   null to write them inline, in the format readable by older versions */
+    public static void serializeObject(@Nullable Object object, @NotNull DataOutput out, @Nullable Dictionary dictionary) throws IOException, Exception {
         if (object == null) {
             out.writeByte(SerializedType.NULL.ordinal());
         } else if (object instanceof Boolean) {
@@ -56,11 +63,22 @@ final class Serialization {
             out.writeByte(SerializedType.PRIMITIVE_DOUBLE.ordinal());
             out.writeDouble((Double) object);
         } else if (object instanceof String) {
-            out.writeByte(SerializedType.STRING.ordinal());
-            out.writeUTF((String) object);
+            final String string = (String) object;
+            // Values are moved to the dictionary only once they repeat, unlike map keys and aliases, which nearly always do
+            final int index = dictionary != null && string.length() <= Dictionary.MAX_STRING_LENGTH ? dictionary.strings.indexOfRepeated(string) : -1;
+            if (index >= 0) {
+                out.writeByte(SerializedType.STRING_REF.ordinal());
+                writeVarInt(out, index);
+            } else {
+                out.writeByte(SerializedType.STRING.ordinal());
+                out.writeUTF(string);
+            }
         } else if (object instanceof List) {
             final List list = (List) object;
-            if (list.size() <= 0xFF) {
+            if (dictionary != null) {
+                out.writeByte(SerializedType.LIST_VAR.ordinal());
+                writeVarInt(out, list.size());
+            } else if (list.size() <= 0xFF) {
                 out.writeByte(SerializedType.LIST_BYTE.ordinal());
                 out.writeByte(list.size());
             } else {
@@ -68,46 +86,80 @@ final class Serialization {
                 out.writeInt(list.size());
             }
             for (Object listItem : list) {
-                serializeObject(listItem, out);
+                serializeObject(listItem, out, dictionary);
             }
         } else if (object instanceof Map) {
             final Map<?, ?> map = (Map) object;
-            if (map.size() <= 0xFF) {
+            if (dictionary != null) {
+                out.writeByte(SerializedType.MAP_VAR.ordinal());
+                writeVarInt(out, map.size());
+            } else if (map.size() <= 0xFF) {
                 out.writeByte(SerializedType.MAP_BYTE.ordinal());
                 out.writeByte(map.size());
             } else {
                 out.writeByte(SerializedType.MAP.ordinal());
                 out.writeInt(map.size());
             }
-            for (Map.Entry entry : map.entrySet()) {
-                out.writeUTF((String)entry.getKey());
-                serializeObject(entry.getValue(), out);
-            }
+            serializeEntries(map, out, dictionary);
         } else if (object instanceof ConfigurationSerializable) {
             final Map<String, Object> serialized = ((ConfigurationSerializable) object).serialize();
-            if (serialized.size() <= 0xFF) {
-                out.writeByte(SerializedType.CONFIGURATION_SERIALIZABLE_BYTE.ordinal());
-                out.writeByte(serialized.size());
-            } else {
-                out.writeByte(SerializedType.CONFIGURATION_SERIALIZABLE.ordinal());
-                out.writeInt(serialized.size());
-            }
             //noinspection unchecked
-            out.writeUTF(ConfigurationSerialization.getAlias((Class)object.getClass()));
-
-            for (Map.Entry entry : serialized.entrySet()) {
-                out.writeUTF((String)entry.getKey());
-                serializeObject(entry.getValue(), out);
+            final String alias = ConfigurationSerialization.getAlias((Class) object.getClass());
+            if (dictionary != null) {
+                out.writeByte(SerializedType.CONFIGURATION_SERIALIZABLE_VAR.ordinal());
+                writeVarInt(out, serialized.size());
+                writeVarInt(out, dictionary.strings.indexOf(alias));
+            } else {
+                if (serialized.size() <= 0xFF) {
+                    out.writeByte(SerializedType.CONFIGURATION_SERIALIZABLE_BYTE.ordinal());
+                    out.writeByte(serialized.size());
+                } else {
+                    out.writeByte(SerializedType.CONFIGURATION_SERIALIZABLE.ordinal());
+                    out.writeInt(serialized.size());
+                }
+                out.writeUTF(alias);
             }
+            serializeEntries(serialized, out, dictionary);
         } else {
             throw new Exception("Can't serialize "+object+", unsupported type: "+object.getClass());
         }
     }
 
+    private static void serializeEntries(@NotNull Map<?, ?> map, @NotNull DataOutput out, @Nullable Dictionary dictionary) throws IOException, Exception {
+        for (Map.Entry entry : map.entrySet()) {
+            writeKey((String) entry.getKey(), out, dictionary);
+            serializeObject(entry.getValue(), out, dictionary);
+        }
+    }
+
+    /** Write a map key, which is always moved to the dictionary, if there is one. */
+    public static void writeKey(@NotNull String key, @NotNull DataOutput out, @Nullable Dictionary dictionary) throws IOException {
+        if (dictionary != null) {
+            writeVarInt(out, dictionary.strings.indexOf(key));
+        } else {
+            out.writeUTF(key);
+        }
+    }
+
+    /** Read a map key written by {@link #writeKey(String, DataOutput, Dictionary)}. */
+    @NotNull
+    public static String readKey(@NotNull DataInput in, @Nullable Dictionary dictionary) throws IOException, Exception {
+        if (dictionary != null) {
+            return dictionary.strings.entry(readVarInt(in));
+        }
+        return in.readUTF();
+    }
+
     @Nullable
     public static Object deserializeObject(@NotNull DataInput in) throws IOException, Exception {
+        return deserializeObject(in, null);
+    }
+
+    /** @param dictionary with which the object was serialized, null if it was serialized without one */
+    @Nullable
+    public static Object deserializeObject(@NotNull DataInput in, @Nullable Dictionary dictionary) throws IOException, Exception {
         final int typeByte = in.readUnsignedByte();
-        if (typeByte > SerializedType.VALUES.length) {
+        if (typeByte >= SerializedType.VALUES.length) {
             throw new Exception("Unknown type: "+typeByte);
         }
         final SerializedType type = SerializedType.VALUES[typeByte];
@@ -134,38 +186,45 @@ final class Serialization {
                 return in.readDouble();
             case STRING:
                 return in.readUTF();
+            case STRING_REF:
+                return requireDictionary(dictionary).strings.entry(readVarInt(in));
             case LIST_BYTE:
-            case LIST: {
-                final int length = type == SerializedType.LIST_BYTE ? in.readUnsignedByte() : in.readInt();
+            case LIST:
+            case LIST_VAR: {
+                final int length = readSize(in, type);
                 if (length == 0)
                     return Collections.emptyList();
                 final ArrayList<Object> list = new ArrayList<>(length);
                 for (int i = 0; i < length; i++) {
-                    list.add(deserializeObject(in));
+                    list.add(deserializeObject(in, dictionary));
                 }
                 return list;
             }
             case MAP_BYTE:
-            case MAP: {
-                final int length = type == SerializedType.MAP_BYTE ? in.readUnsignedByte() : in.readInt();
+            case MAP:
+            case MAP_VAR: {
+                final int length = readSize(in, type);
                 if (length == 0)
                     return Collections.emptyMap();
+                final Dictionary keyDictionary = type == SerializedType.MAP_VAR ? requireDictionary(dictionary) : null;
                 final HashMap<String, Object> map = new HashMap<>(length + length/2);
                 for (int i = 0; i < length; i++) {
-                    final String key = in.readUTF();
-                    final Object value = deserializeObject(in);
+                    final String key = readKey(in, keyDictionary);
+                    final Object value = deserializeObject(in, dictionary);
                     map.put(key, value);
                 }
                 return map;
             }
             case CONFIGURATION_SERIALIZABLE_BYTE:
-            case CONFIGURATION_SERIALIZABLE: {
-                final int size = type == SerializedType.CONFIGURATION_SERIALIZABLE_BYTE ? in.readUnsignedByte() : in.readInt();
-                final String alias = in.readUTF();
+            case CONFIGURATION_SERIALIZABLE:
+            case CONFIGURATION_SERIALIZABLE_VAR: {
+                final int size = readSize(in, type);
+                final Dictionary keyDictionary = type == SerializedType.CONFIGURATION_SERIALIZABLE_VAR ? requireDictionary(dictionary) : null;
+                final String alias = readKey(in, keyDictionary);
                 final HashMap<String, Object> map = new HashMap<>(size + size / 2);
                 for (int i = 0; i < size; i++) {
-                    final String key = in.readUTF();
-                    final Object value = deserializeObject(in);
+                    final String key = readKey(in, keyDictionary);
+                    final Object value = deserializeObject(in, dictionary);
                     map.put(key, value);
                 }
 
@@ -194,6 +253,246 @@ final class Serialization {
         }
     }
 
+    /** @return amount of entries of a list, map or configuration serializable of given type */
+    private static int readSize(@NotNull DataInput in, @NotNull SerializedType type) throws IOException {
+        switch (type) {
+            case LIST_BYTE:
+            case MAP_BYTE:
+            case CONFIGURATION_SERIALIZABLE_BYTE:
+                return in.readUnsignedByte();
+            case LIST_VAR:
+            case MAP_VAR:
+            case CONFIGURATION_SERIALIZABLE_VAR:
+                return readVarInt(in);
+            default:
+                return in.readInt();
+        }
+    }
+
+    @NotNull
+    private static Dictionary requireDictionary(@Nullable Dictionary dictionary) throws Exception {
+        if (dictionary == null) {
+            throw new Exception("Object refers to a dictionary, but there is none");
+        }
+        return dictionary;
+    }
+
+    /** Skip over an object written by {@link #serializeObject(Object, DataOutput, Dictionary)} without deserializing it. */
+    public static void skipObject(@NotNull DataInput in) throws IOException, Exception {
+        final int typeByte = in.readUnsignedByte();
+        if (typeByte >= SerializedType.VALUES.length) {
+            throw new Exception("Unknown type: "+typeByte);
+        }
+        final SerializedType type = SerializedType.VALUES[typeByte];
+        switch (type) {
+            case NULL:
+            case PRIMITIVE_BOOLEAN_TRUE:
+            case PRIMITIVE_BOOLEAN_FALSE:
+                break;
+            case PRIMITIVE_BYTE:
+                skipFully(in, 1);
+                break;
+            case PRIMITIVE_CHARACTER:
+            case PRIMITIVE_SHORT:
+                skipFully(in, 2);
+                break;
+            case PRIMITIVE_INT:
+            case PRIMITIVE_FLOAT:
+                skipFully(in, 4);
+                break;
+            case PRIMITIVE_LONG:
+            case PRIMITIVE_DOUBLE:
+                skipFully(in, 8);
+                break;
+            case STRING:
+                skipUTF(in);
+                break;
+            case STRING_REF:
+                readVarInt(in);
+                break;
+            case LIST_BYTE:
+            case LIST:
+            case LIST_VAR: {
+                final int length = readSize(in, type);
+                for (int i = 0; i < length; i++) {
+                    skipObject(in);
+                }
+                break;
+            }
+            case MAP_BYTE:
+            case MAP:
+            case MAP_VAR: {
+                final int length = readSize(in, type);
+                final boolean keyRefs = type == SerializedType.MAP_VAR;
+                for (int i = 0; i < length; i++) {
+                    skipKey(in, keyRefs);
+                    skipObject(in);
+                }
+                break;
+            }
+            case CONFIGURATION_SERIALIZABLE_BYTE:
+            case CONFIGURATION_SERIALIZABLE:
+            case CONFIGURATION_SERIALIZABLE_VAR: {
+                final int size = readSize(in, type);
+                final boolean keyRefs = type == SerializedType.CONFIGURATION_SERIALIZABLE_VAR;
+                skipKey(in, keyRefs);
+                for (int i = 0; i < size; i++) {
+                    skipKey(in, keyRefs);
+                    skipObject(in);
+                }
+                break;
+            }
+            default:
+                throw new Exception("skipObject: Branch for type "+type+" is missing!");
+        }
+    }
+
+    /** Skip over a key written by {@link #writeKey(String, DataOutput, Dictionary)}.
+     * @param keyRefs whether it was written with a dictionary */
+    public static void skipKey(@NotNull DataInput in, boolean keyRefs) throws IOException {
+        if (keyRefs) {
+            readVarInt(in);
+        } else {
+            skipUTF(in);
+        }
+    }
+
+    /** Copy an object written by {@link #serializeObject(Object, DataOutput, Dictionary)} with any dictionary or none,
+     * into the form written with the given dictionary, without deserializing it.
+     * @param inDictionary with which the object was serialized, null if none */
+    public static void transcodeObject(@NotNull DataInput in, @Nullable Dictionary inDictionary,
+                                       @NotNull DataOutput out, @NotNull Dictionary dictionary) throws IOException, Exception {
+        final int typeByte = in.readUnsignedByte();
+        if (typeByte >= SerializedType.VALUES.length) {
+            throw new Exception("Unknown type: "+typeByte);
+        }
+        final SerializedType type = SerializedType.VALUES[typeByte];
+        switch (type) {
+            case NULL:
+            case PRIMITIVE_BOOLEAN_TRUE:
+            case PRIMITIVE_BOOLEAN_FALSE:
+                out.writeByte(typeByte);
+                break;
+            case PRIMITIVE_BYTE:
+                out.writeByte(typeByte);
+                out.writeByte(in.readByte());
+                break;
+            case PRIMITIVE_CHARACTER:
+            case PRIMITIVE_SHORT:
+                out.writeByte(typeByte);
+                out.writeShort(in.readShort());
+                break;
+            case PRIMITIVE_INT:
+            case PRIMITIVE_FLOAT:
+                out.writeByte(typeByte);
+                out.writeInt(in.readInt());
+                break;
+            case PRIMITIVE_LONG:
+            case PRIMITIVE_DOUBLE:
+                out.writeByte(typeByte);
+                out.writeLong(in.readLong());
+                break;
+            case STRING:
+                serializeObject(in.readUTF(), out, dictionary);
+                break;
+            case STRING_REF:
+                serializeObject(requireDictionary(inDictionary).strings.entry(readVarInt(in)), out, dictionary);
+                break;
+            case LIST_BYTE:
+            case LIST:
+            case LIST_VAR: {
+                final int length = readSize(in, type);
+                out.writeByte(SerializedType.LIST_VAR.ordinal());
+                writeVarInt(out, length);
+                for (int i = 0; i < length; i++) {
+                    transcodeObject(in, inDictionary, out, dictionary);
+                }
+                break;
+            }
+            case MAP_BYTE:
+            case MAP:
+            case MAP_VAR: {
+                final int length = readSize(in, type);
+                final Dictionary keyDictionary = type == SerializedType.MAP_VAR ? requireDictionary(inDictionary) : null;
+                out.writeByte(SerializedType.MAP_VAR.ordinal());
+                writeVarInt(out, length);
+                for (int i = 0; i < length; i++) {
+                    writeKey(readKey(in, keyDictionary), out, dictionary);
+                    transcodeObject(in, inDictionary, out, dictionary);
+                }
+                break;
+            }
+            case CONFIGURATION_SERIALIZABLE_BYTE:
+            case CONFIGURATION_SERIALIZABLE:
+            case CONFIGURATION_SERIALIZABLE_VAR: {
+                final int size = readSize(in, type);
+                final Dictionary keyDictionary = type == SerializedType.CONFIGURATION_SERIALIZABLE_VAR ? requireDictionary(inDictionary) : null;
+                out.writeByte(SerializedType.CONFIGURATION_SERIALIZABLE_VAR.ordinal());
+                writeVarInt(out, size);
+                writeKey(readKey(in, keyDictionary), out, dictionary);
+                for (int i = 0; i < size; i++) {
+                    writeKey(readKey(in, keyDictionary), out, dictionary);
+                    transcodeObject(in, inDictionary, out, dictionary);
+                }
+                break;
+            }
+            default:
+                throw new Exception("transcodeObject: Branch for type "+type+" is missing!");
+        }
+    }
+
+    /** Write a non-negative int in 1 to 5 bytes, 7 bits per byte, lowest first, with the high bit set on all but the last byte. */
+    public static void writeVarInt(@NotNull DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /** Write a varint padded to the given length with empty groups, so that it can be overwritten in place by a smaller value. */
+    public static void writeVarInt(@NotNull DataOutput out, int value, int length) throws IOException {
+        for (int i = 1; i < length; i++) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /** @return amount of bytes written by {@link #writeVarInt(DataOutput, int)} */
+    public static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /** Read an int written by {@link #writeVarInt(DataOutput, int)}. */
+    public static int readVarInt(@NotNull DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+
+    /** Skip over a string written by {@link DataOutput#writeUTF(String)}. */
+    public static void skipUTF(@NotNull DataInput in) throws IOException {
+        skipFully(in, in.readUnsignedShort());
+    }
+
+    private static void skipFully(@NotNull DataInput in, int bytes) throws IOException {
+        if (in.skipBytes(bytes) != bytes) {
+            throw new EOFException();
+        }
+    }
+
     @NotNull
     public static final UUID ZERO_UUID = new UUID(0L, 0L);
 
@@ -232,7 +531,15 @@ final class Serialization {
         MAP,
         /** ConfigurationSerializable whose root map has a small number of entries whose amount fit into a byte. */
         CONFIGURATION_SERIALIZABLE_BYTE,
-        CONFIGURATION_SERIALIZABLE;
+        CONFIGURATION_SERIALIZABLE,
+        /** String stored in the {@link Dictionary}, by its varint index. */
+        STRING_REF,
+        /** List with varint amount of entries. */
+        LIST_VAR,
+        /** Map with varint amount of entries, whose keys are in the {@link Dictionary}. */
+        MAP_VAR,
+        /** ConfigurationSerializable with varint amount of entries, whose alias and keys are in the {@link Dictionary}. */
+        CONFIGURATION_SERIALIZABLE_VAR;
 
         static final SerializedType[] VALUES = values();
     }
@@ -0,0 +1,114 @@
+package com.darkyen.minecraft;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Array list, which can take an immutable {@link #snapshot()} of itself in constant time.
+ * The snapshot shares the array with the list, the list copies it only when it is changed while shared (copy on write),
+ * so there is at most one copy per snapshot, no matter how many changes follow.
+ *
+ * Not thread safe, but the snapshot can be read from any thread after it is taken.
+ */
+final class SnapshotList<T> extends AbstractList<T> implements RandomAccess {
+
+    private Object @NotNull [] elements = new Object[16];
+    private int size = 0;
+    /** Whether {@link #elements} are used by a snapshot and must not be modified */
+    private boolean shared = false;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: "+index+", size: "+size);
+        }
+        return (T) elements[index];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T set(int index, T element) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: "+index+", size: "+size);
+        }
+        final Object[] elements = writableElements(size);
+        final T old = (T) elements[index];
+        elements[index] = element;
+        return old;
+    }
+
+    @Override
+    public boolean add(T element) {
+        final int size = this.size;
+        writableElements(size + 1)[size] = element;
+        this.size = size + 1;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        final int size = this.size;
+        final Object[] elements = writableElements(size);
+        System.arraycopy(elements, toIndex, elements, fromIndex, size - toIndex);
+        final int newSize = size - (toIndex - fromIndex);
+        Arrays.fill(elements, newSize, size, null);
+        this.size = newSize;
+        modCount++;
+    }
+
+    /** @return elements which can be modified and have at least the given capacity */
+    private Object @NotNull [] writableElements(int capacity) {
+        Object[] elements = this.elements;
+        if (shared || capacity > elements.length) {
+            int newCapacity = elements.length;
+            while (newCapacity < capacity) {
+                newCapacity <<= 1;
+            }
+            elements = this.elements = Arrays.copyOf(elements, newCapacity);
+            shared = false;
+        }
+        return elements;
+    }
+
+    /** @return immutable copy of the list as it is now, which takes constant time */
+    @NotNull
+    public List<T> snapshot() {
+        shared = true;
+        return new Snapshot<>(elements, size);
+    }
+
+    private static final class Snapshot<T> extends AbstractList<T> implements RandomAccess {
+        private final Object @NotNull [] elements;
+        private final int size;
+
+        Snapshot(Object @NotNull [] elements, int size) {
+            this.elements = elements;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: "+index+", size: "+size);
+            }
+            return (T) elements[index];
+        }
+    }
+}
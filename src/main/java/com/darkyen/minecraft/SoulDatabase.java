@@ -14,29 +14,58 @@ import org.bukkit.util.NumberConversions;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import static com.darkyen.minecraft.Serialization.ZERO_UUID;
 import static com.darkyen.minecraft.Serialization.deserializeObject;
 import static com.darkyen.minecraft.Serialization.deserializeUUID;
+import static com.darkyen.minecraft.Serialization.readKey;
+import static com.darkyen.minecraft.Serialization.readVarInt;
 import static com.darkyen.minecraft.Serialization.serializeObject;
 import static com.darkyen.minecraft.Serialization.serializeUUID;
+import static com.darkyen.minecraft.Serialization.skipKey;
+import static com.darkyen.minecraft.Serialization.skipObject;
+import static com.darkyen.minecraft.Serialization.transcodeObject;
+import static com.darkyen.minecraft.Serialization.varIntLength;
+import static com.darkyen.minecraft.Serialization.writeKey;
+import static com.darkyen.minecraft.Serialization.writeVarInt;
 import static com.darkyen.minecraft.Util.saturatedAdd;
 
 /**
@@ -47,131 +76,1523 @@ final class SoulDatabase {
 
     private static final Logger LOG = Logger.getLogger("DeadSouls-ItemStore");
 
-    static final int CURRENT_DB_VERSION = 1;
+    static final int CURRENT_DB_VERSION = 6;
+    /** Starts each record in db version 4+, so that reading can find the next record after damaged bytes */
+    private static final int RECORD_MAGIC = 0x536F756C;
+    /** Magic, payload length and payload CRC */
+    private static final int RECORD_HEADER_SIZE = 12;
+    /** Whether large files are read through {@link DataInputMapped}, see {@link #openForReading(Path)} */
+    private static final boolean MAPPED_READ = !System.getProperty("os.name", "").startsWith("Windows");
+    /** Mapping has a fixed cost, which does not pay off for small files */
+    private static final long MAPPED_READ_MIN_SIZE = 1 << 20;
+    /** Souls of a snapshot are split into chunks of this many souls, which can be loaded in parallel */
+    private static final int SNAPSHOT_CHUNK_SOULS = 1024;
     private static final int SOUL_STORE_SCALE = 16;
 
+    /** Journal operation: soul with given ID has been added or changed, followed by the whole soul */
+    private static final int JOURNAL_PUT = 1;
+    /** Journal operation: soul with given ID has been removed */
+    private static final int JOURNAL_REMOVE = 2;
+    /** Journal operation: entries have been added to the {@link #dictionary}, followed by them (db version 5+) */
+    private static final int JOURNAL_DICTIONARY = 3;
+    /** Written instead of a soul ID in the snapshot record which holds the {@link #dictionary} (db version 5+) */
+    private static final int DICTIONARY_RECORD_ID = -1;
+    /** Written instead of a soul ID in the last snapshot record, which repeats the generation from the header,
+     * so that the journal can be matched even if the header is damaged. Older snapshots don't have it. */
+    private static final int TRAILER_RECORD_ID = -2;
+    /** Record header, {@link #TRAILER_RECORD_ID} and the generation */
+    private static final int TRAILER_SIZE = RECORD_HEADER_SIZE + 4 + 8;
+    /** Journal is never compacted into the snapshot before it reaches this size, even if the snapshot is tiny */
+    private static final long JOURNAL_COMPACT_MIN_SIZE = 1 << 20;
+    /** {@link java.util.zip.Deflater} level of snapshot chunks (db version 6+), the fastest one already saves most of the space */
+    static final int DEFAULT_COMPRESSION_LEVEL = 1;
+    /** Snapshot chunks which can be serialized ahead of the one which is being written */
+    static final int DEFAULT_SAVE_PIPELINE_DEPTH = 4;
+
+    /** Saves in the background, null to save synchronously */
     @Nullable
-    private final Plugin owner;
+    private final PersistenceService persistence;
+    /** Whether the database is loaded, see {@link #load()}. Until then, the indices belong to the thread which loads it
+     * and the database looks empty: queries find nothing, new souls wait in {@link #pendingSouls}
+     * and changes to souls which were found before (there are none) are not possible.
+     * Set with the write lock of {@link #soulsLock} held, after everything is loaded. */
+    private volatile boolean ready = false;
+    /** Souls added while the database is loading, they are added to it once it is ready.
+     * NOTE: Hold {@link #soulsLock} before accessing */
     @NotNull
-    private final SpatialDatabase<@NotNull Soul> souls = new SpatialDatabase<>();
+    private final ArrayList<@NotNull Soul> pendingSouls = new ArrayList<>();
+    /** Runs {@link #loadInBackground(Path, Runnable)}, null if there is none */
+    @Nullable
+    private volatile Thread loader = null;
+    /** Of {@link #load()}, null until it starts */
+    @Nullable
+    private volatile LoadProgress loadProgress = null;
+    /** Guards {@link #soulsById}, {@link #soulsByWorld} and all other indices of souls.
+     * Queries take the read lock, or only validate an optimistic read, so any number of threads can query at once.
+     * Visitors and filters of queries are called with the read lock held, so they must not modify the database,
+     * because the lock is not reentrant. Take it after {@link #SAVE_LOCK}, never before. */
+    @NotNull
+    private final StampedLock soulsLock = new StampedLock();
+    /** Spatial index of souls, one for each world with souls.
+     * NOTE: Hold {@link #soulsLock} before accessing */
+    @NotNull
+    private final HashMap<@NotNull UUID, @NotNull SpatialDatabase<@NotNull Soul>> soulsByWorld = new HashMap<>();
+    /** Can be {@link SnapshotList#snapshot()}ed for saving, without copying it and without holding the lock while the souls are saved.
+     * NOTE: Hold {@link #soulsLock} before accessing */
+    @NotNull
+    private final SnapshotList<@Nullable Soul> soulsById = new SnapshotList<>();
+    /** Stack of IDs (indices into {@link #soulsById}) which are null and can be reused.
+     * NOTE: Hold {@link #soulsLock} before accessing */
+    private int @NotNull [] freeSoulIds = new int[16];
+    private int freeSoulIdCount = 0;
+    /** Souls by their {@link Soul#getOwner() owner}, free souls are under null. Order of the souls is arbitrary.
+     * NOTE: Hold {@link #soulsLock} before accessing */
     @NotNull
-    private final ArrayList<@Nullable Soul> soulsById = new ArrayList<>();
+    private final HashMap<@Nullable UUID, @NotNull ArrayList<@NotNull Soul>> soulsByOwner = new HashMap<>();
+    /** All souls, oldest first, for fading.
+     * NOTE: Hold {@link #soulsLock} before accessing */
+    @NotNull
+    private final SoulQueue soulsByAge = new SoulQueue(SoulQueue.FADE);
+    /** Souls which have an owner, oldest first, for freeing.
+     * NOTE: Hold {@link #soulsLock} before accessing */
+    @NotNull
+    private final SoulQueue ownedSoulsByAge = new SoulQueue(SoulQueue.FREE);
+    /** Souls which were added or changed since the last save, to be written into the journal.
+     * NOTE: Hold {@link #soulsLock} before accessing */
+    @NotNull
+    private final HashSet<@NotNull Soul> changedSouls = new HashSet<>();
+    /** IDs of souls which were removed since the last save, to be written into the journal.
+     * Removed souls forget their ID, so this is the only record of it.
+     * NOTE: Hold {@link #soulsLock} before accessing */
+    private int @NotNull [] removedSoulIds = new int[16];
+    private int removedSoulIdCount = 0;
+    /** Strings and UUIDs of the souls in the snapshot and journal, which are saved with them (db version 5+).
+     * Entries are added only while saving, or before the database is used.
+     * Each {@link #save()} replaces it with a new one, so that entries of souls which are gone are not carried along forever.
+     * NOTE: Synchronize on {@link #SAVE_LOCK} before accessing */
+    @NotNull
+    private Dictionary dictionary = new Dictionary();
     @NotNull
     private final Path databaseFile;
+    /** Changes since the last snapshot in {@link #databaseFile} are appended here. */
+    @NotNull
+    private final Path journalFile;
+    /** Damaged parts of {@link #databaseFile} and {@link #journalFile} are moved here. */
+    @NotNull
+    private final Path quarantineFile;
+    /** Generation of the snapshot, the journal is used only if it has the same one.
+     * NOTE: Synchronize on {@link #SAVE_LOCK} before accessing */
+    private long journalGeneration = 0;
+    /** Size of the valid part of the journal, -1 if it has to be started anew.
+     * NOTE: Synchronize on {@link #SAVE_LOCK} before accessing */
+    private long journalSize = -1;
+    /** NOTE: Synchronize on {@link #SAVE_LOCK} before accessing */
+    private long snapshotSize = 0;
+    /** Amount of {@link #dictionary} strings and UUIDs in the snapshot and journal, newer ones have to be written before they are used.
+     * NOTE: Synchronize on {@link #SAVE_LOCK} before accessing */
+    private int persistedStrings = 0, persistedUuids = 0;
+
+    /** Incremented whenever the whole database has to be saved, because changes of {@link #changedSouls} are not enough.
+     * NOTE: Hold the write lock of {@link #soulsLock} before changing */
+    private volatile long dirtyGeneration = 0;
+    /** {@link #dirtyGeneration} included by the last successful {@link #save()}, the database is dirty while they differ.
+     * A save which fails, or which races with new changes, does not need to remember anything, the generations simply stay different.
+     * NOTE: Synchronize on {@link #SAVE_LOCK} before changing */
+    private volatile long savedGeneration = 0;
+    /** Of the last {@link #save()} or journal append, null if there was none yet */
+    @Nullable
+    private volatile SaveReport lastSave = null;
+    /** Of the snapshot chunks, see {@link #setCompressionLevel(int)} */
+    private volatile int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    /** Serializes snapshot chunks, null for {@link ForkJoinPool#commonPool()}, see {@link #setSavePipeline(int, int)}.
+     * NOTE: Synchronize on {@link #SAVE_LOCK} before accessing */
+    @Nullable
+    private ForkJoinPool savePool = null;
+    /** NOTE: Synchronize on {@link #SAVE_LOCK} before accessing */
+    private int saveThreads = 0, savePipelineDepth = DEFAULT_SAVE_PIPELINE_DEPTH;
+    /** Buffers of {@link SavePipeline}, reused by each save.
+     * NOTE: Synchronize on {@link #SAVE_LOCK} before accessing */
+    @NotNull
+    private final ArrayDeque<SaveChunk> saveChunks = new ArrayDeque<>();
+
+	/** Create the database and {@link #load()} it right away. */
+	public SoulDatabase(@Nullable Plugin owner, @NotNull Path databaseFile) {
+		this(owner, databaseFile, true);
+	}
+
+	/** @param load whether to {@link #load()} the database right away. If not, it is empty and not {@link #isReady()}
+	 *             until it is loaded, possibly on another thread. It can be used in the meantime, see {@link #ready}. */
+	public SoulDatabase(@Nullable Plugin owner, @NotNull Path databaseFile, boolean load) {
+		// Without a plugin (in tests), saves are synchronous
+		this.persistence = owner == null ? null : new PersistenceService("DeadSouls-Save", this::persistInBackground);
+		this.databaseFile = databaseFile;
+		this.journalFile = databaseFile.resolveSibling(databaseFile.getFileName().toString() + ".journal");
+		this.quarantineFile = quarantineFile(databaseFile);
+		if (load) {
+			load();
+		}
+	}
+
+	/** Load the database from its file and make it ready. Must be called exactly once.
+	 * Holds {@link #SAVE_LOCK} while loading, so nothing is saved until the database is complete. */
+	public void load() {
+		loadAndMigrate(null);
+	}
+
+	/** {@link #load()} the database, together with the souls of a legacy database file (db version 0),
+	 * which is deleted once they are saved in the new database.
+	 * They are added before the database becomes ready, so nothing can change them while they are migrated.
+	 * @param legacyDatabaseFile null or nonexistent for none */
+	public void loadAndMigrate(@Nullable Path legacyDatabaseFile) {
+		synchronized (SAVE_LOCK) {
+			if (ready) {
+				throw new IllegalStateException("Soul database is already loaded");
+			}
+			final LoadProgress progress = new LoadProgress(databaseFile);
+			this.loadProgress = progress;
+			boolean dirty = false;
+			int legacySouls = -1;
+			try {
+				final ArrayList<Soul> souls = new ArrayList<>();
+				final Snapshot snapshot = load(databaseFile, dictionary, souls, progress);
+				for (Soul soul : souls) {
+					putLoadedSoul(soul);
+				}
+				journalGeneration = snapshot.generation;
+				if (snapshot.version >= 2 && !replayJournal(snapshot.generation)) {
+					dirty = true;
+				}
+				if (snapshot.version < CURRENT_DB_VERSION || snapshot.damaged) {
+					// Old database version, migrate on next save, or replace the damaged one
+					dirty = true;
+				}
+				if (legacyDatabaseFile != null) {
+					legacySouls = loadLegacy(legacyDatabaseFile);
+					if (legacySouls >= 0) {
+						dirty = true;
+					}
+				}
+				// Entries added while migrating are written by the full save
+				persistedStrings = dictionary.strings.size();
+				persistedUuids = dictionary.uuids.size();
+				try {
+					snapshotSize = Files.size(databaseFile);
+				} catch (IOException ignored) {}
+
+				souls.clear();
+				for (int id = soulsById.size() - 1; id >= 0; id--) {
+					final Soul soul = soulsById.get(id);
+					if (soul == null) {
+						// Lowest IDs are on top of the stack and get reused first
+						releaseSoulId(id);
+					} else {
+						insertIndexed(soul);
+						souls.add(soul);
+					}
+				}
+				insertSpatial(souls);
+			} catch (Exception e) {
+				LOG.log(Level.SEVERE, "Failed to load soul database, souls will not be present", e);
+				preserveUnreadable();
+			}
+
+			final long stamp = soulsLock.writeLock();
+			try {
+				if (dirty) {
+					dirtyGeneration++;
+				}
+				// Added while loading, they get their IDs only now
+				for (Soul soul : pendingSouls) {
+					insertSoul(soul);
+				}
+				if (!pendingSouls.isEmpty()) {
+					LOG.log(Level.INFO, pendingSouls.size()+" soul(s) created while loading were added");
+				}
+				pendingSouls.clear();
+				ready = true;
+			} finally {
+				soulsLock.unlockWrite(stamp);
+			}
+			progress.done();
+
+			if (legacySouls >= 0) {
+				try {
+					if (save()) {
+						Files.deleteIfExists(legacyDatabaseFile);
+						LOG.log(Level.INFO, "Soul database migrated ("+legacySouls+" souls)");
+					}
+				} catch (IOException e) {
+					LOG.log(Level.SEVERE, "Failed to delete the migrated legacy soul database", e);
+				}
+			}
+		}
+	}
+
+	/** {@link #loadAndMigrate(Path)} the database on a new thread.
+	 * @param legacyDatabaseFile see {@link #loadAndMigrate(Path)}
+	 * @param afterLoad to run on that thread once the database is ready, null for nothing */
+	public void loadInBackground(@Nullable Path legacyDatabaseFile, @Nullable Runnable afterLoad) {
+		final Thread loader = new Thread(() -> {
+			final long start = System.nanoTime();
+			loadAndMigrate(legacyDatabaseFile);
+			LOG.log(Level.INFO, "Soul database loaded in the background in "+((System.nanoTime() - start) / 1_000_000L)+" ms");
+			if (afterLoad != null) {
+				afterLoad.run();
+			}
+		}, "DeadSouls-Load");
+		loader.setDaemon(true);
+		this.loader = loader;
+		loader.start();
+	}
+
+	/** @return whether the database is loaded, see {@link #ready} */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/** @return how much of the database is loaded, from 0 to 1 */
+	public double getLoadProgress() {
+		if (ready) {
+			return 1.0;
+		}
+		final LoadProgress progress = this.loadProgress;
+		return progress == null ? 0.0 : progress.fraction();
+	}
+
+	/** Keep a copy of the database file which could not be loaded at all, so that saving does not destroy it. */
+	private void preserveUnreadable() {
+		final Path copy = databaseFile.resolveSibling(databaseFile.getFileName().toString() + ".unreadable-" + System.currentTimeMillis());
+		try {
+			Files.copy(databaseFile, copy);
+			LOG.log(Level.SEVERE, "Soul database which could not be loaded was copied to "+copy);
+		} catch (NoSuchFileException ignored) {
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, "Failed to make a copy of the soul database which could not be loaded", e);
+		}
+	}
+
+	/** Put a soul which is being loaded to {@link #soulsById}, at its {@link Soul#id} if it has one, replacing what was there. */
+	private void putLoadedSoul(@NotNull Soul soul) {
+		final SnapshotList<@Nullable Soul> soulsById = this.soulsById;
+		final int id = soul.id;
+		if (id < 0) {
+			soul.id = soulsById.size();
+			soulsById.add(soul);
+			return;
+		}
+		while (soulsById.size() <= id) {
+			soulsById.add(null);
+		}
+		soulsById.set(id, soul);
+	}
+
+	/** Apply the changes from the journal to the freshly loaded {@link #soulsById}, if the journal belongs to the loaded snapshot.
+	 * Replay stops at the first damaged change, because skipping it could revive removed souls.
+	 * @param generation of the loaded snapshot, -1 if it is damaged. Then the journal is replayed anyway, because it most likely
+	 *                   belongs to the snapshot (it is deleted with each new snapshot), and a copy of it is quarantined.
+	 * @return false if the journal is damaged, so the database should be saved whole */
+	private boolean replayJournal(long generation) {
+		int changes = 0;
+		try (DataInputChannel in = new DataInputChannel(Files.newByteChannel(journalFile, StandardOpenOption.READ));
+		     Quarantine quarantine = new Quarantine(quarantineFile)) {
+			final int version = in.readInt();
+			final long journalGeneration = in.readLong();
+			if (version < 2 || version > CURRENT_DB_VERSION || (journalGeneration != generation && generation >= 0)) {
+				LOG.log(Level.INFO, "Soul journal does not belong to the soul database, ignoring it");
+				return true;
+			}
+
+			final long start = in.position();
+			final long end = start + in.remaining();
+			if (generation < 0) {
+				LOG.log(Level.WARNING, "Generation of the soul database is damaged, replaying the soul journal anyway and keeping its copy");
+				quarantine.add(journalFile, in, 0L, end);
+				in.position(start);
+				this.journalGeneration = journalGeneration;
+			}
+			final RecordReader records = new RecordReader();
+			long validSize = start;
+			try {
+				while (in.hasRemaining()) {
+					final SeekableDataInput record;
+					if (version >= 4) {
+						if (records.check(in, end) < 0) {
+							throw new Serialization.Exception("Damaged record at "+validSize);
+						}
+						record = records.payload();
+					} else {
+						record = in;
+					}
+					final int operation = record.readUnsignedByte();
+					if (operation == JOURNAL_DICTIONARY) {
+						dictionary.read(record);
+					} else if (operation == JOURNAL_PUT) {
+						final int soulId = record.readInt();
+						final Soul soul = version == 3 ? deserializeSoulRecord(record, version, dictionary) : deserializeSoul(record, version, dictionary, true);
+						soul.id = soulId;
+						putLoadedSoul(soul);
+					} else if (operation == JOURNAL_REMOVE) {
+						final int soulId = record.readInt();
+						if (soulId >= 0 && soulId < soulsById.size()) {
+							soulsById.set(soulId, null);
+						}
+					} else {
+						throw new Serialization.Exception("Unknown journal operation: " + operation);
+					}
+					if (record != in && record.hasRemaining()) {
+						throw new Serialization.Exception("Journal record has unexpected length");
+					}
+					validSize = in.position();
+					changes++;
+				}
+			} catch (IOException | Serialization.Exception e) {
+				// Most likely the server stopped in the middle of a write
+				LOG.log(Level.WARNING, "Soul journal is damaged after "+changes+" change(s), the rest is lost", e);
+				quarantine.add(journalFile, in, validSize, end);
+				return false;
+			}
+
+			this.journalSize = validSize;
+			LOG.log(Level.INFO, "Soul journal replayed ("+changes+" changes)");
+		} catch (NoSuchFileException ignored) {
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Failed to read soul journal, recent changes are lost", e);
+			return false;
+		}
+		return true;
+	}
+
+    /** @return immutable snapshot of souls by their ID, null for free IDs. Taken in constant time,
+     * but the next change of the souls then copies the whole list, so don't take it often, see {@link #findAllSouls}. */
+    @NotNull
+    List<@Nullable Soul> getSoulsById() {
+        if (!ready) {
+            return Collections.emptyList();
+        }
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.readLock();
+        try {
+            // Concurrent readers only mark the list as shared, which they all do the same way
+            return soulsById.snapshot();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** @param owner null means souls of any owner
+     * @param world null means souls of any world */
+    ArrayList<@NotNull Soul> getSoulsByOwnerAndWorld(@Nullable UUID owner, @Nullable UUID world) {
+        final ArrayList<Soul> result = new ArrayList<>();
+        if (owner != null) {
+            findSoulsByOwner(owner, world, result);
+        } else {
+            findAllSouls(world, result);
+        }
+        return result;
+    }
+
+    /** Add all souls to the out collection. Unlike {@link #getSoulsById()}, this does not make the next change copy the soul list,
+     * so it is meant for queries which come often, like those of the API.
+     * @param world null means souls of any world */
+    void findAllSouls(@Nullable UUID world, @NotNull Collection<? super Soul> out) {
+        if (!ready) {
+            return;
+        }
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.readLock();
+        try {
+            final SnapshotList<@Nullable Soul> soulsById = this.soulsById;
+            final int size = soulsById.size();
+            for (int i = 0; i < size; i++) {
+                final Soul soul = soulsById.get(i);
+                if (soul != null && (world == null || world.equals(soul.locationWorld))) {
+                    out.add(soul);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Add souls currently owned by the owner to the out collection.
+     * @param owner null means souls which are free
+     * @param world null means souls of any world */
+    void findSoulsByOwner(@Nullable UUID owner, @Nullable UUID world, @NotNull Collection<? super Soul> out) {
+        if (!ready) {
+            return;
+        }
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.readLock();
+        try {
+            final ArrayList<Soul> souls = soulsByOwner.get(owner);
+            if (souls == null) {
+                return;
+            }
+            //noinspection ForLoopReplaceableByForEach
+            for (int i = 0; i < souls.size(); i++) {
+                final Soul soul = souls.get(i);
+                if (world == null || world.equals(soul.locationWorld)) {
+                    out.add(soul);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Add the soul to all secondary indices.
+     * NOTE: Hold the write lock of {@link #soulsLock} before calling */
+    private void insertIndexed(@NotNull Soul soul) {
+        soulsByAge.add(soul);
+        insertOwned(soul);
+    }
+
+    /** Remove the soul from all secondary indices.
+     * NOTE: Hold the write lock of {@link #soulsLock} before calling */
+    private void removeIndexed(@NotNull Soul soul) {
+        soulsByAge.remove(soul);
+        removeOwned(soul);
+    }
+
+    /** NOTE: Hold the write lock of {@link #soulsLock} before calling */
+    private void insertOwned(@NotNull Soul soul) {
+        final UUID owner = soul.getOwner();
+        if (owner != null) {
+            ownedSoulsByAge.add(soul);
+        }
+        ArrayList<Soul> souls = soulsByOwner.get(owner);
+        if (souls == null) {
+            souls = new ArrayList<>();
+            soulsByOwner.put(owner, souls);
+        }
+        soul.ownerSlot = souls.size();
+        souls.add(soul);
+    }
+
+    /** NOTE: Hold the write lock of {@link #soulsLock} before calling */
+    private void removeOwned(@NotNull Soul soul) {
+        final UUID owner = soul.getOwner();
+        if (owner != null) {
+            ownedSoulsByAge.remove(soul);
+        }
+        final ArrayList<Soul> souls = soulsByOwner.get(owner);
+        final int slot = soul.ownerSlot;
+        if (souls == null || slot < 0 || slot >= souls.size() || souls.get(slot) != soul) {
+            LOG.log(Level.WARNING, "Soul "+soul+" already removed from BY-OWNER");
+            return;
+        }
+        final Soul last = souls.remove(souls.size() - 1);
+        if (last != soul) {
+            souls.set(slot, last);
+            last.ownerSlot = slot;
+        }
+        if (souls.isEmpty()) {
+            soulsByOwner.remove(owner);
+        }
+        soul.ownerSlot = -1;
+    }
+
+    /** Change the owner of the soul, keeping the owner index up to date. */
+    private void setOwner(@NotNull Soul soul, @Nullable UUID owner) {
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.writeLock();
+        try {
+            setOwnerLocked(soul, owner);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** NOTE: Hold the write lock of {@link #soulsLock} before calling */
+    private void setOwnerLocked(@NotNull Soul soul, @Nullable UUID owner) {
+        if (soul.ownerSlot < 0) {
+            // Not in the database
+            soul.setOwner(owner);
+            return;
+        }
+        removeOwned(soul);
+        soul.setOwner(owner);
+        insertOwned(soul);
+        changedSouls.add(soul);
+    }
+
+    /** @return whether the player can see and collect the soul. Souls which should have become free by now are accessible,
+     * but they are freed only by {@link #freeExpiredSouls(long)}, so that this can be used as a filter of {@link #findNearestSouls}. */
+    boolean isAccessibleBy(@NotNull Soul soul, @NotNull OfflinePlayer player, long now, long soulFreeAfterMs) {
+        final UUID owner = soul.getOwner();
+        if (owner != null && !owner.equals(player.getUniqueId())) {
+            // Soul of somebody else, not accessible unless expired
+            return saturatedAdd(soul.timestamp, soulFreeAfterMs) <= now;
+        }
+        return true;
+    }
+
+    /** @return true if free, false if already freed */
+    boolean freeSoul(@NotNull Soul soul, long now, long soulFreeAfterMs) {
+        if (soul.getOwner() == null) {
+            return false;
+        }
+
+        setOwner(soul, null);
+        // Did soul become free on its own?
+        return saturatedAdd(soul.timestamp, soulFreeAfterMs) > now;
+    }
+
+    @NotNull
+    public static ArrayList<Soul> load(@NotNull Path databaseFile) throws IOException, Serialization.Exception {
+        final ArrayList<Soul> result = new ArrayList<>();
+        load(databaseFile, new Dictionary(), result);
+        return result;
+    }
+
+    /** Open the file through a memory mapping if it is large, otherwise through a buffered channel.
+     * Windows does not allow replacing a file while it is mapped and Java 8 can't unmap it deterministically,
+     * so there the channel is used always. */
+    @NotNull
+    private static SeekableDataInput openForReading(@NotNull Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (MAPPED_READ && channel.size() >= MAPPED_READ_MIN_SIZE) {
+                return new DataInputMapped(channel);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to map "+file+", reading it normally", e);
+        }
+        return new DataInputChannel(channel, 1 << 16);
+    }
+
+    @NotNull
+    static Path quarantineFile(@NotNull Path databaseFile) {
+        return databaseFile.resolveSibling(databaseFile.getFileName().toString() + ".quarantine");
+    }
+
+    /** How much of a database file was loaded so far, reported to the log every 10 %.
+     * Chunks of db version 4+ are reported as they are loaded, older versions only at the end. */
+    static final class LoadProgress {
+        private final long totalBytes;
+        @NotNull
+        private final AtomicLong loadedBytes = new AtomicLong();
+
+        LoadProgress(@NotNull Path databaseFile) {
+            long totalBytes;
+            try {
+                totalBytes = Files.size(databaseFile);
+            } catch (IOException e) {
+                totalBytes = 0L;
+            }
+            this.totalBytes = totalBytes;
+        }
+
+        /** Called from any thread, as the chunks are loaded. */
+        void loaded(long bytes) {
+            final long totalBytes = this.totalBytes;
+            if (totalBytes <= 0L) {
+                return;
+            }
+            final long before = loadedBytes.getAndAdd(bytes);
+            final long after = Math.min(before + bytes, totalBytes);
+            final long percent = after * 100L / totalBytes;
+            if (before * 10L / totalBytes != after * 10L / totalBytes && percent < 100L) {
+                LOG.log(Level.INFO, "Loading souls: "+percent+" %");
+            }
+        }
+
+        void done() {
+            loadedBytes.set(Math.max(totalBytes, 0L));
+        }
+
+        /** @return from 0 to 1 */
+        double fraction() {
+            final long totalBytes = this.totalBytes;
+            if (totalBytes <= 0L) {
+                return 0.0;
+            }
+            return Math.min((double) loadedBytes.get() / totalBytes, 1.0);
+        }
+    }
+
+    /** Header of a loaded snapshot. */
+    static final class Snapshot {
+        /** Database version of the snapshot, current version if there is no snapshot */
+        final int version;
+        /** Generation of the snapshot, see {@link #journalGeneration}, 0 for versions without it, -1 if it is damaged (header and trailer) */
+        final long generation;
+        /** Whether some souls could not be loaded */
+        final boolean damaged;
+
+        Snapshot(int version, long generation, boolean damaged) {
+            this.version = version;
+            this.generation = generation;
+            this.damaged = damaged;
+        }
+    }
+
+    /** Load the souls of a database snapshot into out.
+     * Souls from db version 2 and newer have their {@link Soul#id} set, older ones don't.
+     * Parts of the file which can't be loaded are moved to the {@link #quarantineFile(Path)} and the rest is loaded.
+     * Version 4+ can continue after the damage, older versions lose everything from the damage to the end of the chunk.
+     * @param dictionary empty, filled with the dictionary of the snapshot, or with entries of older versions as they are converted */
+    @NotNull
+    public static Snapshot load(@NotNull Path databaseFile, @NotNull Dictionary dictionary, @NotNull ArrayList<Soul> out) throws IOException, Serialization.Exception {
+        return load(databaseFile, dictionary, out, null);
+    }
+
+    /** @param progress to report loaded bytes to, null to not report them
+     * @see #load(Path, Dictionary, ArrayList) */
+    @NotNull
+    static Snapshot load(@NotNull Path databaseFile, @NotNull Dictionary dictionary, @NotNull ArrayList<Soul> out,
+                         @Nullable LoadProgress progress) throws IOException, Serialization.Exception {
+        final int version;
+        long generation;
+        final int soulCountBefore = out.size();
+        final Quarantine quarantine = new Quarantine(quarantineFile(databaseFile));
+        try (SeekableDataInput in = openForReading(databaseFile)) {
+            version = in.readInt();
+            if (version > CURRENT_DB_VERSION || version < 0) {
+                throw new Serialization.Exception("Invalid database version, please upgrade the plugin");
+            }
+            generation = version >= 2 ? in.readLong() : 0;
+            final long end = in.position() + in.remaining();
+            if (version >= 4) {
+                generation = loadCheckedChunks(databaseFile, in, version, generation, end, dictionary, out, quarantine, progress);
+            } else if (version == 3) {
+                loadCountedChunks(databaseFile, in, version, end, dictionary, out, quarantine);
+            } else {
+                while (in.hasRemaining()) {
+                    final long soulPosition = in.position();
+                    try {
+                        final int soulId = version >= 2 ? in.readInt() : -1;
+                        final Soul soul = deserializeSoul(in, version, dictionary, true);
+                        soul.id = soulId;
+                        out.add(soul);
+                    } catch (IOException | Serialization.Exception e) {
+                        LOG.log(Level.WARNING, "Soul database is damaged, souls after the damage are lost", e);
+                        quarantine.add(databaseFile, in, soulPosition, end);
+                        break;
+                    }
+                }
+            }
+        } catch (NoSuchFileException ignored) {
+            return new Snapshot(CURRENT_DB_VERSION, 0, false);
+        } finally {
+            quarantine.close();
+        }
+
+        LOG.log(Level.INFO, "Soul database loaded ("+(out.size() - soulCountBefore)+" souls, db version "+version+")");
+        return new Snapshot(version, generation, quarantine.damageCount > 0);
+    }
+
+    private static void writeSnapshotHeader(@NotNull DataOutputChannel out, long generation, int soulCount,
+                                            long @NotNull [] chunkPositions, long dictionaryPosition) throws IOException {
+        out.writeInt(CURRENT_DB_VERSION);
+        out.writeLong(generation);
+        out.writeInt(soulCount);
+        out.writeInt(chunkPositions.length);
+        for (long chunkPosition : chunkPositions) {
+            out.writeLong(chunkPosition);
+        }
+        out.writeLong(dictionaryPosition);
+        out.writeInt(snapshotHeaderCrc(CURRENT_DB_VERSION, generation, soulCount, chunkPositions, dictionaryPosition));
+    }
+
+    /** @param dictionaryPosition ignored before db version 5 */
+    private static int snapshotHeaderCrc(int version, long generation, int soulCount, long @NotNull [] chunkPositions, long dictionaryPosition) {
+        final ByteBuffer header = ByteBuffer.allocate(28 + chunkPositions.length * 8);
+        header.putInt(version).putLong(generation).putInt(soulCount).putInt(chunkPositions.length);
+        for (long chunkPosition : chunkPositions) {
+            header.putLong(chunkPosition);
+        }
+        if (version >= 5) {
+            header.putLong(dictionaryPosition);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, header.position());
+        return (int) crc.getValue();
+    }
+
+    /** Load souls of a checksummed snapshot (version 4+), whose header continues at the current position of in.
+     * The header lists where each chunk of souls starts, so the chunks are loaded in parallel.
+     * This is safe, because the items, which need Bukkit to deserialize, are kept serialized.
+     * In version 5+, the dictionary record, which the souls refer to, is loaded first, or its copy if it is damaged.
+     * @return generation of the snapshot, which is taken from the trailer if the header is damaged, -1 if both are damaged */
+    private static long loadCheckedChunks(@NotNull Path databaseFile, @NotNull SeekableDataInput in, int version, long generation, long end,
+                                             @NotNull Dictionary dictionary, @NotNull ArrayList<Soul> out, @NotNull Quarantine quarantine,
+                                             @Nullable LoadProgress progress) throws IOException, Serialization.Exception {
+        final long headerStart = in.position();
+        long[] chunkPositions = null;
+        long dictionaryPosition = -1;
+        try {
+            final int soulCount = in.readInt();
+            final int chunkCount = in.readInt();
+            if (soulCount >= 0 && chunkCount >= 0 && chunkCount <= (end - in.position()) / 8) {
+                chunkPositions = new long[chunkCount];
+                for (int i = 0; i < chunkCount; i++) {
+                    chunkPositions[i] = in.readLong();
+                }
+                if (version >= 5) {
+                    dictionaryPosition = in.readLong();
+                }
+                if (in.readInt() != snapshotHeaderCrc(version, generation, soulCount, chunkPositions, dictionaryPosition)) {
+                    chunkPositions = null;
+                }
+            }
+        } catch (IOException e) {
+            chunkPositions = null;
+        }
+
+        final RecordReader records = new RecordReader();
+        final boolean headerValid = chunkPositions != null;
+        if (!headerValid) {
+            LOG.log(Level.WARNING, "Soul database header is damaged, searching for souls");
+            // Records of the first chunk follow right after the header, which will be skipped as damaged
+            chunkPositions = new long[] { headerStart };
+            generation = readTrailer(in, headerStart, end, records);
+            if (generation >= 0) {
+                end -= TRAILER_SIZE;
+            } else {
+                LOG.log(Level.WARNING, "Soul database trailer is damaged or missing, the generation is not known");
+            }
+        }
+        if (version >= 5) {
+            final long fileEnd = end;
+            try (CompressedBlocks.Reader blocks = version >= 6 ? new CompressedBlocks.Reader() : null) {
+                long position;
+                if (headerValid && dictionaryPosition >= headerStart && dictionaryPosition < fileEnd) {
+                    // The dictionary follows the last chunk
+                    position = dictionaryPosition;
+                    end = dictionaryPosition;
+                } else {
+                    position = findDictionary(in, headerStart, fileEnd, records, blocks);
+                }
+                while (position >= 0) {
+                    in.position(position);
+                    if (readDictionary(in, fileEnd, records, dictionary)) {
+                        break;
+                    }
+                    // Snapshot has a second copy of the dictionary, because every soul depends on it
+                    LOG.log(Level.WARNING, "Soul database dictionary at "+position+" is damaged, searching for its copy");
+                    final long next = records.next(in, position, fileEnd, blocks);
+                    if (headerValid) {
+                        // Otherwise the whole file is searched for souls, which quarantines this as well
+                        quarantine.add(databaseFile, in, position, next);
+                    }
+                    position = findDictionary(in, next, fileEnd, records, blocks);
+                }
+                if (position < 0) {
+                    LOG.log(Level.SEVERE, "Soul database dictionary is lost, souls which refer to it can't be loaded and will be quarantined");
+                }
+            }
+        }
+
+        final int chunkCount = chunkPositions.length;
+        final long chunksEnd = end;
+        final ArrayList<Callable<ArrayList<Soul>>> tasks = new ArrayList<>(chunkCount);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            final long chunkStart = chunkPositions[chunk];
+            final long chunkEnd = chunk + 1 < chunkCount ? chunkPositions[chunk + 1] : chunksEnd;
+            tasks.add(() -> {
+                final ArrayList<Soul> souls = new ArrayList<>(SNAPSHOT_CHUNK_SOULS);
+                final SeekableDataInput chunkIn = openChunk(databaseFile, in, chunkCount);
+                try (CompressedBlocks.Reader blocks = version >= 6 ? new CompressedBlocks.Reader() : null) {
+                    loadCheckedChunk(databaseFile.getFileName().toString(), chunkIn, version, chunkStart, chunkEnd, dictionary, souls, quarantine, blocks);
+                } finally {
+                    if (chunkIn != in) {
+                        chunkIn.close();
+                    }
+                }
+                if (progress != null) {
+                    progress.loaded(chunkEnd - chunkStart);
+                }
+                return souls;
+            });
+        }
+        for (ArrayList<Soul> souls : runChunks(tasks)) {
+            out.addAll(souls);
+        }
+        return generation;
+    }
+
+    /** @return generation from the trailer record, which ends at end, -1 if there is no intact one */
+    private static long readTrailer(@NotNull SeekableDataInput in, long start, long end, @NotNull RecordReader records) throws IOException {
+        if (end - start < TRAILER_SIZE) {
+            return -1;
+        }
+        in.position(end - TRAILER_SIZE);
+        if (records.check(in, end) != TRAILER_SIZE - RECORD_HEADER_SIZE) {
+            return -1;
+        }
+        final DataInputChannel record = records.payload();
+        if (record.readInt() != TRAILER_RECORD_ID) {
+            return -1;
+        }
+        return record.readLong();
+    }
+
+    /** Read the dictionary record at the current position into the empty dictionary.
+     * @return false if there is no intact dictionary record */
+    private static boolean readDictionary(@NotNull SeekableDataInput in, long end, @NotNull RecordReader records,
+                                          @NotNull Dictionary dictionary) throws IOException {
+        if (records.check(in, end) < 0) {
+            return false;
+        }
+        final DataInputChannel record = records.payload();
+        if (record.readInt() != DICTIONARY_RECORD_ID) {
+            return false;
+        }
+        try {
+            dictionary.read(record);
+            return true;
+        } catch (Serialization.Exception e) {
+            LOG.log(Level.WARNING, "Soul database dictionary is intact, but could not be loaded", e);
+            return false;
+        }
+    }
+
+    /** @return position of the first intact dictionary record after start, -1 if there is none */
+    private static long findDictionary(@NotNull SeekableDataInput in, long start, long end, @NotNull RecordReader records,
+                                       @Nullable CompressedBlocks.Reader blocks) throws IOException {
+        long position = start;
+        while (position < end) {
+            in.position(position);
+            final int length = records.check(in, end);
+            if (length >= 0) {
+                if (records.payload().readInt() == DICTIONARY_RECORD_ID) {
+                    return position;
+                }
+                position += RECORD_HEADER_SIZE + length;
+                continue;
+            }
+            if (blocks != null) {
+                in.position(position);
+                final int compressedLength = blocks.check(in, end);
+                if (compressedLength >= 0) {
+                    // Dictionary is never compressed
+                    position += CompressedBlocks.BLOCK_HEADER_SIZE + compressedLength;
+                    continue;
+                }
+            }
+            position = records.next(in, position, end, blocks);
+        }
+        return -1;
+    }
+
+    /** Load souls of a checksummed chunk between start and end.
+     * Damaged bytes are quarantined, then the loading continues with the next intact record or block.
+     * @param source name of what is being loaded, for the quarantine
+     * @param blocks to read compressed blocks of records (version 6+), null if there are none */
+    private static void loadCheckedChunk(@NotNull String source, @NotNull SeekableDataInput in, int version, long start, long end,
+                                         @NotNull Dictionary dictionary, @NotNull ArrayList<Soul> out, @NotNull Quarantine quarantine,
+                                         @Nullable CompressedBlocks.Reader blocks) throws IOException {
+        final RecordReader records = new RecordReader();
+        long position = start;
+        while (position < end) {
+            in.position(position);
+            final int length = records.check(in, end);
+            if (length >= 0) {
+                final long recordEnd = position + RECORD_HEADER_SIZE + length;
+                final DataInputChannel record = records.payload();
+                try {
+                    final int soulId = record.readInt();
+                    if (soulId == DICTIONARY_RECORD_ID || soulId == TRAILER_RECORD_ID) {
+                        // Already loaded
+                        position = recordEnd;
+                        continue;
+                    }
+                    final Soul soul = deserializeSoul(record, version, dictionary, true);
+                    if (!record.hasRemaining()) {
+                        soul.id = soulId;
+                        out.add(soul);
+                        position = recordEnd;
+                        continue;
+                    }
+                    LOG.log(Level.WARNING, "Soul record at "+position+" has unexpected length");
+                } catch (IOException | Serialization.Exception e) {
+                    LOG.log(Level.WARNING, "Soul record at "+position+" is intact, but could not be loaded", e);
+                }
+            } else if (blocks != null) {
+                in.position(position);
+                final int compressedLength = blocks.check(in, end);
+                if (compressedLength >= 0) {
+                    final long blockEnd = position + CompressedBlocks.BLOCK_HEADER_SIZE + compressedLength;
+                    final String blockSource = source + " block at " + position;
+                    try (DataInputChannel blockIn = new DataInputChannel(blocks.inflate())) {
+                        // Blocks don't nest
+                        loadCheckedChunk(blockSource, blockIn, version, 0L, blockIn.remaining(), dictionary, out, quarantine, null);
+                        position = blockEnd;
+                        continue;
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "Compressed "+blockSource+" is intact, but could not be loaded", e);
+                    }
+                }
+            }
+
+            final long next = records.next(in, position, end, blocks);
+            quarantine.add(source, in, position, next);
+            position = next;
+        }
+    }
+
+    /** Load souls of a snapshot with length-prefixed records (version 3), whose header continues at the current position of in.
+     * Like {@link #loadCheckedChunks}, but the chunks are defined by soul counts and damage can't be skipped,
+     * so the rest of the chunk is lost. */
+    private static void loadCountedChunks(@NotNull Path databaseFile, @NotNull SeekableDataInput in, int version, long end, @NotNull Dictionary dictionary,
+                                          @NotNull ArrayList<Soul> out, @NotNull Quarantine quarantine) throws IOException, Serialization.Exception {
+        final int soulCount = in.readInt();
+        final int soulsPerChunk = in.readInt();
+        final int chunkCount = in.readInt();
+        if (soulCount < 0 || soulsPerChunk <= 0 || chunkCount < 0 || (soulCount + soulsPerChunk - 1) / soulsPerChunk > chunkCount) {
+            throw new Serialization.Exception("Invalid snapshot header: "+soulCount+" souls in "+chunkCount+" chunks of "+soulsPerChunk);
+        }
+        final long[] chunkPositions = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunkPositions[i] = in.readLong();
+        }
+
+        final int usedChunks = (soulCount + soulsPerChunk - 1) / soulsPerChunk;
+        final ArrayList<Callable<ArrayList<Soul>>> tasks = new ArrayList<>(usedChunks);
+        for (int chunk = 0; chunk < usedChunks; chunk++) {
+            final long chunkPosition = chunkPositions[chunk];
+            final long chunkEnd = chunk + 1 < usedChunks ? chunkPositions[chunk + 1] : end;
+            final int chunkSouls = Math.min(soulsPerChunk, soulCount - chunk * soulsPerChunk);
+            tasks.add(() -> {
+                final ArrayList<Soul> souls = new ArrayList<>(chunkSouls);
+                final SeekableDataInput chunkIn = openChunk(databaseFile, in, usedChunks);
+                try {
+                    chunkIn.position(chunkPosition);
+                    for (int i = 0; i < chunkSouls; i++) {
+                        final long soulPosition = chunkIn.position();
+                        try {
+                            final int soulId = chunkIn.readInt();
+                            final Soul soul = deserializeSoulRecord(chunkIn, version, dictionary);
+                            soul.id = soulId;
+                            souls.add(soul);
+                        } catch (IOException | Serialization.Exception e) {
+                            LOG.log(Level.WARNING, "Soul database is damaged, souls after the damage in the chunk are lost", e);
+                            quarantine.add(databaseFile, chunkIn, soulPosition, chunkEnd);
+                            break;
+                        }
+                    }
+                } finally {
+                    if (chunkIn != in) {
+                        chunkIn.close();
+                    }
+                }
+                return souls;
+            });
+        }
+        for (ArrayList<Soul> souls : runChunks(tasks)) {
+            out.addAll(souls);
+        }
+    }
+
+    /** @return input for loading a chunk, which is in itself if there is just one chunk, or a new one otherwise */
+    @NotNull
+    private static SeekableDataInput openChunk(@NotNull Path databaseFile, @NotNull SeekableDataInput in, int chunkCount) throws IOException {
+        if (chunkCount <= 1) {
+            return in;
+        }
+        if (in instanceof DataInputMapped) {
+            return ((DataInputMapped) in).duplicate();
+        }
+        return new DataInputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.READ), 1 << 16);
+    }
+
+    /** Run the chunk loading tasks, in parallel if there is more than one.
+     * @return results of the tasks, in order */
+    @NotNull
+    private static <T> ArrayList<T> runChunks(@NotNull ArrayList<Callable<T>> tasks) throws IOException, Serialization.Exception {
+        final ArrayList<T> results = new ArrayList<>(tasks.size());
+        if (tasks.size() == 1) {
+            try {
+                results.add(tasks.get(0).call());
+                return results;
+            } catch (IOException | Serialization.Exception | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Failed to load souls", e);
+            }
+        }
+
+        for (Future<T> task : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                results.add(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading souls", e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof Serialization.Exception) {
+                    throw (Serialization.Exception) cause;
+                }
+                throw new IOException("Failed to load souls", cause);
+            }
+        }
+        return results;
+    }
+
+    /** Serializes chunks of snapshot souls on the executor, while the saving thread writes the finished chunks in order,
+     * so that a save takes about as long as the slower of the two, instead of both.
+     * At most depth chunks are in flight, so the memory use is bounded. */
+    private static final class SavePipeline implements Closeable {
+        @NotNull
+        private final ExecutorService executor;
+        @NotNull
+        private final ArrayDeque<SaveChunk> pool;
+        private final int depth;
+        private final int compressionLevel;
+        @NotNull
+        private final Dictionary dictionary;
+        @NotNull
+        private final DataOutputChannel out;
+        private final long @NotNull [] chunkPositions;
+        @NotNull
+        private final ArrayDeque<Future<SaveChunk>> pending = new ArrayDeque<>();
+        private int writtenChunks = 0;
+
+        /** Amount of souls written, of those which had to be serialized anew and of souls which failed to serialize */
+        int soulCount = 0, serializedSouls = 0, failedWrites = 0;
+
+        /** @param pool of reusable chunk buffers
+         * @param chunkPositions into which the position of each chunk in out is stored */
+        SavePipeline(@NotNull ExecutorService executor, @NotNull ArrayDeque<SaveChunk> pool, int depth, int compressionLevel,
+                     @NotNull Dictionary dictionary, @NotNull DataOutputChannel out, long @NotNull [] chunkPositions) {
+            this.executor = executor;
+            this.pool = pool;
+            this.depth = depth;
+            this.compressionLevel = compressionLevel;
+            this.dictionary = dictionary;
+            this.out = out;
+            this.chunkPositions = chunkPositions;
+        }
+
+        /** Serialize the souls as the next chunk. Writes the oldest chunk first, if there are too many in flight. */
+        void submit(@NotNull List<SavedSoul> souls) throws IOException {
+            if (pending.size() >= depth) {
+                writeNext();
+            }
+            final SaveChunk pooled = pool.poll();
+            final SaveChunk chunk = pooled != null ? pooled : new SaveChunk();
+            final Dictionary dictionary = this.dictionary;
+            final int compressionLevel = this.compressionLevel;
+            pending.add(executor.submit(() -> chunk.serialize(souls, dictionary, compressionLevel)));
+        }
+
+        /** Write all remaining chunks. */
+        void finish() throws IOException {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        }
+
+        private void writeNext() throws IOException {
+            final SaveChunk chunk = await(pending.remove());
+            try {
+                chunkPositions[writtenChunks++] = out.position();
+                chunk.write(out);
+                soulCount += chunk.soulCount;
+                serializedSouls += chunk.serializedSouls;
+                failedWrites += chunk.failedWrites;
+            } finally {
+                pool.add(chunk);
+            }
+        }
+
+        @NotNull
+        private static SaveChunk await(@NotNull Future<SaveChunk> chunk) throws IOException {
+            try {
+                return chunk.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while saving souls", e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Failed to save souls", cause);
+            }
+        }
 
-    private boolean dirty = false;
+        /** Wait for chunks which were not written because of a failure, so that their buffers are not reused too early. */
+        @Override
+        public void close() {
+            Future<SaveChunk> chunk;
+            while ((chunk = pending.poll()) != null) {
+                try {
+                    pool.add(chunk.get());
+                } catch (InterruptedException e) {
+                    // Its buffer is left to the garbage collector
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ignored) {}
+            }
+            // Depth may have been lowered since they were created
+            while (pool.size() > depth) {
+                pool.poll();
+            }
+        }
+    }
 
-	public SoulDatabase(@Nullable Plugin owner, @NotNull Path databaseFile) {
-		this.owner = owner;
-		this.databaseFile = databaseFile;
+    /** Soul with the ID it had when it was taken for saving. The soul forgets its ID if it is removed in the meantime. */
+    private static final class SavedSoul {
+        final int id;
+        @NotNull
+        final Soul soul;
 
-		try {
-			for (Soul soul : load(databaseFile)) {
-			    soul.id = soulsById.size();
-				soulsById.add(soul);
-				souls.insert(soul);
-			}
-		} catch (Exception e) {
-			LOG.log(Level.SEVERE, "Failed to load soul database, souls will not be present", e);
-		}
-	}
+        SavedSoul(int id, @NotNull Soul soul) {
+            this.id = id;
+            this.soul = soul;
+        }
+    }
 
-    /** NOTE: Synchronize on the collection before accessing */
-    @NotNull
-    ArrayList<@Nullable Soul> getSoulsById() {
-	    return soulsById;
+    /** Buffer of {@link SavePipeline}, which holds one chunk of records, compressed into a block if enabled. */
+    private static final class SaveChunk {
+        @NotNull
+        private final RecordWriter records = new RecordWriter();
+        @NotNull
+        private final ByteBufferChannel channel = new ByteBufferChannel();
+        @NotNull
+        private final DataOutputChannel out = new DataOutputChannel(channel);
+        @Nullable
+        private CompressedBlocks.Compressor compressor = null;
+        private boolean compressed;
+        int soulCount, serializedSouls, failedWrites;
+
+        /** Replace the contents of this chunk with records of the souls. */
+        @NotNull
+        SaveChunk serialize(@NotNull List<SavedSoul> souls, @NotNull Dictionary dictionary, int compressionLevel) throws IOException {
+            final DataOutputChannel out = this.out;
+            out.position(0L);
+            channel.truncate(0L);
+            final RecordWriter records = this.records;
+            int soulCount = 0, serializedSouls = 0, failedWrites = 0;
+            for (SavedSoul saved : souls) {
+                final Soul soul = saved.soul;
+                final DataOutputChannel payload = records.begin();
+                payload.writeInt(saved.id);
+                if (!soul.state().isItemsSerialized()) {
+                    serializedSouls++;
+                }
+                if (serializeSoul(soul, payload, dictionary)) {
+                    records.end(out);
+                    soulCount++;
+                } else {
+                    // Leave it out
+                    failedWrites++;
+                }
+            }
+            out.flush();
+            this.soulCount = soulCount;
+            this.serializedSouls = serializedSouls;
+            this.failedWrites = failedWrites;
+
+            // Chunk without souls is left empty, even when compressed
+            compressed = compressionLevel > 0 && soulCount > 0;
+            if (compressed) {
+                CompressedBlocks.Compressor compressor = this.compressor;
+                if (compressor == null) {
+                    compressor = this.compressor = new CompressedBlocks.Compressor();
+                }
+                compressor.compress(channel.array(), (int) channel.size(), compressionLevel);
+            }
+            return this;
+        }
+
+        void write(@NotNull DataOutputChannel out) throws IOException {
+            final CompressedBlocks.Compressor compressor = this.compressor;
+            if (compressed && compressor != null) {
+                compressor.write(out);
+            } else {
+                out.write(channel.array(), 0, (int) channel.size());
+            }
+        }
     }
 
-    ArrayList<@NotNull Soul> getSoulsByOwnerAndWorld(@Nullable UUID owner, @Nullable UUID world) {
-        final ArrayList<Soul> result = new ArrayList<>();
-        synchronized (soulsById) {
-            final ArrayList<@Nullable Soul> soulsById = this.soulsById;
-            for (Soul soul : soulsById) {
-                if (soul == null) {
-                    continue;
+    /** Writes records of db version 4+: {@link #RECORD_MAGIC}, payload length, CRC32 of the payload and the payload.
+     * The payload is written into memory first, so that its length and checksum can precede it. */
+    private static final class RecordWriter {
+        @NotNull
+        private final ByteBufferChannel payloadChannel = new ByteBufferChannel();
+        @NotNull
+        private final DataOutputChannel payload = new DataOutputChannel(payloadChannel);
+        @NotNull
+        private final CRC32 crc = new CRC32();
+
+        /** Start a new record.
+         * @return output for the payload of the record */
+        @NotNull
+        DataOutputChannel begin() throws IOException {
+            payload.position(0L);
+            payloadChannel.truncate(0L);
+            return payload;
+        }
+
+        /** Write the record, whose payload was written since {@link #begin()}, to out. */
+        void end(@NotNull DataOutputChannel out) throws IOException {
+            payload.flush();
+            final int length = (int) payloadChannel.size();
+            final byte[] bytes = payloadChannel.array();
+            final CRC32 crc = this.crc;
+            crc.reset();
+            crc.update(bytes, 0, length);
+            out.writeInt(RECORD_MAGIC);
+            out.writeInt(length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes, 0, length);
+        }
+    }
+
+    /** Reads records written by {@link RecordWriter}.
+     * Each record is read from the file once, into a buffer, where it is checked and then parsed from. */
+    private static final class RecordReader {
+        @NotNull
+        private final CRC32 crc = new CRC32();
+        private byte @NotNull [] payload = new byte[4096];
+        @NotNull
+        private ByteBufferChannel payloadChannel = new ByteBufferChannel(payload);
+        @NotNull
+        private DataInputChannel payloadIn = new DataInputChannel(payloadChannel);
+
+        /** Check whether there is an intact record at the current position, which ends before end.
+         * @return length of the payload, which is now in {@link #payload()}, while the input is at the end of the record,
+         * or -1 if there is no intact record */
+        int check(@NotNull SeekableDataInput in, long end) {
+            try {
+                final long position = in.position();
+                if (end - position < RECORD_HEADER_SIZE || in.readInt() != RECORD_MAGIC) {
+                    return -1;
                 }
-                if ((owner == null || owner.equals(soul.owner)) && (world == null || world
-                        .equals(soul.locationWorld))) {
-                    result.add(soul);
+                final int length = in.readInt();
+                final int expectedCrc = in.readInt();
+                if (length < 0 || length > end - position - RECORD_HEADER_SIZE) {
+                    return -1;
                 }
+
+                byte[] payload = this.payload;
+                if (payload.length < length) {
+                    payload = this.payload = new byte[Math.max(length, payload.length * 2)];
+                    payloadChannel = new ByteBufferChannel(payload);
+                    payloadIn = new DataInputChannel(payloadChannel);
+                }
+                in.readFully(payload, 0, length);
+                final CRC32 crc = this.crc;
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    return -1;
+                }
+
+                payloadChannel.truncate(length);
+                payloadIn.reset(0L);
+                return length;
+            } catch (IOException e) {
+                return -1;
             }
         }
-        return result;
+
+        /** @return payload of the record which was checked last, from its start */
+        @NotNull
+        DataInputChannel payload() {
+            return payloadIn;
+        }
+
+        /** @param blocks to find intact compressed blocks as well, null if there are none
+         * @return position of the first intact record or block after the damaged position, or end if there is none */
+        long next(@NotNull SeekableDataInput in, long damagedPosition, long end, @Nullable CompressedBlocks.Reader blocks) throws IOException {
+            for (long position = damagedPosition + 1; position + RECORD_HEADER_SIZE <= end; position++) {
+                in.position(position);
+                if (check(in, end) >= 0) {
+                    return position;
+                }
+                if (blocks != null) {
+                    in.position(position);
+                    if (blocks.check(in, end) >= 0) {
+                        return position;
+                    }
+                }
+            }
+            return end;
+        }
     }
 
-    @NotNull
-    public static ArrayList<Soul> load(@NotNull Path databaseFile) throws IOException, Serialization.Exception {
-        final ArrayList<Soul> result = new ArrayList<>();
-        try (DataInputChannel in = new DataInputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.READ))) {
-            final int version = in.readInt();
-            if (version > CURRENT_DB_VERSION || version < 0) {
-                throw new Serialization.Exception("Invalid database version, please upgrade the plugin");
+    /** Side file into which damaged parts of database files are copied, so that they are not lost and can be examined.
+     * Each part is stored as the name of the file (UTF), position (long), length (long) and the bytes. */
+    private static final class Quarantine implements Closeable {
+        @NotNull
+        private final Path file;
+        @Nullable
+        private DataOutputChannel out = null;
+        /** Amount of damaged parts */
+        int damageCount = 0;
+
+        Quarantine(@NotNull Path file) {
+            this.file = file;
+        }
+
+        void add(@NotNull Path damagedFile, @NotNull SeekableDataInput in, long from, long to) throws IOException {
+            add(damagedFile.getFileName().toString(), in, from, to);
+        }
+
+        /** Copy bytes between from and to of the input. Its position is undefined afterwards. Can be called from multiple threads.
+         * @param source name of the input */
+        synchronized void add(@NotNull String source, @NotNull SeekableDataInput in, long from, long to) throws IOException {
+            LOG.log(Level.WARNING, source+" is damaged, moving "+(to - from)+" bytes at "+from+" to "+file);
+            damageCount++;
+
+            DataOutputChannel out = this.out;
+            if (out == null) {
+                out = this.out = new DataOutputChannel(Files.newByteChannel(file,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
             }
-            int soulCount = 0;
-            while (in.hasRemaining()) {
-                final Soul soul = deserializeSoul(in, version);
-                result.add(soul);
-                soulCount++;
+            out.writeUTF(source);
+            out.writeLong(from);
+            out.writeLong(to - from);
+
+            final byte[] buffer = new byte[4096];
+            in.position(from);
+            for (long remaining = to - from; remaining > 0; ) {
+                final int part = (int) Math.min(buffer.length, remaining);
+                in.readFully(buffer, 0, part);
+                out.write(buffer, 0, part);
+                remaining -= part;
             }
+            out.flush();
+        }
 
-            LOG.log(Level.INFO, "Soul database loaded ("+soulCount+" souls, db version "+version+")");
-        } catch (NoSuchFileException ignored) {}
-        return result;
+        @Override
+        public synchronized void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
     }
 
-    public void loadLegacy(@NotNull Path databaseFile) throws IOException, Serialization.Exception {
-        int soulCount = 0;
+    /** Read souls of the plugin versions which had no IDs (db version 0) while the database is loading.
+     * @return amount of souls added to {@link #soulsById}, -1 if the file does not exist or could not be read whole,
+     * then nothing is added */
+    private int loadLegacy(@NotNull Path databaseFile) {
+        final ArrayList<Soul> souls = new ArrayList<>();
         try (DataInputChannel in = new DataInputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.READ))) {
             while (in.hasRemaining()) {
-                final Soul soul = deserializeSoul(in, 0);
-                soul.id = soulsById.size();
-                soulsById.add(soul);
-                souls.insert(soul);
-                soulCount++;
+                souls.add(deserializeSoul(in, 0, dictionary, true));
             }
         } catch (NoSuchFileException ignored) {
-            return;
+            return -1;
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Failed to load legacy soul database, old souls will not be present", e);
+            return -1;
         }
-
-        // Loaded successfully, save and delete legacy
-        if (save()) {
-            Files.deleteIfExists(databaseFile);
-            LOG.log(Level.INFO, "Soul database migrated ("+soulCount+" souls)");
+        for (Soul soul : souls) {
+            soul.id = -1;
+            putLoadedSoul(soul);
         }
+        return souls.size();
     }
 
     @NotNull
     private final Object SAVE_LOCK = new Object();
+    /** NOTE: Synchronize on {@link #SAVE_LOCK} before accessing */
+    @NotNull
+    private final RecordWriter records = new RecordWriter();
+    /** For {@link #dictionary} entries, which have to be written while a soul is in {@link #records}.
+     * NOTE: Synchronize on {@link #SAVE_LOCK} before accessing */
+    @NotNull
+    private final RecordWriter dictionaryRecords = new RecordWriter();
+
+    /** Souls are saved in the order in which they are laid out in the spatial database,
+     * so that the loaded souls are (nearly) sorted for {@link SpatialDatabase#insertAll} and the file has better locality. */
+    private static final Comparator<SavedSoul> SAVE_ORDER = Comparator.<SavedSoul, Soul>comparing(saved -> saved.soul,
+            Comparator.<Soul, UUID>comparing(soul -> soul.locationWorld).thenComparing(SpatialDatabase.SPATIAL_ORDER));
 
+    /** Save the whole database into a new snapshot, which makes the current journal obsolete. */
     public boolean save() throws IOException {
-        final ArrayList<@Nullable Soul> soulsCopy;
-        synchronized (soulsById) {
-            soulsCopy = new ArrayList<>(soulsById);
-        }
+        synchronized (SAVE_LOCK) {
+            if (!ready) {
+                // Would replace the file with an empty database
+                LOG.log(Level.WARNING, "Soul database is not loaded, not saving it");
+                return false;
+            }
+            final long startTime = System.nanoTime();
+            final List<@Nullable Soul> snapshot;
+            final long savingGeneration;
+            final long stamp = soulsLock.writeLock();
+            try {
+                compactSoulIds();
+                // Constant time, the lock is not held while the souls are saved
+                snapshot = soulsById.snapshot();
+                // All of them are in the snapshot. Souls which change later are added again and journaled after it.
+                changedSouls.clear();
+                removedSoulIdCount = 0;
+                // Changes which were just taken are only in the snapshot, so the database is dirty until it is written
+                savingGeneration = ++dirtyGeneration;
+            } finally {
+                soulsLock.unlockWrite(stamp);
+            }
+            // Sorting only reads final fields, so it can be done outside of the lock
+            final ArrayList<@NotNull SavedSoul> soulsCopy = new ArrayList<>(snapshot.size());
+            for (int id = 0; id < snapshot.size(); id++) {
+                final Soul soul = snapshot.get(id);
+                if (soul != null) {
+                    soulsCopy.add(new SavedSoul(id, soul));
+                }
+            }
+            soulsCopy.sort(SAVE_ORDER);
 
-        try {
-            Files.createDirectories(databaseFile.getParent());
-        } catch (IOException io) {
-            LOG.log(Level.WARNING, "Failed to create directories for soul database file, saving may fail", io);
-        }
+            try {
+                Files.createDirectories(databaseFile.getParent());
+            } catch (IOException io) {
+                LOG.log(Level.WARNING, "Failed to create directories for soul database file, saving may fail", io);
+            }
 
-        synchronized (SAVE_LOCK) {
+            final long generation = journalGeneration + 1;
             Exception exception = null;
             for (int i = 0; i < 10; i++) {
                 final Path writeFile = databaseFile
                         .resolveSibling(databaseFile.getFileName().toString() + "." + (System.nanoTime() & 0xFFFFFF));
-                int failedWrites = 0;
+                final int soulCount, serializedSouls, failedWrites;
+                int dictionaryStrings, dictionaryUuids;
+                final long[] chunkPositions = new long[(soulsCopy.size() + SNAPSHOT_CHUNK_SOULS - 1) / SNAPSHOT_CHUNK_SOULS];
+                // Only what the saved souls refer to, their kept items are transcoded into it
+                final Dictionary dictionary = new Dictionary();
+                final ForkJoinPool savePool = this.savePool;
+                // Large buffer, so that the header can be usually rewritten without flushing
                 try (DataOutputChannel out = new DataOutputChannel(Files
-                        .newByteChannel(writeFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
-                    out.writeInt(CURRENT_DB_VERSION);
-
-                    for (final Soul soul : soulsCopy) {
-                        if (soul != null) {
-                            if (!serializeSoul(soul, out)) {
-                                failedWrites++;
-                            }
-                        }
+                        .newByteChannel(writeFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 1 << 16);
+                     SavePipeline pipeline = new SavePipeline(savePool != null ? savePool : ForkJoinPool.commonPool(),
+                             saveChunks, savePipelineDepth, compressionLevel, dictionary, out, chunkPositions)) {
+                    // Header is written again at the end, with the soul count, chunk positions and dictionary position
+                    writeSnapshotHeader(out, generation, 0, chunkPositions, 0L);
+
+                    // Chunks are serialized on the pool, while this thread writes the finished ones
+                    for (int from = 0; from < soulsCopy.size(); from += SNAPSHOT_CHUNK_SOULS) {
+                        pipeline.submit(soulsCopy.subList(from, Math.min(from + SNAPSHOT_CHUNK_SOULS, soulsCopy.size())));
                     }
+                    pipeline.finish();
+                    soulCount = pipeline.soulCount;
+                    serializedSouls = pipeline.serializedSouls;
+                    failedWrites = pipeline.failedWrites;
+
+                    // Dictionary is complete only now, after the souls which have added to it
+                    final long dictionaryPosition = out.position();
+                    dictionaryStrings = dictionary.strings.size();
+                    dictionaryUuids = dictionary.uuids.size();
+                    final DataOutputChannel dictionaryPayload = records.begin();
+                    dictionaryPayload.writeInt(DICTIONARY_RECORD_ID);
+                    dictionary.write(dictionaryPayload, 0, 0);
+                    records.end(out);
+                    // Every soul depends on it, so there is a second copy in case the first one is damaged
+                    records.end(out);
+                    final DataOutputChannel trailerPayload = records.begin();
+                    trailerPayload.writeInt(TRAILER_RECORD_ID);
+                    trailerPayload.writeLong(generation);
+                    records.end(out);
+
+                    final long end = out.position();
+                    out.position(0L);
+                    writeSnapshotHeader(out, generation, soulCount, chunkPositions, dictionaryPosition);
+                    out.position(end);
                 } catch (FileAlreadyExistsException alreadyExists) {
                     // Try again
                     exception = alreadyExists;
@@ -181,9 +1602,24 @@ final class SoulDatabase {
                 // File written, now we can replace the old one
                 Files.move(writeFile, databaseFile, StandardCopyOption.REPLACE_EXISTING);
 
+                // Old journal has an old generation, so it would be ignored anyway, but it is useless now
+                journalGeneration = generation;
+                journalSize = -1;
+                snapshotSize = Files.size(databaseFile);
+                this.dictionary = dictionary;
+                persistedStrings = dictionaryStrings;
+                persistedUuids = dictionaryUuids;
+                savedGeneration = savingGeneration;
+                try {
+                    Files.deleteIfExists(journalFile);
+                } catch (IOException io) {
+                    LOG.log(Level.WARNING, "Failed to delete old soul journal", io);
+                }
+
                 if (failedWrites > 0) {
                     LOG.log(Level.WARNING, failedWrites + " soul(s) failed to save");
                 }
+                report(new SaveReport(true, soulCount, serializedSouls, System.nanoTime() - startTime));
                 return true;
             }
             LOG.log(Level.SEVERE, "Failed to save souls", exception);
@@ -192,105 +1628,494 @@ final class SoulDatabase {
         return false;
     }
 
-    public int removeFadedSouls(long soulFadesAfterMs) {
-        final ArrayList<@Nullable Soul> soulsById = this.soulsById;
-        int fadedSouls = 0;
-        final long now = System.currentTimeMillis();
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized (soulsById) {
-            for (int i = 0; i < soulsById.size(); i++) {
-                final Soul soul = soulsById.get(i);
-                if (soul == null)
-                    continue;
+    /** Append changes of {@link #changedSouls} to the journal.
+     * NOTE: Synchronize on {@link #SAVE_LOCK} before calling
+     * @return false if the journal could not be written and the database should be saved whole */
+    private boolean appendJournal() throws IOException {
+        final long startTime = System.nanoTime();
+        final ArrayList<@NotNull SavedSoul> putSouls = new ArrayList<>();
+        final int[] removedSoulIds;
+        final long stamp = soulsLock.writeLock();
+        try {
+            if (changedSouls.isEmpty() && removedSoulIdCount == 0) {
+                return true;
+            }
+            for (Soul soul : changedSouls) {
+                final int id = soul.id;
+                // Souls which were removed since they were changed are in removedSoulIds instead
+                if (id >= 0 && id < soulsById.size() && soulsById.get(id) == soul) {
+                    putSouls.add(new SavedSoul(id, soul));
+                }
+            }
+            changedSouls.clear();
+            removedSoulIds = Arrays.copyOf(this.removedSoulIds, removedSoulIdCount);
+            removedSoulIdCount = 0;
+        } finally {
+            soulsLock.unlockWrite(stamp);
+        }
+
+        final boolean newJournal = journalSize < 0;
+        try (DataOutputChannel out = new DataOutputChannel(newJournal
+                ? Files.newByteChannel(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : Files.newByteChannel(journalFile, StandardOpenOption.WRITE))) {
+            if (newJournal) {
+                out.writeInt(CURRENT_DB_VERSION);
+                out.writeLong(journalGeneration);
+            } else {
+                out.position(journalSize);
+            }
 
-                if (Util.saturatedAdd(soul.timestamp, soulFadesAfterMs) <= now) {
-                    // Soul should expire
-                    soulsById.set(i, null);
-                    souls.remove(soul);
-                    fadedSouls++;
+            // Removals first, their IDs may have been reused by the added souls
+            final RecordWriter records = this.records;
+            for (int soulId : removedSoulIds) {
+                final DataOutputChannel payload = records.begin();
+                payload.writeByte(JOURNAL_REMOVE);
+                payload.writeInt(soulId);
+                records.end(out);
+            }
+            final Dictionary dictionary = this.dictionary;
+            int persistedStrings = this.persistedStrings, persistedUuids = this.persistedUuids;
+            int serializedSouls = 0;
+            for (SavedSoul saved : putSouls) {
+                final Soul soul = saved.soul;
+                final DataOutputChannel payload = records.begin();
+                payload.writeByte(JOURNAL_PUT);
+                payload.writeInt(saved.id);
+                if (!soul.state().isItemsSerialized()) {
+                    serializedSouls++;
+                }
+                if (!serializeSoul(soul, payload, dictionary)) {
+                    return false;
                 }
+                if (persistedStrings != dictionary.strings.size() || persistedUuids != dictionary.uuids.size()) {
+                    // Soul has added new entries, which must precede it
+                    final DataOutputChannel dictionaryPayload = dictionaryRecords.begin();
+                    dictionaryPayload.writeByte(JOURNAL_DICTIONARY);
+                    dictionary.write(dictionaryPayload, persistedStrings, persistedUuids);
+                    dictionaryRecords.end(out);
+                    persistedStrings = dictionary.strings.size();
+                    persistedUuids = dictionary.uuids.size();
+                }
+                records.end(out);
             }
+            // Drop whatever a previous failed append left behind
+            out.truncate();
+            journalSize = out.position();
+            this.persistedStrings = persistedStrings;
+            this.persistedUuids = persistedUuids;
+            report(new SaveReport(false, removedSoulIds.length + putSouls.size(), serializedSouls, System.nanoTime() - startTime));
+        }
+        return true;
+    }
+
+    private void report(@NotNull SaveReport report) {
+        lastSave = report;
+        LOG.log(Level.FINE, report.toString());
+    }
+
+    /** @return what the last save or journal append wrote, null if nothing was saved yet */
+    @Nullable
+    public SaveReport getLastSave() {
+        return lastSave;
+    }
+
+    /** What was written by one {@link #save()} or journal append. */
+    public static final class SaveReport {
+        /** Whether the whole database was saved into a new snapshot, otherwise only changes were appended to the journal */
+        public final boolean snapshot;
+        /** Amount of soul records written, including removals in the journal */
+        public final int records;
+        /** Amount of souls whose items had to be serialized, because they have changed since they were loaded or saved last.
+         * Others were written from their cached serialized form. */
+        public final int serializedSouls;
+        public final long durationNanos;
+
+        SaveReport(boolean snapshot, int records, int serializedSouls, long durationNanos) {
+            this.snapshot = snapshot;
+            this.records = records;
+            this.serializedSouls = serializedSouls;
+            this.durationNanos = durationNanos;
         }
 
-        if (fadedSouls > 0) {
-            dirty = true;
+        @Override
+        public String toString() {
+            return (snapshot ? "Soul snapshot saved (" : "Soul journal appended (") + records + " records, "
+                    + serializedSouls + " serialized, " + (durationNanos / 1_000_000L) + " ms)";
+        }
+    }
+
+    /** Journal is compacted into a new snapshot when it grows to this size.
+     * NOTE: Synchronize on {@link #SAVE_LOCK} before calling */
+    private long journalCompactSize() {
+        return Math.max(JOURNAL_COMPACT_MIN_SIZE, snapshotSize / 2);
+    }
+
+    /** Remove souls which are older than soulFadesAfterMs. Only touches the souls that are removed.
+     * @return amount of removed souls */
+    public int removeFadedSouls(long soulFadesAfterMs) {
+        int fadedSouls = 0;
+        final long now = System.currentTimeMillis();
+        if (!ready) {
+            return 0;
+        }
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.writeLock();
+        try {
+            final SoulQueue soulsByAge = this.soulsByAge;
+            Soul soul;
+            while ((soul = soulsByAge.peek()) != null && saturatedAdd(soul.timestamp, soulFadesAfterMs) <= now) {
+                // Soul should expire
+                unlinkSoul(soul);
+                removeSpatial(soul);
+                fadedSouls++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
         }
 
         return fadedSouls;
     }
 
+    /** Free souls which are older than soulFreeAfterMs. Only touches the souls that are freed.
+     * @return amount of freed souls */
+    public int freeExpiredSouls(long soulFreeAfterMs) {
+        int freedSouls = 0;
+        final long now = System.currentTimeMillis();
+        if (!ready) {
+            return 0;
+        }
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.writeLock();
+        try {
+            final SoulQueue ownedSoulsByAge = this.ownedSoulsByAge;
+            Soul soul;
+            while ((soul = ownedSoulsByAge.peek()) != null && saturatedAdd(soul.timestamp, soulFreeAfterMs) <= now) {
+                // Removes it from the queue
+                setOwnerLocked(soul, null);
+                freedSouls++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+
+        return freedSouls;
+    }
+
     @NotNull
     public Soul addSoul(@Nullable UUID owner, @NotNull UUID world, double x, double y, double z, @NotNull ItemStack[] contents, int xp) {
         final Soul soul = new Soul(owner, world, x, y, z, System.currentTimeMillis(), contents, xp);
-        int soulId = -1;
-        synchronized (soulsById) {
-            final ArrayList<@Nullable Soul> soulsById = this.soulsById;
-            for (int i = 0; i < soulsById.size(); i++) {
-                if (soulsById.get(i) == null) {
-                    soulsById.set(i, soul);
-                    soulId = i;
-                    break;
-                }
-            }
-            if (soulId == -1) {
-                soulId = soulsById.size();
-                soulsById.add(soul);
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.writeLock();
+        try {
+            if (ready) {
+                insertSoul(soul);
+            } else {
+                pendingSouls.add(soul);
             }
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        soul.id = soulId;
-        souls.insert(soul);
-        dirty = true;
         return soul;
     }
 
+    /** Give the soul an ID and add it to all indices.
+     * NOTE: Hold the write lock of {@link #soulsLock} before calling */
+    private void insertSoul(@NotNull Soul soul) {
+        final SnapshotList<@Nullable Soul> soulsById = this.soulsById;
+        final int soulId;
+        if (freeSoulIdCount > 0) {
+            soulId = freeSoulIds[--freeSoulIdCount];
+            soulsById.set(soulId, soul);
+        } else {
+            soulId = soulsById.size();
+            soulsById.add(soul);
+        }
+        soul.id = soulId;
+        insertIndexed(soul);
+        insertSpatial(soul);
+        changedSouls.add(soul);
+    }
+
+    /** @return whether the soul is in the database, or waits to be added to it once it is loaded */
+    boolean contains(@NotNull Soul soul) {
+        final int soulId = soul.id;
+        if (soulId >= 0) {
+            return getSoulById(soulId) == soul;
+        }
+        if (ready) {
+            return false;
+        }
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.readLock();
+        try {
+            return !ready && pendingSouls.contains(soul);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Remove the soul from {@link #soulsById} and other indices, except the spatial one, and journal its removal.
+     * The soul forgets its ID, so that it can't be confused with the soul which gets the ID next.
+     * NOTE: Hold the write lock of {@link #soulsLock} before calling */
+    private void unlinkSoul(@NotNull Soul soul) {
+        final int soulId = soul.id;
+        soulsById.set(soulId, null);
+        releaseSoulId(soulId);
+        removeIndexed(soul);
+        changedSouls.remove(soul);
+        if (removedSoulIdCount == removedSoulIds.length) {
+            removedSoulIds = Arrays.copyOf(removedSoulIds, removedSoulIds.length * 2);
+        }
+        removedSoulIds[removedSoulIdCount++] = soulId;
+        soul.id = -1;
+    }
+
+    /** Make the ID of a soul which was just removed from {@link #soulsById} available again.
+     * NOTE: Hold the write lock of {@link #soulsLock} before calling */
+    private void releaseSoulId(int soulId) {
+        if (freeSoulIdCount == freeSoulIds.length) {
+            freeSoulIds = Arrays.copyOf(freeSoulIds, freeSoulIds.length * 2);
+        }
+        freeSoulIds[freeSoulIdCount++] = soulId;
+    }
+
+    /** Drop the free IDs at the end of {@link #soulsById}, so that it does not stay large after many souls are gone.
+     * IDs of existing souls are never changed, because they are shown to players.
+     * NOTE: Hold the write lock of {@link #soulsLock} before calling */
+    private void compactSoulIds() {
+        final SnapshotList<@Nullable Soul> soulsById = this.soulsById;
+        int size = soulsById.size();
+        while (size > 0 && soulsById.get(size - 1) == null) {
+            size--;
+        }
+        if (size == soulsById.size()) {
+            return;
+        }
+        soulsById.subList(size, soulsById.size()).clear();
+
+        final int[] freeSoulIds = this.freeSoulIds;
+        int kept = 0;
+        for (int i = 0; i < freeSoulIdCount; i++) {
+            if (freeSoulIds[i] < size) {
+                freeSoulIds[kept++] = freeSoulIds[i];
+            }
+        }
+        freeSoulIdCount = kept;
+    }
+
+    /** Set how much are the snapshot chunks compressed from the next {@link #save()} on.
+     * @param level 0 for no compression, 1 (fastest) to 9 (smallest) */
+    public void setCompressionLevel(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9, got "+level);
+        }
+        compressionLevel = level;
+    }
+
+    /** Set how is the snapshot serialized and written from the next {@link #save()} on.
+     * @param threads which serialize souls while the saving thread writes them, 0 to use the common pool
+     * @param depth how many chunks of souls can be serialized and waiting to be written, at least 1 */
+    public void setSavePipeline(int threads, int depth) {
+        if (threads < 0 || depth < 1) {
+            throw new IllegalArgumentException("Invalid save pipeline, threads: "+threads+", depth: "+depth);
+        }
+        synchronized (SAVE_LOCK) {
+            if (threads != saveThreads) {
+                final ForkJoinPool oldPool = savePool;
+                if (oldPool != null) {
+                    oldPool.shutdown();
+                }
+                savePool = threads > 0 ? new ForkJoinPool(threads) : null;
+                saveThreads = threads;
+            }
+            savePipelineDepth = depth;
+        }
+    }
+
+    /** Save the whole database on next {@link #autoSave()}. Prefer {@link #markDirty(Soul)} when possible. */
     public void markDirty() {
-        dirty = true;
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.writeLock();
+        try {
+            dirtyGeneration++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
-    public void autoSave() {
-        if (!dirty) {
+    /** @return whether the whole database has to be saved, see {@link #markDirty()} */
+    boolean isDirty() {
+        return dirtyGeneration != savedGeneration;
+    }
+
+    /** Save the soul on next {@link #autoSave()}. Call after {@link Soul#setItems} or {@link Soul#setExperiencePoints}.
+     * Items which were changed in place need {@link #markItemsDirty(Soul)} instead. */
+    public void markDirty(@NotNull Soul soul) {
+        if (soul.id < 0) {
+            // Not in the database
             return;
         }
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.writeLock();
+        try {
+            // Could have been removed in the meantime
+            if (soul.id >= 0) {
+                changedSouls.add(soul);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** {@link #markDirty(Soul)} after the items of the soul were changed in place,
+     * so that their serialized form, kept from loading or the last save, is not written instead. */
+    public void markItemsDirty(@NotNull Soul soul) {
+        soul.itemsChanged();
+        markDirty(soul);
+    }
 
-        if (this.owner != null) {
-            dirty = false;
-            Bukkit.getScheduler().runTaskAsynchronously(this.owner, () -> {
-                boolean success = false;
+    public void autoSave() {
+        if (!ready) {
+            // Loading holds the save lock, there is nothing new to save anyway
+            return;
+        }
+        if (!isDirty()) {
+            // Called every few seconds and usually there is nothing to save, so don't even wait for writers
+            final StampedLock lock = this.soulsLock;
+            long stamp = lock.tryOptimisticRead();
+            boolean unchanged = changedSouls.isEmpty() && removedSoulIdCount == 0;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
                 try {
-                    if (save()) {
-                        success = true;
-                    }
-                } catch (IOException e) {
-                    LOG.log(Level.WARNING, "Failed to save ItemStore asynchronously", e);
+                    unchanged = changedSouls.isEmpty() && removedSoulIdCount == 0;
                 } finally {
-                    if (!success) {
-                        dirty = true;
-                    }
+                    lock.unlockRead(stamp);
                 }
-            });
+            }
+            if (unchanged) {
+                return;
+            }
+        }
+
+        final PersistenceService persistence = this.persistence;
+        if (persistence != null) {
+            if (!persistence.request()) {
+                LOG.log(Level.FINE, "Soul database is closed, not saving");
+            }
         } else {
             LOG.log(Level.INFO, "Saving synchronously");
             try {
-                if (save()) {
-                    dirty = false;
-                }
+                persist();
             } catch (IOException e) {
+                markDirty();
                 LOG.log(Level.WARNING, "Failed to save ItemStore synchronously", e);
             }
         }
     }
 
+    /** Run by {@link #persistence}. */
+    private void persistInBackground() {
+        try {
+            persist();
+        } catch (IOException e) {
+            // Changes may have been taken from the journal queue, only a whole save has them all
+            markDirty();
+            LOG.log(Level.WARNING, "Failed to save ItemStore asynchronously", e);
+        }
+    }
+
+    /** Stop saving in the background, wait for a save in progress and then save the whole database on this thread.
+     * The database should not be changed afterwards, because the changes would not be saved.
+     * @return whether the save succeeded */
+    public boolean close() throws IOException {
+        final PersistenceService persistence = this.persistence;
+        if (persistence != null) {
+            persistence.stop();
+        }
+        final Thread loader = this.loader;
+        if (loader != null && loader != Thread.currentThread()) {
+            // Souls created while loading are saved only once they are merged into the loaded ones
+            boolean interrupted = false;
+            while (loader.isAlive()) {
+                try {
+                    loader.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (SAVE_LOCK) {
+            try {
+                return save();
+            } finally {
+                final ForkJoinPool savePool = this.savePool;
+                if (savePool != null) {
+                    savePool.shutdown();
+                    this.savePool = null;
+                    saveThreads = 0;
+                }
+            }
+        }
+    }
+
+    /** @return amount of {@link #autoSave()} requests which wait for the save thread, they are all served by one save */
+    public int getPendingSaves() {
+        final PersistenceService persistence = this.persistence;
+        return persistence == null ? 0 : persistence.queueDepth();
+    }
+
+    /** @return nanoseconds from the oldest {@link #autoSave()} request served by the last background save to its end,
+     * 0 if there was none yet */
+    public long getLastSaveLatencyNanos() {
+        final PersistenceService persistence = this.persistence;
+        return persistence == null ? 0L : persistence.lastLatencyNanos();
+    }
+
+    /** @return the highest {@link #getLastSaveLatencyNanos()} so far */
+    public long getMaxSaveLatencyNanos() {
+        final PersistenceService persistence = this.persistence;
+        return persistence == null ? 0L : persistence.maxLatencyNanos();
+    }
+
+    /** Append the changes to the journal, or save the whole database when it is dirty or when the journal grows too large. */
+    private void persist() throws IOException {
+        synchronized (SAVE_LOCK) {
+            if (isDirty() || journalSize > journalCompactSize()) {
+                // Stays dirty if it fails
+                save();
+            } else if (!appendJournal()) {
+                markDirty();
+            }
+        }
+    }
+
     @Nullable
     public Soul getSoulById(int soulId) {
-        Soul soul = null;
-        if (soulId >= 0) {
-            synchronized (soulsById) {
-                if (soulId < soulsById.size()) {
-                    soul = soulsById.get(soulId);
+        if (soulId < 0 || !ready) {
+            return null;
+        }
+        final StampedLock lock = this.soulsLock;
+        final long optimisticStamp = lock.tryOptimisticRead();
+        if (optimisticStamp != 0L) {
+            try {
+                final Soul soul = soulId < soulsById.size() ? soulsById.get(soulId) : null;
+                if (lock.validate(optimisticStamp)) {
+                    return soul;
                 }
+            } catch (IndexOutOfBoundsException ignored) {
+                // Read while the list was being shrunk, the read below will see it whole
             }
         }
-        return soul;
+
+        final long stamp = lock.readLock();
+        try {
+            return soulId < soulsById.size() ? soulsById.get(soulId) : null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     public void freeSoul(@NotNull CommandSender sender, int soulId, long soulFreeAfterMs, boolean canFreeOwn, boolean canFreeAll) {
@@ -301,7 +2126,7 @@ final class SoulDatabase {
             return;
         }
 
-        if (soul.owner == null) {
+        if (soul.getOwner() == null) {
             sender.sendMessage(ChatColor.AQUA+"This soul is already free");
             return;
         }
@@ -319,116 +2144,417 @@ final class SoulDatabase {
             }
         }
 
-        if (soul.freeSoul(System.currentTimeMillis(), soulFreeAfterMs)) {
+        if (freeSoul(soul, System.currentTimeMillis(), soulFreeAfterMs)) {
             sender.sendMessage(ChatColor.AQUA+"Soul has been set free");
-            dirty = true;
         } else {
             sender.sendMessage(ChatColor.AQUA+"This soul is already free");
         }
     }
 
     public void removeSoul(@NotNull Soul toRemove) {
+        final StampedLock lock = this.soulsLock;
         if (toRemove.id < 0) {
-            // Soul was never added, ignore
-            return;
+            if (!ready) {
+                final long stamp = lock.writeLock();
+                try {
+                    if (!ready) {
+                        pendingSouls.remove(toRemove);
+                        return;
+                    }
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+            if (toRemove.id < 0) {
+                // Soul was never added, ignore
+                return;
+            }
         }
-        synchronized (soulsById) {
-            if (toRemove.id >= soulsById.size() || soulsById.get(toRemove.id) != toRemove) {
+        final long stamp = lock.writeLock();
+        try {
+            if (toRemove.id < 0 || toRemove.id >= soulsById.size() || soulsById.get(toRemove.id) != toRemove) {
                 LOG.log(Level.WARNING, "Soul " + toRemove + " already removed from BY-ID");
             } else {
-                soulsById.set(toRemove.id, null);
-                dirty = true;
+                unlinkSoul(toRemove);
+            }
+
+            if (!removeSpatial(toRemove)) {
+                LOG.log(Level.WARNING, "Soul "+toRemove+" already removed from SOULS");
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void insertSpatial(@NotNull Soul soul) {
+        SpatialDatabase<Soul> worldSouls = soulsByWorld.get(soul.locationWorld);
+        if (worldSouls == null) {
+            worldSouls = new SpatialDatabase<>();
+            soulsByWorld.put(soul.locationWorld, worldSouls);
+        }
+        worldSouls.insert(soul);
+    }
+
+    /** Insert many souls at once, grouped by world, which is much faster than inserting them one by one. */
+    private void insertSpatial(@NotNull ArrayList<@NotNull Soul> souls) {
+        final HashMap<UUID, ArrayList<Soul>> soulsOfWorlds = new HashMap<>();
+        for (Soul soul : souls) {
+            soulsOfWorlds.computeIfAbsent(soul.locationWorld, world -> new ArrayList<>()).add(soul);
+        }
+        for (Map.Entry<UUID, ArrayList<Soul>> soulsOfWorld : soulsOfWorlds.entrySet()) {
+            SpatialDatabase<Soul> worldSouls = soulsByWorld.get(soulsOfWorld.getKey());
+            if (worldSouls == null) {
+                worldSouls = new SpatialDatabase<>();
+                soulsByWorld.put(soulsOfWorld.getKey(), worldSouls);
             }
+            worldSouls.insertAll(soulsOfWorld.getValue().toArray(new Soul[0]));
+        }
+    }
+
+    private boolean removeSpatial(@NotNull Soul soul) {
+        final SpatialDatabase<Soul> worldSouls = soulsByWorld.get(soul.locationWorld);
+        if (worldSouls == null || !worldSouls.remove(soul)) {
+            return false;
         }
+        if (worldSouls.isEmpty()) {
+            soulsByWorld.remove(soul.locationWorld);
+        }
+        return true;
+    }
 
-        if (!souls.remove(toRemove)) {
-            LOG.log(Level.WARNING, "Soul "+toRemove+" already removed from SOULS");
+    /** @return amount of worlds which currently have a spatial index */
+    int spatialWorldCount() {
+        if (!ready) {
+            return 0;
+        }
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.readLock();
+        try {
+            return soulsByWorld.size();
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
+    /** Add souls of the given world which are at most radius blocks from the given coordinates
+     * (ignoring Y) to the out collection. Souls of other worlds are never touched. */
     public void findSouls(@NotNull UUID worldUID, int x, int z, int radius, @NotNull Collection<Soul> out) {
-        souls.query((x - radius) / SOUL_STORE_SCALE, (x + radius + SOUL_STORE_SCALE - 1) / SOUL_STORE_SCALE,
-                (z - radius) / SOUL_STORE_SCALE, (z + radius + SOUL_STORE_SCALE - 1) / SOUL_STORE_SCALE, out);
-        out.removeIf((soul) -> !worldUID.equals(soul.locationWorld));
+        findSouls(worldUID, x, z, radius, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, soul -> {
+            out.add(soul);
+            return true;
+        });
+    }
+
+    /** Visit souls of the given world which are at most radius blocks from the given coordinates (ignoring Y),
+     * until the visitor asks to stop.
+     * @return false if the visitor stopped early */
+    public boolean findSouls(@NotNull UUID worldUID, int x, int z, int radius, @NotNull SpatialDatabase.Visitor<? super Soul> visitor) {
+        return findSouls(worldUID, x, z, radius, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, visitor);
+    }
+
+    /** Visit souls of the given world which are inside a vertical cylinder with given center, radius and Y range (inclusive),
+     * until the visitor asks to stop. The visitor must not modify the database or search for souls itself.
+     * @return false if the visitor stopped early */
+    public boolean findSouls(@NotNull UUID worldUID, double x, double z, double radius, double yMin, double yMax,
+                             @NotNull SpatialDatabase.Visitor<? super Soul> visitor) {
+        if (!ready) {
+            return true;
+        }
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.readLock();
+        try {
+            final SpatialDatabase<Soul> worldSouls = soulsByWorld.get(worldUID);
+            if (worldSouls == null) {
+                return true;
+            }
+            // Not reused, queries can run on many threads at once
+            final SoulCylinderDistance distance = new SoulCylinderDistance();
+            distance.x = x;
+            distance.z = z;
+            distance.yMin = yMin;
+            distance.yMax = yMax;
+            return worldSouls.query(x / SOUL_STORE_SCALE, z / SOUL_STORE_SCALE, radius * radius / SoulDistance.SCALE2, distance, visitor);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** @return amount of souls that {@link #findSouls(UUID, int, int, int, Collection)} would find */
+    public int countSouls(@NotNull UUID worldUID, int x, int z, int radius) {
+        final SoulCounter counter = new SoulCounter();
+        findSouls(worldUID, x, z, radius, counter);
+        return counter.count;
+    }
+
+    /** Add at most {@code limit} souls of the given world, which are nearest to the given coordinates
+     * and at most {@code radius} blocks from them (ignoring Y, like {@link #findSouls(UUID, int, int, int, Collection)}),
+     * to the out collection, nearest first (not ignoring Y).
+     * @param filter only souls accepted by this filter are considered, null to consider all
+     * @return amount of souls added */
+    public int findNearestSouls(@NotNull UUID worldUID, double x, double y, double z, int limit, double radius,
+                                @Nullable Predicate<? super Soul> filter, @NotNull Collection<Soul> out) {
+        if (!ready) {
+            return 0;
+        }
+        final StampedLock lock = this.soulsLock;
+        final long stamp = lock.readLock();
+        try {
+            final SpatialDatabase<Soul> worldSouls = soulsByWorld.get(worldUID);
+            if (worldSouls == null) {
+                return 0;
+            }
+            final SoulDistance distance = new SoulDistance();
+            distance.x = x;
+            distance.y = y;
+            distance.z = z;
+            return worldSouls.queryNearest(x / SOUL_STORE_SCALE, z / SOUL_STORE_SCALE, limit, radius * radius / SoulDistance.SCALE2,
+                    distance, filter, out);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Distance of a soul to a point, in {@link #SOUL_STORE_SCALE}, because that is what the spatial database uses.
+     * Only the horizontal distance decides whether a soul is in range, so the range is a column. */
+    private static final class SoulDistance implements SpatialDatabase.Distance<Soul> {
+        static final double SCALE2 = SOUL_STORE_SCALE * SOUL_STORE_SCALE;
+
+        double x, y, z;
+
+        @Override
+        public double distance2(@NotNull Soul soul) {
+            return Util.distance2(soul, x, y, z) / SCALE2;
+        }
+
+        @Override
+        public boolean isWithin(@NotNull Soul soul, double distance2, double maxDistance2) {
+            return (NumberConversions.square(soul.locationX - x) + NumberConversions.square(soul.locationZ - z)) / SCALE2 <= maxDistance2;
+        }
+    }
+
+    /** Horizontal distance of a soul to a point, in {@link #SOUL_STORE_SCALE}. Souls outside the Y range are infinitely far. */
+    private static final class SoulCylinderDistance implements SpatialDatabase.Distance<Soul> {
+        double x, z, yMin, yMax;
+
+        @Override
+        public double distance2(@NotNull Soul soul) {
+            final double y = soul.locationY;
+            if (!(y >= yMin && y <= yMax)) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return (NumberConversions.square(soul.locationX - x) + NumberConversions.square(soul.locationZ - z)) / SoulDistance.SCALE2;
+        }
+    }
+
+    /** Indexed binary min-heap of souls by {@link Soul#timestamp}.
+     * Each soul remembers its position in the heap, so it can be removed in O(log n). */
+    private static final class SoulQueue {
+        static final int FADE = 0;
+        static final int FREE = 1;
+
+        /** Which of the {@link Soul} heap slots does this queue use */
+        private final int slotKind;
+        @NotNull
+        private Soul @NotNull [] heap = new Soul[64];
+        private int size = 0;
+
+        SoulQueue(int slotKind) {
+            this.slotKind = slotKind;
+        }
+
+        private int slot(@NotNull Soul soul) {
+            return slotKind == FADE ? soul.fadeSlot : soul.freeSlot;
+        }
+
+        private void setSlot(@NotNull Soul soul, int slot) {
+            if (slotKind == FADE) {
+                soul.fadeSlot = slot;
+            } else {
+                soul.freeSlot = slot;
+            }
+        }
+
+        private void place(@NotNull Soul soul, int slot) {
+            heap[slot] = soul;
+            setSlot(soul, slot);
+        }
+
+        @Nullable
+        Soul peek() {
+            return size == 0 ? null : heap[0];
+        }
+
+        void add(@NotNull Soul soul) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            siftUp(soul, size++);
+        }
+
+        void remove(@NotNull Soul soul) {
+            final int slot = slot(soul);
+            if (slot < 0 || slot >= size || heap[slot] != soul) {
+                LOG.log(Level.WARNING, "Soul "+soul+" already removed from the queue");
+                return;
+            }
+            final Soul last = heap[--size];
+            heap[size] = null;
+            setSlot(soul, -1);
+            if (last != soul) {
+                // Put the last soul into the hole and restore the heap in whichever direction it needs
+                siftDown(last, slot);
+                if (heap[slot] == last) {
+                    siftUp(last, slot);
+                }
+            }
+        }
+
+        private void siftUp(@NotNull Soul soul, int slot) {
+            while (slot > 0) {
+                final int parent = (slot - 1) >>> 1;
+                final Soul parentSoul = heap[parent];
+                if (parentSoul.timestamp <= soul.timestamp) {
+                    break;
+                }
+                place(parentSoul, slot);
+                slot = parent;
+            }
+            place(soul, slot);
+        }
+
+        private void siftDown(@NotNull Soul soul, int slot) {
+            while (true) {
+                int child = (slot << 1) + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1].timestamp < heap[child].timestamp) {
+                    child++;
+                }
+                if (soul.timestamp <= heap[child].timestamp) {
+                    break;
+                }
+                place(heap[child], slot);
+                slot = child;
+            }
+            place(soul, slot);
+        }
     }
 
-    /** A soul in a database. The fields that are not final can be modified,
-     * but don't forget to {@link SoulDatabase#markDirty()} if you do to ensure that the changes are saved. */
-    static final class Soul implements SpatialDatabase.Entry, DeadSoulsAPI.Soul {
+    private static final class SoulCounter implements SpatialDatabase.Visitor<Soul> {
+        int count;
 
-        /** Index at which this Soul is or was stored, if any.
+        @Override
+        public boolean visit(@NotNull Soul entry) {
+            count++;
+            return true;
+        }
+    }
+
+    /** A soul in a database. Its owner, items and experience can be changed through its setters,
+     * but don't forget to {@link SoulDatabase#markDirty(Soul)} if you do to ensure that the changes are saved
+     * ({@link SoulDatabase#markItemsDirty(Soul)} if the items were changed in place).
+     * Souls have identity semantics, two souls with the same content are still different souls. */
+    static final class Soul extends SpatialDatabase.Entry implements DeadSoulsAPI.Soul {
+
+        /** Index at which this Soul is stored, -1 if it is not in the database (anymore).
          * This is highly transient and does not serve as a way of identification. */
         transient int id = -1;
 
-        /** Current owner of the soul by {@link Player#getUniqueId()}. */
-        @Nullable
-        UUID owner;
+        /** Owner, items and experience. Replaced as a whole on each change, see {@link State}.
+         * NOTE: Synchronize on this soul before replacing */
+        @NotNull
+        private volatile State state;
+        /** Index of this soul in its list of {@link SoulDatabase#soulsByOwner}, -1 if not there. */
+        transient int ownerSlot = -1;
+        /** Index of this soul in {@link SoulDatabase#soulsByAge} and {@link SoulDatabase#ownedSoulsByAge}, -1 if not there. */
+        transient int fadeSlot = -1, freeSlot = -1;
         /** World in which the soul is by {@link World#getUID()}. */
         @NotNull
         final UUID locationWorld;
         /** Precise location of the soul in the world. */
         final double locationX, locationY, locationZ;
+        /** Spatial database cell of the location, see {@link #x()} and {@link #y()}. */
+        private final int cellX, cellZ;
         /** When was the soul created on clock of {@link System#currentTimeMillis()}. */
         final long timestamp;
 
-        /** Can be changed when collected */
-        @NotNull
-        ItemStack[] items;
-        /** Can be changed when collected */
-        int xp;
-
         Soul(@Nullable UUID owner, @NotNull UUID locationWorld, double x, double y, double z, long timestamp, @NotNull ItemStack[] items, int xp) {
-            this.owner = owner;
+            this(owner, locationWorld, x, y, z, timestamp, items, null, null, xp);
+        }
+
+        private Soul(@Nullable UUID owner, @NotNull UUID locationWorld, double x, double y, double z, long timestamp,
+                     @Nullable ItemStack[] items, byte @Nullable [] itemsSerialized, @Nullable Dictionary dictionary, int xp) {
+            this.state = new State(owner, xp, items, itemsSerialized, dictionary);
             this.locationWorld = locationWorld;
             this.locationX = x;
             this.locationY = y;
             this.locationZ = z;
+            this.cellX = Math.floorDiv(NumberConversions.floor(x), SOUL_STORE_SCALE);
+            this.cellZ = Math.floorDiv(NumberConversions.floor(z), SOUL_STORE_SCALE);
             this.timestamp = timestamp;
-            this.items = items;
-            this.xp = xp;
         }
 
-        boolean isOwnedBy(CommandSender commandSender) {
-            final UUID owner = this.owner;
-            return owner != null
-                    && commandSender instanceof OfflinePlayer
-                    && owner.equals(((OfflinePlayer) commandSender).getUniqueId());
+        /** @return the current state, which can be read from any thread without locking */
+        @NotNull
+        State state() {
+            return state;
         }
 
-        @SuppressWarnings("BooleanMethodIsAlwaysInverted")
-        boolean isAccessibleBy(@NotNull OfflinePlayer player, long now, long soulFreeAfterMs) {
-            final UUID owner = this.owner;
-            if (owner != null && !owner.equals(player.getUniqueId())) {
-                // Soul of somebody else, not accessible unless expired
-                if (saturatedAdd(timestamp, soulFreeAfterMs) <= now) {
-                    // Soul should become free
-                    this.owner = null;
-                    return true;
-                }
-                return false;
+        /** @return whether the soul has any items, without deserializing them */
+        boolean hasItems() {
+            return state.hasItems();
+        }
+
+        /** Change only through the database, which keeps an index of souls by owner. */
+        synchronized void setOwner(@Nullable UUID owner) {
+            final State state = this.state;
+            this.state = new State(owner, state.xp, state.items, state.itemsSerialized, state.dictionary);
+        }
+
+        synchronized void setExperiencePoints(int xp) {
+            final State state = this.state;
+            this.state = new State(state.owner, xp, state.items, state.itemsSerialized, state.dictionary);
+        }
+
+        synchronized void setItems(@NotNull ItemStack @NotNull [] items) {
+            final State state = this.state;
+            this.state = new State(state.owner, state.xp, items, null, null);
+        }
+
+        /** The items may have been modified in place, don't save the original form.
+         * Replaces the state even when it has no serialized form yet, because a save may be just serializing it. */
+        synchronized void itemsChanged() {
+            final State state = this.state;
+            final ItemStack[] items = state.items;
+            if (items != null) {
+                this.state = new State(state.owner, state.xp, items, null, null);
             }
-            return true;
         }
 
-        /** @return true if free, false if already freed */
-        boolean freeSoul(long now, long soulFreeAfterMs) {
-            if (this.owner == null) {
-                return false;
+        /** Keep the items, which were transcoded into another dictionary, in place of the old serialized form,
+         * so that the old dictionary can be forgotten. Nothing happens if the soul has changed since the state was read. */
+        synchronized void itemsTranscoded(@NotNull State from, byte @NotNull [] itemsSerialized, @NotNull Dictionary dictionary) {
+            if (this.state == from) {
+                this.state = new State(from.owner, from.xp, from.items, itemsSerialized, dictionary);
             }
+        }
 
-            this.owner = null;
-            // Did soul become free on its own?
-            return saturatedAdd(timestamp, soulFreeAfterMs) > now;
+        boolean isOwnedBy(CommandSender commandSender) {
+            final UUID owner = state.owner;
+            return owner != null
+                    && commandSender instanceof OfflinePlayer
+                    && owner.equals(((OfflinePlayer) commandSender).getUniqueId());
         }
 
         @Override
         public int x() {
-            return NumberConversions.floor(locationX) / SOUL_STORE_SCALE;
+            return cellX;
         }
 
         @Override
         public int y() {
-            return NumberConversions.floor(locationZ) / SOUL_STORE_SCALE;
+            return cellZ;
         }
 
         @Nullable
@@ -460,7 +2586,7 @@ final class SoulDatabase {
 
         @Override
         public @Nullable UUID getOwner() {
-            return owner;
+            return state.owner;
         }
 
         @Override
@@ -495,142 +2621,326 @@ final class SoulDatabase {
 
         @Override
         public @NotNull ItemStack @NotNull [] getItems() {
-            return items;
+            return state.getItems();
         }
 
         @Override
         public int getExperiencePoints() {
-            return xp;
+            return state.xp;
         }
 
         //endregion
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            Soul soul = (Soul) o;
-
-            if (Double.compare(soul.locationX, locationX) != 0) return false;
-            if (Double.compare(soul.locationY, locationY) != 0) return false;
-            if (Double.compare(soul.locationZ, locationZ) != 0) return false;
-            if (timestamp != soul.timestamp) return false;
-            if (xp != soul.xp) return false;
-            if (!Objects.equals(owner, soul.owner)) return false;
-            if (!locationWorld.equals(soul.locationWorld)) return false;
-            // Probably incorrect - comparing Object[] arrays with Arrays.equals
-            return Arrays.equals(items, soul.items);
-        }
-
-        @Override
-        public int hashCode() {
-            int result;
-            long temp;
-            result = owner != null ? owner.hashCode() : 0;
-            result = 31 * result + locationWorld.hashCode();
-            temp = Double.doubleToLongBits(locationX);
-            result = 31 * result + (int) (temp ^ (temp >>> 32));
-            temp = Double.doubleToLongBits(locationY);
-            result = 31 * result + (int) (temp ^ (temp >>> 32));
-            temp = Double.doubleToLongBits(locationZ);
-            result = 31 * result + (int) (temp ^ (temp >>> 32));
-            result = 31 * result + (int) (timestamp ^ (timestamp >>> 32));
-            result = 31 * result + Arrays.hashCode(items);
-            result = 31 * result + xp;
-            return result;
-        }
-
         @Override
         public String toString() {
+            final State state = this.state;
+            final ItemStack[] items = state.items;
             return "Soul{" +
                     "id=" + id +
-                    ", owner=" + owner +
+                    ", owner=" + state.owner +
                     ", locationWorld=" + locationWorld +
                     ", locationX=" + locationX +
                     ", locationY=" + locationY +
                     ", locationZ=" + locationZ +
                     ", timestamp=" + timestamp +
-                    ", items=" + Arrays.toString(items) +
-                    ", xp=" + xp +
+                    ", items=" + (items != null || state.itemsSerialized == null ? Arrays.toString(items) : "<serialized>") +
+                    ", xp=" + state.xp +
                     '}';
         }
     }
 
-    static boolean serializeSoul(@NotNull Soul soul, @NotNull DataOutputChannel out) {
-        final @NotNull ItemStack[] items = soul.items;
+    /** The part of a {@link Soul} which can change. It is never modified, each change replaces the whole state (copy on write),
+     * so that it can be read from any thread, for example by an asynchronous save, without locking and without seeing half of a change.
+     * Only the {@link ItemStack}s themselves are mutable, see {@link Soul#itemsChanged()}.
+     * Each state is one generation of the soul, which is serialized at most once (see {@link #cacheItemsSerialized}),
+     * and then only transcoded when the dictionary is replaced (see {@link Soul#itemsTranscoded}). */
+    static final class State {
+        /** Current owner of the soul by {@link Player#getUniqueId()}. */
+        @Nullable
+        final UUID owner;
+        final int xp;
+        /** Null until deserialized from {@link #itemsSerialized}. Set at most once, any thread which does it sets equal items. */
+        @Nullable
+        private volatile ItemStack[] items;
+        /** Items in the form in which they were loaded or last saved, see {@link #serializeItems(ItemStack[], DataOutputChannel, Dictionary)}.
+         * Most souls are never touched after they are loaded, so they are kept like this until they are needed,
+         * and saved back verbatim while unchanged. Null when the items have changed and were not saved yet.
+         * Set at most once, always after {@link #dictionary}. */
+        private volatile byte @Nullable [] itemsSerialized;
+        /** Dictionary to which {@link #itemsSerialized} refer. Read only after a non-null {@link #itemsSerialized}. */
+        @Nullable
+        private Dictionary dictionary;
+
+        State(@Nullable UUID owner, int xp, @Nullable ItemStack[] items, byte @Nullable [] itemsSerialized, @Nullable Dictionary dictionary) {
+            this.owner = owner;
+            this.xp = xp;
+            this.items = items;
+            this.itemsSerialized = itemsSerialized;
+            this.dictionary = dictionary;
+        }
+
+        /** @return {@link #itemsSerialized} if they refer to the dictionary, null if the items have to be serialized */
+        byte @Nullable [] itemsSerializedFor(@Nullable Dictionary dictionary) {
+            final byte[] itemsSerialized = this.itemsSerialized;
+            if (itemsSerialized != null && dictionary != null && this.dictionary == dictionary) {
+                return itemsSerialized;
+            }
+            return null;
+        }
+
+        /** @return whether the items are kept serialized, for any dictionary */
+        boolean isItemsSerialized() {
+            return itemsSerialized != null;
+        }
+
+        /** Keep the items which were just serialized, so that they don't have to be serialized again until they change. */
+        synchronized void cacheItemsSerialized(byte @NotNull [] itemsSerialized, @NotNull Dictionary dictionary) {
+            if (this.itemsSerialized == null) {
+                this.dictionary = dictionary;
+                this.itemsSerialized = itemsSerialized;
+            }
+        }
+
+        /** @return whether there are any items, without deserializing them */
+        boolean hasItems() {
+            final ItemStack[] items = this.items;
+            if (items != null) {
+                return items.length > 0;
+            }
+            final byte[] itemsSerialized = this.itemsSerialized;
+            if (itemsSerialized == null) {
+                return false;
+            }
+            // Starts with the amount of items as a varint, which may be padded with zero groups
+            for (byte b : itemsSerialized) {
+                if ((b & 0x7F) != 0) {
+                    return true;
+                }
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return false;
+        }
+
+        @NotNull
+        ItemStack @NotNull [] getItems() {
+            ItemStack[] items = this.items;
+            if (items == null) {
+                final byte[] itemsSerialized = this.itemsSerialized;
+                assert itemsSerialized != null;
+                try {
+                    items = deserializeItems(new DataInputStream(new ByteArrayInputStream(itemsSerialized)), dictionary);
+                } catch (IOException | Serialization.Exception e) {
+                    // Should not happen, the structure was checked when loaded
+                    LOG.log(Level.SEVERE, "Failed to deserialize items", e);
+                    items = new ItemStack[0];
+                }
+                this.items = items;
+            }
+            return items;
+        }
+    }
+
+    /** Write the soul in the current format.
+     * @param dictionary to which repeating strings and UUIDs are moved,
+     *                   null to write the soul in the format of db versions 1 to 4, which is useful only for tests
+     * @return false if the soul failed to serialize */
+    static boolean serializeSoul(@NotNull Soul soul, @NotNull DataOutputChannel out, @Nullable Dictionary dictionary) {
         try {
-            serializeUUID(soul.locationWorld, out);
+            // Read once, so that a concurrent change is either saved whole or not at all
+            final State state = soul.state;
+            final UUID owner = state.owner;
+            if (dictionary != null) {
+                writeVarInt(out, dictionary.uuids.indexOf(soul.locationWorld));
+            } else {
+                serializeUUID(soul.locationWorld, out);
+            }
             out.writeDouble(soul.locationX);
             out.writeDouble(soul.locationY);
             out.writeDouble(soul.locationZ);
-            final UUID owner = soul.owner;
-            if (owner == null) {
-                serializeUUID(ZERO_UUID, out);
+            if (dictionary != null) {
+                // 0 is no owner
+                writeVarInt(out, owner == null ? 0 : dictionary.uuids.indexOf(owner) + 1);
             } else {
-                serializeUUID(owner, out);
+                serializeUUID(owner == null ? ZERO_UUID : owner, out);
             }
             out.writeLong(soul.timestamp);
-            out.writeInt(soul.xp);
+            out.writeInt(state.xp);
+
+            final byte[] itemsSerialized = state.itemsSerializedFor(dictionary);
+            if (itemsSerialized != null) {
+                // Unchanged since loaded or since last saved
+                out.write(itemsSerialized);
+            } else if (dictionary != null) {
+                // Serialized on the side and kept, so that the next save of this state can write them verbatim
+                final ByteBufferChannel itemsChannel = new ByteBufferChannel(256);
+                final byte[] otherItemsSerialized = state.itemsSerialized;
+                boolean transcoded = false;
+                int failed = 0;
+                try (DataOutputChannel itemsOut = new DataOutputChannel(itemsChannel, 256)) {
+                    if (otherItemsSerialized != null) {
+                        // Unchanged, but kept for an older dictionary, move them to this one without deserializing them
+                        try {
+                            transcodeItems(new DataInputStream(new ByteArrayInputStream(otherItemsSerialized)), state.dictionary, itemsOut, dictionary);
+                            transcoded = true;
+                        } catch (IOException | Serialization.Exception e) {
+                            LOG.log(Level.SEVERE, "Failed to transcode items of "+soul+", serializing them again", e);
+                            itemsOut.position(0L);
+                            itemsOut.truncate();
+                        }
+                    }
+                    if (!transcoded) {
+                        failed = serializeItems(state.getItems(), itemsOut, dictionary);
+                    }
+                }
+                final byte[] items = Arrays.copyOf(itemsChannel.array(), (int) itemsChannel.size());
+                out.write(items);
+                if (transcoded) {
+                    soul.itemsTranscoded(state, items, dictionary);
+                } else if (failed == 0) {
+                    // Items which failed are tried (and reported) again next time
+                    state.cacheItemsSerialized(items, dictionary);
+                }
+            } else {
+                serializeItems(state.getItems(), out, null);
+            }
+        } catch (IOException io) {
+            LOG.log(Level.SEVERE, "Failed to serialize: "+soul, io);
+            return false;
+        }
+
+        return true;
+    }
 
-            final long itemAmountPosition = out.position();
+    /** @param dictionary see {@link #serializeSoul(Soul, DataOutputChannel, Dictionary)}
+     * @return amount of items which failed to serialize and were left out */
+    private static int serializeItems(@NotNull ItemStack @NotNull [] items, @NotNull DataOutputChannel out, @Nullable Dictionary dictionary) throws IOException {
+        final long itemAmountPosition = out.position();
+        if (dictionary != null) {
+            writeVarInt(out, items.length);
+        } else {
             out.writeShort(items.length);
-            int failed = 0;
-            for (ItemStack item : items) {
-                final long itemPosition = out.position();
-                try {
-                    final Map<String, Object> map = item.serialize();
+        }
+        int failed = 0;
+        for (ItemStack item : items) {
+            final long itemPosition = out.position();
+            try {
+                final Map<String, Object> map = item.serialize();
+                if (dictionary != null) {
+                    writeVarInt(out, map.size());
+                } else {
                     out.writeShort(map.size());
-                    for (Map.Entry<String, Object> entry : map.entrySet()) {
-                        out.writeUTF(entry.getKey());
-                        serializeObject(entry.getValue(), out);
-                    }
-                } catch (Exception e) {
-                    LOG.log(Level.SEVERE, "Failed to serialize item: "+Util.safeToString(item), e);
-                    out.position(itemPosition);
-                    out.truncate();
-                    failed++;
                 }
+                for (Map.Entry<String, Object> entry : map.entrySet()) {
+                    writeKey(entry.getKey(), out, dictionary);
+                    serializeObject(entry.getValue(), out, dictionary);
+                }
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Failed to serialize item: "+Util.safeToString(item), e);
+                out.position(itemPosition);
+                out.truncate();
+                failed++;
             }
+        }
 
-            if (failed > 0) {
-                final long endPosition = out.position();
-                out.position(itemAmountPosition);
+        if (failed > 0) {
+            final long endPosition = out.position();
+            out.position(itemAmountPosition);
+            if (dictionary != null) {
+                // Must not get shorter, it is followed by the items
+                writeVarInt(out, items.length - failed, varIntLength(items.length));
+            } else {
                 out.writeShort(items.length - failed);
-                out.position(endPosition);
             }
-        } catch (IOException io) {
-            LOG.log(Level.SEVERE, "Failed to serialize: "+ Arrays.toString(items), io);
-            return false;
+            out.position(endPosition);
+        }
+        return failed;
+    }
+
+    /** Read soul prefixed by its length, as written in db version 3, with lazy items. */
+    @NotNull
+    static Soul deserializeSoulRecord(@NotNull SeekableDataInput in, int version, @NotNull Dictionary dictionary) throws IOException, Serialization.Exception {
+        final int length = in.readInt();
+        final long start = in.position();
+        final Soul soul = deserializeSoul(in, version, dictionary, true);
+        final long read = in.position() - start;
+        if (read != length) {
+            throw new Serialization.Exception("Soul record should have "+length+" bytes, but has "+read);
         }
+        return soul;
+    }
 
-        return true;
+    @NotNull
+    static Soul deserializeSoul(@NotNull SeekableDataInput in, int version, @NotNull Dictionary dictionary) throws IOException, Serialization.Exception {
+        return deserializeSoul(in, version, dictionary, false);
     }
 
+    /** @param dictionary to which the soul refers (db version 5+), or into which the items of older versions are converted
+     * @param lazyItems keep the items serialized until they are needed, see {@link State#itemsSerialized} */
     @NotNull
-    static Soul deserializeSoul(@NotNull DataInput in, int version) throws IOException, Serialization.Exception {
-        final UUID worldUUID = deserializeUUID(in);
-        final double locationX = version == 0 ? in.readInt() : in.readDouble();
-        final double locationY = version == 0 ? in.readInt() : in.readDouble();
-        final double locationZ = version == 0 ? in.readInt() : in.readDouble();
-        final UUID ownerUUID = deserializeUUID(in);
+    static Soul deserializeSoul(@NotNull SeekableDataInput in, int version, @NotNull Dictionary dictionary, boolean lazyItems) throws IOException, Serialization.Exception {
+        final UUID worldUUID;
+        final double locationX, locationY, locationZ;
+        final UUID owner;
+        if (version >= 5) {
+            worldUUID = dictionary.uuids.entry(readVarInt(in));
+            locationX = in.readDouble();
+            locationY = in.readDouble();
+            locationZ = in.readDouble();
+            final int ownerIndex = readVarInt(in);
+            owner = ownerIndex == 0 ? null : dictionary.uuids.entry(ownerIndex - 1);
+        } else {
+            worldUUID = deserializeUUID(in);
+            locationX = version == 0 ? in.readInt() : in.readDouble();
+            locationY = version == 0 ? in.readInt() : in.readDouble();
+            locationZ = version == 0 ? in.readInt() : in.readDouble();
+            final UUID ownerUUID = deserializeUUID(in);
+            owner = ownerUUID.equals(ZERO_UUID) ? null : ownerUUID;
+        }
         final long timestamp = in.readLong();
         final int xp = in.readInt();
 
-        final int itemAmount = in.readUnsignedShort();
+        if (lazyItems) {
+            final byte[] itemsSerialized;
+            if (version >= 5) {
+                // Walk the structure to find where the items end, then copy them whole
+                final long itemsStart = in.position();
+                skipItems(in);
+                final long itemsEnd = in.position();
+                itemsSerialized = new byte[(int) (itemsEnd - itemsStart)];
+                in.position(itemsStart);
+                in.readFully(itemsSerialized);
+            } else {
+                // Convert them to the current format right away, so that they can be kept and saved like the current ones
+                final ByteArrayOutputStream itemsOut = new ByteArrayOutputStream();
+                transcodeLegacyItems(in, new DataOutputStream(itemsOut), dictionary);
+                itemsSerialized = itemsOut.toByteArray();
+            }
+            return new Soul(owner, worldUUID, locationX, locationY, locationZ, timestamp, null, itemsSerialized, dictionary, xp);
+        }
+
+        final ItemStack[] items = deserializeItems(in, version >= 5 ? dictionary : null);
+        return new Soul(owner, worldUUID, locationX, locationY, locationZ, timestamp, items, xp);
+    }
+
+    /** @param dictionary with which the items were serialized, null for db versions 0 to 4 */
+    @NotNull
+    private static ItemStack @NotNull [] deserializeItems(@NotNull DataInput in, @Nullable Dictionary dictionary) throws IOException, Serialization.Exception {
+        final int itemAmount = dictionary != null ? readVarInt(in) : in.readUnsignedShort();
         if (itemAmount > 100) {
             LOG.log(Level.WARNING, "Suspiciously high amount of items in the soul: "+itemAmount);
         }
         final ItemStack[] items = new ItemStack[itemAmount];
         for (int i = 0; i < itemAmount; i++) {
-            final int entries = in.readUnsignedShort();
+            final int entries = dictionary != null ? readVarInt(in) : in.readUnsignedShort();
             if (entries > 100) {
                 LOG.log(Level.WARNING, "Suspiciously high amount of entries in the soul: "+entries);
             }
             final HashMap<String, Object> itemMap = new HashMap<>(entries + entries / 2);
             for (int entryId = 0; entryId < entries; entryId++) {
-                final String key = in.readUTF();
-                final Object value = deserializeObject(in);
+                final String key = readKey(in, dictionary);
+                final Object value = deserializeObject(in, dictionary);
                 itemMap.put(key, value);
             }
             try {
@@ -640,8 +2950,46 @@ final class SoulDatabase {
                 items[i] = new ItemStack(Material.AIR);
             }
         }
+        return items;
+    }
 
-        final UUID owner = ownerUUID.equals(ZERO_UUID) ? null : ownerUUID;
-        return new Soul(owner, worldUUID, locationX, locationY, locationZ, timestamp, items, xp);
+    /** Skip items written with a dictionary. */
+    private static void skipItems(@NotNull DataInput in) throws IOException, Serialization.Exception {
+        final int itemAmount = readVarInt(in);
+        for (int i = 0; i < itemAmount; i++) {
+            final int entries = readVarInt(in);
+            for (int entryId = 0; entryId < entries; entryId++) {
+                skipKey(in, true);
+                skipObject(in);
+            }
+        }
+    }
+
+    /** Copy items written with one dictionary into the form written with another one, without deserializing them. */
+    private static void transcodeItems(@NotNull DataInput in, @Nullable Dictionary inDictionary, @NotNull DataOutput out, @NotNull Dictionary dictionary) throws IOException, Serialization.Exception {
+        final int itemAmount = readVarInt(in);
+        writeVarInt(out, itemAmount);
+        for (int i = 0; i < itemAmount; i++) {
+            final int entries = readVarInt(in);
+            writeVarInt(out, entries);
+            for (int entryId = 0; entryId < entries; entryId++) {
+                writeKey(readKey(in, inDictionary), out, dictionary);
+                transcodeObject(in, inDictionary, out, dictionary);
+            }
+        }
+    }
+
+    /** Convert items of db versions 0 to 4 to the form written with the dictionary. */
+    private static void transcodeLegacyItems(@NotNull DataInput in, @NotNull DataOutput out, @NotNull Dictionary dictionary) throws IOException, Serialization.Exception {
+        final int itemAmount = in.readUnsignedShort();
+        writeVarInt(out, itemAmount);
+        for (int i = 0; i < itemAmount; i++) {
+            final int entries = in.readUnsignedShort();
+            writeVarInt(out, entries);
+            for (int entryId = 0; entryId < entries; entryId++) {
+                writeKey(in.readUTF(), out, dictionary);
+                transcodeObject(in, null, out, dictionary);
+            }
+        }
     }
 }
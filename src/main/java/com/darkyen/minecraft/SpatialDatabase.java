@@ -1,27 +1,52 @@
 package com.darkyen.minecraft;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 import static com.darkyen.minecraft.Util.overlaps;
 
 /**
  * Implements a modified Quad-tree algorithm, which splits the world into Tiles,
  * which contain a few quad-tree subdivisions.
+ *
+ * Queries don't modify anything shared, so they can run on multiple threads at once,
+ * but not at the same time as a modification.
  */
 final class SpatialDatabase<E extends SpatialDatabase.Entry> {
 
     private static final int CHUNK_BUCKET_LEVEL = 7;
-    private static final int MAX_QUAD_SIZE = 16;
+    private static final int CHUNK_BUCKET_MASK = (1 << CHUNK_BUCKET_LEVEL) - 1;
+    /** Leaves split when they hold more entries than this. Scanning a leaf compares only its packed cells,
+     * so large leaves are cheap to query and save the memory of many small nodes. */
+    private static final int MAX_QUAD_SIZE = 32;
+    /** When a subdivided quad holds at most this many entries, it is joined back into a leaf.
+     * Lower than {@link #MAX_QUAD_SIZE} to prevent repeated split-join cycles. */
+    private static final int JOIN_QUAD_SIZE = MAX_QUAD_SIZE / 2;
+    /** Leaves start this small and grow up to {@link #MAX_QUAD_SIZE} as needed,
+     * because most of them hold only a few entries after their parent splits. */
+    private static final int INITIAL_LEAF_CAPACITY = 8;
 
+    /** All non-empty buckets by their {@link ChunkBucket#bucketKey}. */
     @NotNull
-    @SuppressWarnings("unchecked")
-    private ChunkBucket<E>[] buckets = new ChunkBucket[16];
-    private int bucketCount = 0;
+    private final LongMap<ChunkBucket<E>> buckets = new LongMap<>();
+
+    /** All buckets sorted by {@link ChunkBucket#bucketKey}, for queries over large areas.
+     * Rebuilt lazily by queries into a new array, null when it has to be rebuilt.
+     * Concurrent queries may both rebuild it, but they build the same array. */
+    private volatile ChunkBucket<E> @Nullable [] orderedBuckets = null;
+
+    /** Reused by {@link #queryNearest}, so that it does not allocate.
+     * Taken out while in use, so that concurrent queries allocate their own. */
+    @NotNull
+    private final AtomicReference<@Nullable NearestHeap> spareNearestHeap = new AtomicReference<>(new NearestHeap());
 
     static long key(int x, int y) {
         // Y is sign-shifted
@@ -36,11 +61,32 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
         return (int) ((key & 0xFFFFFFFFL) - 0x8000_0000L);
     }
 
-    private int findBucket(final long key) {
-        final ChunkBucket<E>[] buckets = this.buckets;
+    /** @return {@link #orderedBuckets}, rebuilt if needed. Their amount is the length of the array. */
+    @NotNull
+    private ChunkBucket<E>[] orderedBuckets() {
+        ChunkBucket<E>[] ordered = this.orderedBuckets;
+        if (ordered != null) {
+            return ordered;
+        }
+
+        final LongMap<ChunkBucket<E>> buckets = this.buckets;
+        //noinspection unchecked
+        ordered = new ChunkBucket[buckets.size()];
+        int count = 0;
+        for (int i = 0, capacity = buckets.capacity(); i < capacity; i++) {
+            final ChunkBucket<E> bucket = buckets.valueAt(i);
+            if (bucket != null) {
+                ordered[count++] = bucket;
+            }
+        }
+        Arrays.sort(ordered, BUCKET_ORDER);
+        this.orderedBuckets = ordered;
+        return ordered;
+    }
 
+    private static int findOrderedBucket(final ChunkBucket<?>[] buckets, final long key) {
         int low = 0;
-        int high = bucketCount - 1;
+        int high = buckets.length - 1;
 
         while (low <= high) {
             int mid = (low + high) >>> 1;
@@ -57,33 +103,132 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
     }
 
     public void insert(@NotNull E entry) {
+        assert entry.leaf == null : "Entry is already stored";
         final int x = entry.x();
         final int y = entry.y();
         final long key = key(x >> CHUNK_BUCKET_LEVEL, y >> CHUNK_BUCKET_LEVEL);
-        ChunkBucket<E>[] buckets = this.buckets;
 
-        int bucketI = findBucket(key);
-        final ChunkBucket<E> bucket;
-        if (bucketI < 0) {
-            bucketI = -bucketI - 1;
+        ChunkBucket<E> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ChunkBucket<>(key);
+            buckets.put(key, bucket);
+            orderedBuckets = null;
+        }
+
+        bucket.insert(x, y, 1 << CHUNK_BUCKET_LEVEL, entry);
+    }
+
+    /**
+     * Insert all entries at once. When the database is empty, the entries are grouped by bucket,
+     * ordered along the Z-order curve inside each bucket (see {@link #SPATIAL_ORDER}) and the tree is built directly
+     * from the ordered runs, without any leaf splitting.
+     */
+    public void insertAll(@NotNull E @NotNull [] entries) {
+        if (!isEmpty()) {
+            for (E entry : entries) {
+                insert(entry);
+            }
+            return;
+        }
+
+        final int count = entries.length;
+        if (isSpatiallyOrdered(entries)) {
+            // Typical when loading a saved database, the runs are already there
+            buildBuckets(entries, 0, count);
+            return;
+        }
 
-            // Grow if needed
-            if (bucketCount == buckets.length) {
-                buckets = this.buckets = Arrays.copyOf(buckets, buckets.length * 2);
+        // Count entries of each bucket: {count, start, fill}
+        final LongMap<int[]> runs = new LongMap<>();
+        final long[] bucketKeys = new long[count];
+        for (int i = 0; i < count; i++) {
+            final E entry = entries[i];
+            assert entry.leaf == null : "Entry is already stored";
+            final long key = bucketKeys[i] = key(entry.x() >> CHUNK_BUCKET_LEVEL, entry.y() >> CHUNK_BUCKET_LEVEL);
+            int[] run = runs.get(key);
+            if (run == null) {
+                run = new int[3];
+                runs.put(key, run);
             }
+            run[0]++;
+        }
 
-            // Scoot over
-            System.arraycopy(buckets, bucketI, buckets, bucketI + 1, bucketCount - bucketI);
+        // Give each bucket a contiguous run
+        int offset = 0;
+        for (int i = 0, capacity = runs.capacity(); i < capacity; i++) {
+            final int[] run = runs.valueAt(i);
+            if (run != null) {
+                run[1] = run[2] = offset;
+                offset += run[0];
+            }
+        }
 
-            // Insert
-            buckets[bucketI] = bucket = new ChunkBucket<>(key);
-            bucketCount++;
-        } else {
-            // Get
-            bucket = buckets[bucketI];
+        // Z-order position in the high bits, entry index in the low bits, so that the runs can be sorted as primitives
+        final long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            final E entry = entries[i];
+            final int[] run = runs.get(bucketKeys[i]);
+            order[run[2]++] = (long) mortonCell(entry.x(), entry.y()) << 32 | i;
         }
 
-        bucket.insert(x, y, 1 << CHUNK_BUCKET_LEVEL, entry);
+        final Object[] sorted = new Object[count];
+        for (int i = 0, capacity = runs.capacity(); i < capacity; i++) {
+            final int[] run = runs.valueAt(i);
+            if (run == null) {
+                continue;
+            }
+            final int from = run[1];
+            final int to = run[2];
+            Arrays.sort(order, from, to);
+            for (int j = from; j < to; j++) {
+                sorted[j] = entries[(int) order[j]];
+            }
+        }
+
+        // Runs are in the table order of the runs map, which would cluster while growing the buckets map
+        buckets.ensureCapacity(runs.size());
+        buildBuckets(sorted, 0, count);
+    }
+
+    /** @return true if the entries are in {@link #SPATIAL_ORDER} */
+    private static boolean isSpatiallyOrdered(@NotNull Entry @NotNull [] entries) {
+        long lastKey = Long.MIN_VALUE;
+        int lastCell = -1;
+        for (Entry entry : entries) {
+            final int x = entry.x();
+            final int y = entry.y();
+            final long key = key(x >> CHUNK_BUCKET_LEVEL, y >> CHUNK_BUCKET_LEVEL);
+            final int cell = mortonCell(x, y);
+            if (key < lastKey || (key == lastKey && cell < lastCell)) {
+                return false;
+            }
+            lastKey = key;
+            lastCell = cell;
+        }
+        return true;
+    }
+
+    /** Build buckets of entries[from, to), which are in {@link #SPATIAL_ORDER}. */
+    private void buildBuckets(@NotNull Object @NotNull [] entries, int from, int to) {
+        final int bucketSize = 1 << CHUNK_BUCKET_LEVEL;
+        while (from < to) {
+            final Entry first = (Entry) entries[from];
+            final long key = key(first.x() >> CHUNK_BUCKET_LEVEL, first.y() >> CHUNK_BUCKET_LEVEL);
+            int runEnd = from + 1;
+            while (runEnd < to) {
+                final Entry entry = (Entry) entries[runEnd];
+                if (key(entry.x() >> CHUNK_BUCKET_LEVEL, entry.y() >> CHUNK_BUCKET_LEVEL) != key) {
+                    break;
+                }
+                runEnd++;
+            }
+
+            final ChunkBucket<E> bucket = new ChunkBucket<>(key);
+            bucket.build(entries, from, runEnd, bucketSize);
+            buckets.put(key, bucket);
+            from = runEnd;
+        }
+        orderedBuckets = null;
     }
 
     /** @return true if removed, false if not found */
@@ -92,21 +237,61 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
         final int y = entry.y();
         final long key = key(x >> CHUNK_BUCKET_LEVEL, y >> CHUNK_BUCKET_LEVEL);
 
-        int bucketI = findBucket(key);
-        if (bucketI < 0) {
+        final ChunkBucket<E> bucket = buckets.get(key);
+        if (bucket == null || !bucket.remove(x, y, 1 << CHUNK_BUCKET_LEVEL, entry)) {
             return false;
         }
-        return buckets[bucketI].remove(x, y, 1 << CHUNK_BUCKET_LEVEL, entry);
+
+        if (bucket.entriesCount == 0) {
+            // Bucket is empty, drop it
+            buckets.remove(key);
+            orderedBuckets = null;
+        }
+        return true;
     }
 
+    /** Add all entries in the given inclusive range to the out collection. */
     public void query(int xMin, int xMax, int yMin, int yMax, @NotNull Collection<E> out) {
-        final ChunkBucket<E>[] buckets = this.buckets;
-        final int bucketCount = this.bucketCount;
+        query(xMin, xMax, yMin, yMax, entry -> {
+            out.add(entry);
+            return true;
+        });
+    }
+
+    /**
+     * Visit all entries in the given inclusive range, until the visitor asks to stop.
+     * Does not allocate.
+     * @return true if all entries were visited, false if the visitor stopped early
+     */
+    public boolean query(int xMin, int xMax, int yMin, int yMax, @NotNull Visitor<? super E> visitor) {
+        final int bucketXMin = xMin >> CHUNK_BUCKET_LEVEL;
+        final int bucketXMax = xMax >> CHUNK_BUCKET_LEVEL;
+        final int bucketYMin = yMin >> CHUNK_BUCKET_LEVEL;
+        final int bucketYMax = yMax >> CHUNK_BUCKET_LEVEL;
+        final long queriedBuckets = ((long) bucketXMax - bucketXMin + 1L) * ((long) bucketYMax - bucketYMin + 1L);
+
+        if (queriedBuckets <= buckets.size()) {
+            // Small area, look up each bucket directly
+            final LongMap<ChunkBucket<E>> buckets = this.buckets;
+            for (int x = bucketXMin; x <= bucketXMax; x++) {
+                for (int y = bucketYMin; y <= bucketYMax; y++) {
+                    final ChunkBucket<E> bucket = buckets.get(key(x, y));
+                    if (bucket != null && !bucket.query(xMin, xMax, yMin, yMax, x << CHUNK_BUCKET_LEVEL, y << CHUNK_BUCKET_LEVEL, 1 << CHUNK_BUCKET_LEVEL, visitor)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
 
-        for (int x = xMin >> CHUNK_BUCKET_LEVEL; x <= xMax >> CHUNK_BUCKET_LEVEL; x++) {
-            final long minKey = key(x, yMin >> CHUNK_BUCKET_LEVEL);
-            final long maxKey = key(x, yMax >> CHUNK_BUCKET_LEVEL);
-            int bucketIndex = findBucket(minKey);
+        // Large area, walk the ordered buckets
+        final ChunkBucket<E>[] buckets = orderedBuckets();
+        final int bucketCount = buckets.length;
+
+        for (int x = bucketXMin; x <= bucketXMax; x++) {
+            final long minKey = key(x, bucketYMin);
+            final long maxKey = key(x, bucketYMax);
+            int bucketIndex = findOrderedBucket(buckets, minKey);
             if (bucketIndex < 0) {
                 bucketIndex = -bucketIndex - 1;
             }
@@ -118,19 +303,242 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
 
                 final int bucketX = keyX(bucketKey) << CHUNK_BUCKET_LEVEL;
                 final int bucketY = keyY(bucketKey) << CHUNK_BUCKET_LEVEL;
-                bucket.query(xMin, xMax, yMin, yMax, bucketX, bucketY, 1 << CHUNK_BUCKET_LEVEL, out);
+                if (!bucket.query(xMin, xMax, yMin, yMax, bucketX, bucketY, 1 << CHUNK_BUCKET_LEVEL, visitor)) {
+                    return false;
+                }
 
                 bucketIndex++;
             }
+
+            if (bucketIndex >= bucketCount) {
+                break;
+            }
         }
+        return true;
+    }
+
+    /** Count entries in the given inclusive range. Does not allocate. */
+    public int count(int xMin, int xMax, int yMin, int yMax) {
+        final int bucketXMin = xMin >> CHUNK_BUCKET_LEVEL;
+        final int bucketXMax = xMax >> CHUNK_BUCKET_LEVEL;
+        final int bucketYMin = yMin >> CHUNK_BUCKET_LEVEL;
+        final int bucketYMax = yMax >> CHUNK_BUCKET_LEVEL;
+        final long queriedBuckets = ((long) bucketXMax - bucketXMin + 1L) * ((long) bucketYMax - bucketYMin + 1L);
+        int count = 0;
+
+        if (queriedBuckets <= buckets.size()) {
+            final LongMap<ChunkBucket<E>> buckets = this.buckets;
+            for (int x = bucketXMin; x <= bucketXMax; x++) {
+                for (int y = bucketYMin; y <= bucketYMax; y++) {
+                    final ChunkBucket<E> bucket = buckets.get(key(x, y));
+                    if (bucket != null) {
+                        count += bucket.count(xMin, xMax, yMin, yMax, x << CHUNK_BUCKET_LEVEL, y << CHUNK_BUCKET_LEVEL, 1 << CHUNK_BUCKET_LEVEL);
+                    }
+                }
+            }
+        } else {
+            final LongMap<ChunkBucket<E>> buckets = this.buckets;
+            for (int i = 0, capacity = buckets.capacity(); i < capacity; i++) {
+                final ChunkBucket<E> bucket = buckets.valueAt(i);
+                if (bucket == null) {
+                    continue;
+                }
+                final long bucketKey = bucket.bucketKey;
+                final int bucketX = keyX(bucketKey);
+                final int bucketY = keyY(bucketKey);
+                if (bucketX >= bucketXMin && bucketX <= bucketXMax && bucketY >= bucketYMin && bucketY <= bucketYMax) {
+                    count += bucket.count(xMin, xMax, yMin, yMax, bucketX << CHUNK_BUCKET_LEVEL, bucketY << CHUNK_BUCKET_LEVEL, 1 << CHUNK_BUCKET_LEVEL);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Visit all entries within the given distance from a point, until the visitor asks to stop.
+     * Quads are pruned by their real distance from the point, not by a bounding box. Does not allocate.
+     *
+     * @param x query point, in the same space as {@link Entry#x()}
+     * @param y query point, in the same space as {@link Entry#y()}
+     * @param maxDistance2 only entries whose distance is not greater than this are visited
+     * @param distance metric to use, see {@link Distance}
+     * @return true if all entries were visited, false if the visitor stopped early
+     */
+    public boolean query(double x, double y, double maxDistance2, @NotNull Distance<? super E> distance, @NotNull Visitor<? super E> visitor) {
+        if (!(maxDistance2 >= 0.0) || buckets.size() == 0) {
+            return true;
+        }
+        final int bucketSize = 1 << CHUNK_BUCKET_LEVEL;
+        final double maxDistance = Math.sqrt(maxDistance2);
+        final double bucketXMin = Math.floor((x - maxDistance) / bucketSize);
+        final double bucketXMax = Math.floor((x + maxDistance) / bucketSize);
+        final double bucketYMin = Math.floor((y - maxDistance) / bucketSize);
+        final double bucketYMax = Math.floor((y + maxDistance) / bucketSize);
+        final double queriedBuckets = (bucketXMax - bucketXMin + 1.0) * (bucketYMax - bucketYMin + 1.0);
+        final LongMap<ChunkBucket<E>> buckets = this.buckets;
+        if (queriedBuckets <= buckets.size()) {
+            for (int bx = (int) bucketXMin; bx <= (int) bucketXMax; bx++) {
+                for (int by = (int) bucketYMin; by <= (int) bucketYMax; by++) {
+                    final ChunkBucket<E> bucket = buckets.get(key(bx, by));
+                    if (bucket != null && !bucket.query(x, y, maxDistance2, distance, bx << CHUNK_BUCKET_LEVEL, by << CHUNK_BUCKET_LEVEL, bucketSize, visitor)) {
+                        return false;
+                    }
+                }
+            }
+        } else {
+            for (int i = 0, capacity = buckets.capacity(); i < capacity; i++) {
+                final ChunkBucket<E> bucket = buckets.valueAt(i);
+                if (bucket != null && !bucket.query(x, y, maxDistance2, distance, keyX(bucket.bucketKey) << CHUNK_BUCKET_LEVEL, keyY(bucket.bucketKey) << CHUNK_BUCKET_LEVEL, bucketSize, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find up to k entries nearest to the given point, using best-first search.
+     * Only the nodes which may contain entries closer than the k-th nearest entry are visited.
+     * Does not allocate, except for growing internal buffers. Must not be called from inside the metric or the filter.
+     *
+     * @param x query point, in the same space as {@link Entry#x()}
+     * @param y query point, in the same space as {@link Entry#y()}
+     * @param k maximum amount of entries to find
+     * @param maxDistance2 entries whose distance is greater than this are not found
+     * @param distance metric to use, see {@link Distance}
+     * @param filter only entries accepted by this filter are found, null to accept all
+     * @param out found entries are added here, nearest first (it is not cleared)
+     * @return amount of entries found
+     */
+    public int queryNearest(double x, double y, int k, double maxDistance2, @NotNull Distance<? super E> distance, @Nullable Predicate<? super E> filter, @NotNull Collection<E> out) {
+        if (k <= 0 || buckets.size() == 0) {
+            return 0;
+        }
+
+        final NearestHeap spareHeap = spareNearestHeap.getAndSet(null);
+        final NearestHeap heap = spareHeap != null ? spareHeap : new NearestHeap();
+        final int bucketSize = 1 << CHUNK_BUCKET_LEVEL;
+
+        // Seed with buckets that are not too far
+        final double maxDistance = Math.sqrt(maxDistance2);
+        final double bucketXMin = Math.floor((x - maxDistance) / bucketSize);
+        final double bucketXMax = Math.floor((x + maxDistance) / bucketSize);
+        final double bucketYMin = Math.floor((y - maxDistance) / bucketSize);
+        final double bucketYMax = Math.floor((y + maxDistance) / bucketSize);
+        final double queriedBuckets = (bucketXMax - bucketXMin + 1.0) * (bucketYMax - bucketYMin + 1.0);
+        final LongMap<ChunkBucket<E>> buckets = this.buckets;
+        if (queriedBuckets <= buckets.size()) {
+            for (int bx = (int) bucketXMin; bx <= (int) bucketXMax; bx++) {
+                for (int by = (int) bucketYMin; by <= (int) bucketYMax; by++) {
+                    final ChunkBucket<E> bucket = buckets.get(key(bx, by));
+                    if (bucket != null) {
+                        heap.pushNode(x, y, maxDistance2, bucket, bx << CHUNK_BUCKET_LEVEL, by << CHUNK_BUCKET_LEVEL, bucketSize);
+                    }
+                }
+            }
+        } else {
+            for (int i = 0, capacity = buckets.capacity(); i < capacity; i++) {
+                final ChunkBucket<E> bucket = buckets.valueAt(i);
+                if (bucket != null) {
+                    heap.pushNode(x, y, maxDistance2, bucket, keyX(bucket.bucketKey) << CHUNK_BUCKET_LEVEL, keyY(bucket.bucketKey) << CHUNK_BUCKET_LEVEL, bucketSize);
+                }
+            }
+        }
+
+        int found = 0;
+        while (heap.size > 0) {
+            final int quadSize = heap.sizes[0];
+            final int quadX = heap.xs[0];
+            final int quadY = heap.ys[0];
+            final Object item = heap.pop();
+
+            if (quadSize == 0) {
+                // Nothing in the heap can be closer than this entry
+                //noinspection unchecked
+                out.add((E) item);
+                if (++found >= k) {
+                    break;
+                }
+                continue;
+            }
+
+            //noinspection unchecked
+            final Quad<E> quad = (Quad<E>) item;
+            final Object[] entries = quad.entries;
+            if (entries != null) {
+                final char[] cells = quad.cells;
+                final int bucketX = quadX & ~CHUNK_BUCKET_MASK;
+                final int bucketY = quadY & ~CHUNK_BUCKET_MASK;
+                for (int i = 0, count = quad.entriesCount; i < count; i++) {
+                    if (quadDistance2(x, y, bucketX + (cells[i] >>> CHUNK_BUCKET_LEVEL), bucketY + (cells[i] & CHUNK_BUCKET_MASK), 1) > maxDistance2) {
+                        continue;
+                    }
+                    //noinspection unchecked
+                    final E entry = (E) entries[i];
+                    if (filter != null && !filter.test(entry)) {
+                        continue;
+                    }
+                    final double entryDistance2 = distance.distance2(entry);
+                    if (distance.isWithin(entry, entryDistance2, maxDistance2)) {
+                        heap.push(entryDistance2, entry, 0, 0, 0);
+                    }
+                }
+            } else {
+                final Quad<E>[] quads = quad.quads;
+                final int subQuadSize = quadSize >> 1;
+                for (int i = 0; i < quads.length; i++) {
+                    final Quad<E> subQuad = quads[i];
+                    if (subQuad != null) {
+                        heap.pushNode(x, y, maxDistance2, subQuad, quadX + ((i >> 1) & 1) * subQuadSize, quadY + (i & 1) * subQuadSize, subQuadSize);
+                    }
+                }
+            }
+        }
+        heap.clear();
+        spareNearestHeap.set(heap);
+        return found;
+    }
+
+    public boolean isEmpty() {
+        return buckets.size() == 0;
+    }
+
+    /** @return amount of non-empty chunk buckets */
+    public int bucketCount() {
+        return buckets.size();
+    }
+
+    /** @return amount of all quad nodes, including the chunk buckets */
+    public int nodeCount() {
+        int nodes = 0;
+        final LongMap<ChunkBucket<E>> buckets = this.buckets;
+        for (int i = 0, capacity = buckets.capacity(); i < capacity; i++) {
+            final ChunkBucket<E> bucket = buckets.valueAt(i);
+            if (bucket != null) {
+                nodes += bucket.nodeCount();
+            }
+        }
+        return nodes;
     }
 
     public void verify() {
-        final int bucketCount = this.bucketCount;
-        final ChunkBucket<E>[] buckets = this.buckets;
+        final ChunkBucket<E>[] buckets = orderedBuckets();
+        final int bucketCount = buckets.length;
+        if (bucketCount != this.buckets.size()) {
+            throw new AssertionError("Bucket count mismatch");
+        }
         for (int i = 0; i < bucketCount; i++) {
             final ChunkBucket<E> bucket = buckets[i];
+            if (bucket.entriesCount <= 0) {
+                throw new AssertionError("Empty bucket");
+            }
+            if (i > 0 && buckets[i - 1].bucketKey >= bucket.bucketKey) {
+                throw new AssertionError("Buckets out of order");
+            }
             final long bucketKey = bucket.bucketKey;
+            if (this.buckets.get(bucketKey) != bucket) {
+                throw new AssertionError("Bucket not indexed");
+            }
             final int bucketMinX = keyX(bucketKey) << CHUNK_BUCKET_LEVEL;
             final int bucketMaxX = bucketMinX + (1 << CHUNK_BUCKET_LEVEL) - 1;
             final int bucketMinY = keyY(bucketKey) << CHUNK_BUCKET_LEVEL;
@@ -143,8 +551,8 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
     @NotNull
     public List<E> toList() {
         final ArrayList<E> result = new ArrayList<>();
-        final int bucketCount = this.bucketCount;
-        final ChunkBucket<E>[] buckets = this.buckets;
+        final ChunkBucket<E>[] buckets = orderedBuckets();
+        final int bucketCount = buckets.length;
         for (int i = 0; i < bucketCount; i++) {
             buckets[i].toList(result);
         }
@@ -154,10 +562,21 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
 
     @SuppressWarnings("unchecked")
     private static class Quad<E extends SpatialDatabase.Entry> {
+        /** Sub-quads of a subdivided quad, null for leaves. */
         Quad<E>[] quads;
-        Object[] entries = new Object[MAX_QUAD_SIZE];
+        /** Entries of a leaf, null for subdivided quads. */
+        Object[] entries = new Object[INITIAL_LEAF_CAPACITY];
+        /** Position of each entry of a leaf inside its chunk bucket (see {@link #cell(int, int)}),
+         * so that leaf scans do not have to touch the entries themselves. Null for subdivided quads. */
+        char[] cells = new char[INITIAL_LEAF_CAPACITY];
+        /** Amount of entries in this leaf, or in all sub-quads of a subdivided quad. */
         int entriesCount = 0;
 
+        /** Pack the position inside of a chunk bucket to 2 * {@link #CHUNK_BUCKET_LEVEL} bits. */
+        static char cell(int x, int y) {
+            return (char) ((x & CHUNK_BUCKET_MASK) << CHUNK_BUCKET_LEVEL | (y & CHUNK_BUCKET_MASK));
+        }
+
         private static int quadIndex(int x, int y, int levelSize) {
             final int quadBit = levelSize >>> 1;
             return (((x & quadBit) == quadBit) ? 0b10 : 0b00) | (((y & quadBit) == quadBit) ? 0b1 : 0b0);
@@ -167,13 +586,15 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
             //noinspection unchecked
             final Quad<E>[] quads = this.quads = new Quad[4];
             final Object[] entries = this.entries;
+            final char[] cells = this.cells;
             final int entriesCount = this.entriesCount;
             this.entries = null;
-            this.entriesCount = -1;
+            this.cells = null;
             for (int i = 0; i < entriesCount; i++) {
                 final E e = (E)entries[i];
-                final int x = e.x();
-                final int y = e.y();
+                // Only the bits inside of the bucket matter
+                final int x = cells[i] >>> CHUNK_BUCKET_LEVEL;
+                final int y = cells[i] & CHUNK_BUCKET_MASK;
 
                 final int quadIndex = quadIndex(x, y, levelSize);
                 Quad<E> quad = quads[quadIndex];
@@ -184,6 +605,48 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
             }
         }
 
+        /** Make this fresh quad contain entries[from, to), which are sorted in {@link #SPATIAL_ORDER}
+         * and lie inside this quad. */
+        final void build(@NotNull Object @NotNull [] entries, int from, int to, int levelSize) {
+            final int count = to - from;
+            this.entriesCount = count;
+            if (count <= MAX_QUAD_SIZE || levelSize <= 1) {
+                final Object[] leafEntries = this.entries = count <= this.entries.length ? this.entries : new Object[count];
+                final char[] cells = this.cells = count <= this.cells.length ? this.cells : new char[count];
+                System.arraycopy(entries, from, leafEntries, 0, count);
+                for (int i = 0; i < count; i++) {
+                    final E entry = (E) leafEntries[i];
+                    cells[i] = cell(entry.x(), entry.y());
+                    entry.leaf = this;
+                    entry.slot = i;
+                }
+                return;
+            }
+
+            // Sorted along the Z-order curve, so the entries of each sub-quad form a contiguous run
+            //noinspection unchecked
+            final Quad<E>[] quads = this.quads = new Quad[4];
+            this.entries = null;
+            this.cells = null;
+            final int subLevelSize = levelSize >>> 1;
+            int runStart = from;
+            while (runStart < to) {
+                final E first = (E) entries[runStart];
+                final int quadIndex = quadIndex(first.x(), first.y(), levelSize);
+                int runEnd = runStart + 1;
+                while (runEnd < to) {
+                    final E entry = (E) entries[runEnd];
+                    if (quadIndex(entry.x(), entry.y(), levelSize) != quadIndex) {
+                        break;
+                    }
+                    runEnd++;
+                }
+                final Quad<E> quad = quads[quadIndex] = new Quad<>();
+                quad.build(entries, runStart, runEnd, subLevelSize);
+                runStart = runEnd;
+            }
+        }
+
         final void insert(int x, int y, int levelSize, @NotNull E entry) {
             Object[] entries = this.entries;
             if (entries != null) {
@@ -196,14 +659,20 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
                 } else {
                     if (entriesCount == entries.length) {
                         entries = this.entries = Arrays.copyOf(entries, entries.length * 2);
+                        this.cells = Arrays.copyOf(this.cells, entries.length);
                     }
                     // Add it to the leaf
-                    entries[this.entriesCount++] = entry;
+                    final int slot = this.entriesCount++;
+                    entries[slot] = entry;
+                    this.cells[slot] = cell(x, y);
+                    entry.leaf = this;
+                    entry.slot = slot;
                     return;
                 }
             }
 
             // This is not a leaf. To which quad does it belong?
+            this.entriesCount++;
             final int quadIndex = quadIndex(x, y, levelSize);
             Quad<E> quad = quads[quadIndex];
             if (quad == null) {
@@ -214,52 +683,189 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
 
         final boolean remove(int x, int y, int levelSize, @NotNull E entry) {
             final Object[] entries = this.entries;
+            final char[] cells = this.cells;
             if (entries != null) {
-                // This is a leaf
-                final int entriesCount = this.entriesCount;
-                if (entriesCount == 0) {
+                // This is a leaf, entry knows where it is
+                final int slot = entry.slot;
+                if (entry.leaf != this || entries[slot] != entry) {
                     return false;
                 }
-                int i = 0;
-                for (; i < entriesCount-1; i++) {
-                    if (entries[i].equals(entry)) {
-                        entries[i] = entries[--this.entriesCount];
-                        entries[this.entriesCount] = null;
-                        return true;
-                    }
-                }
-                if (entries[i].equals(entry)) {
-                    entries[--this.entriesCount] = null;
-                    return true;
+                final int last = --this.entriesCount;
+                if (slot != last) {
+                    final E moved = (E) entries[last];
+                    entries[slot] = moved;
+                    cells[slot] = cells[last];
+                    moved.slot = slot;
                 }
-                // TODO(jp): Join?
-                return false;
+                entries[last] = null;
+                entry.leaf = null;
+                return true;
             }
 
+            final Quad<E>[] quads = this.quads;
             final int quadIndex = quadIndex(x, y, levelSize);
-            Quad<E> quad = quads[quadIndex];
-            if (quad == null) {
+            final Quad<E> quad = quads[quadIndex];
+            if (quad == null || !quad.remove(x, y, levelSize >> 1, entry)) {
                 return false;
             }
-            return quad.remove(x, y, levelSize >> 1, entry);
+
+            if (quad.entriesCount == 0) {
+                quads[quadIndex] = null;
+            }
+            if (--this.entriesCount <= JOIN_QUAD_SIZE) {
+                join();
+            }
+            return true;
+        }
+
+        /** Turn this subdivided quad back into a leaf, which will contain all entries of all sub-quads. */
+        final void join() {
+            final Object[] leafEntries = new Object[Math.max(INITIAL_LEAF_CAPACITY, this.entriesCount)];
+            final char[] leafCells = new char[leafEntries.length];
+            final int entriesCount = collect(leafEntries, leafCells, 0);
+            for (int i = 0; i < entriesCount; i++) {
+                final E entry = (E) leafEntries[i];
+                entry.leaf = this;
+                entry.slot = i;
+            }
+            this.quads = null;
+            this.entries = leafEntries;
+            this.cells = leafCells;
+            this.entriesCount = entriesCount;
+        }
+
+        /** Copy entries and cells of all leaves of this quad into the arrays, starting at offset.
+         * @return offset after the last copied entry */
+        private int collect(Object[] entries, char[] cells, int offset) {
+            final Object[] leafEntries = this.entries;
+            if (leafEntries != null) {
+                final int entriesCount = this.entriesCount;
+                System.arraycopy(leafEntries, 0, entries, offset, entriesCount);
+                System.arraycopy(this.cells, 0, cells, offset, entriesCount);
+                return offset + entriesCount;
+            }
+            for (Quad<E> quad : quads) {
+                if (quad != null) {
+                    offset = quad.collect(entries, cells, offset);
+                }
+            }
+            return offset;
         }
 
-        final void query(int xMin, int xMax, int yMin, int yMax, int quadX, int quadY, int quadSize, Collection<E> out) {
+        final int nodeCount() {
+            int nodes = 1;
+            final Quad<E>[] quads = this.quads;
+            if (quads != null) {
+                for (Quad<E> quad : quads) {
+                    if (quad != null) {
+                        nodes += quad.nodeCount();
+                    }
+                }
+            }
+            return nodes;
+        }
+
+        /** @return false if the visitor stopped early */
+        final boolean query(int xMin, int xMax, int yMin, int yMax, int quadX, int quadY, int quadSize, Visitor<? super E> visitor) {
             final Object[] entries = this.entries;
             if (entries != null) {
-                // This is a leaf
+                // This is a leaf, compare cells relative to the bucket, only touch entries that match
+                final int bucketX = quadX & ~CHUNK_BUCKET_MASK;
+                final int bucketY = quadY & ~CHUNK_BUCKET_MASK;
+                final long cellXMin = (long) xMin - bucketX, cellXMax = (long) xMax - bucketX;
+                final long cellYMin = (long) yMin - bucketY, cellYMax = (long) yMax - bucketY;
+                final char[] cells = this.cells;
+                final int entriesCount = this.entriesCount;
+                for (int i = 0; i < entriesCount; i++) {
+                    final int x = cells[i] >>> CHUNK_BUCKET_LEVEL;
+                    final int y = cells[i] & CHUNK_BUCKET_MASK;
+                    if (x >= cellXMin && x <= cellXMax && y >= cellYMin && y <= cellYMax && !visitor.visit((E) entries[i])) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            final int subQuadSize = quadSize >> 1;
+            final Quad<E>[] quads = this.quads;
+            for (int i = 0; i < quads.length; i++) {
+                final Quad<E> quad = quads[i];
+                if (quad == null)
+                    continue;
+
+                final int subQuadMinX = quadX + ((i >> 1) & 1) * subQuadSize;
+                final int subQuadMaxX = subQuadMinX + subQuadSize;
+                final int subQuadMinY = quadY + (i & 1) * subQuadSize;
+                final int subQuadMaxY = subQuadMinY + subQuadSize;
+                if (!overlaps(subQuadMinX, subQuadMaxX, xMin, xMax) || !overlaps(subQuadMinY, subQuadMaxY, yMin, yMax))
+                    continue;
+
+                if (!quad.query(xMin, xMax, yMin, yMax, subQuadMinX, subQuadMinY, subQuadSize, visitor))
+                    return false;
+            }
+            return true;
+        }
+
+        /** @return false if the visitor stopped early */
+        final boolean query(double x, double y, double maxDistance2, Distance<? super E> distance, int quadX, int quadY, int quadSize, Visitor<? super E> visitor) {
+            if (quadDistance2(x, y, quadX, quadY, quadSize) > maxDistance2) {
+                return true;
+            }
+
+            final Object[] entries = this.entries;
+            if (entries != null) {
+                // Entries whose cell is too far can be skipped without touching them
+                final char[] cells = this.cells;
+                final int bucketX = quadX & ~CHUNK_BUCKET_MASK;
+                final int bucketY = quadY & ~CHUNK_BUCKET_MASK;
                 final int entriesCount = this.entriesCount;
                 for (int i = 0; i < entriesCount; i++) {
+                    if (quadDistance2(x, y, bucketX + (cells[i] >>> CHUNK_BUCKET_LEVEL), bucketY + (cells[i] & CHUNK_BUCKET_MASK), 1) > maxDistance2) {
+                        continue;
+                    }
                     final E entry = (E)entries[i];
-                    final int x = entry.x();
-                    final int y = entry.y();
-                    if (x >= xMin && x <= xMax && y >= yMin && y <= yMax) {
-                        out.add(entry);
+                    if (distance.isWithin(entry, distance.distance2(entry), maxDistance2) && !visitor.visit(entry)) {
+                        return false;
                     }
                 }
-                return;
+                return true;
+            }
+
+            final int subQuadSize = quadSize >> 1;
+            final Quad<E>[] quads = this.quads;
+            for (int i = 0; i < quads.length; i++) {
+                final Quad<E> quad = quads[i];
+                if (quad != null && !quad.query(x, y, maxDistance2, distance, quadX + ((i >> 1) & 1) * subQuadSize, quadY + (i & 1) * subQuadSize, subQuadSize, visitor))
+                    return false;
+            }
+            return true;
+        }
+
+        final int count(int xMin, int xMax, int yMin, int yMax, int quadX, int quadY, int quadSize) {
+            if (xMin <= quadX && quadX + quadSize - 1 <= xMax && yMin <= quadY && quadY + quadSize - 1 <= yMax) {
+                // Whole quad is inside, entriesCount of internal nodes counts the whole subtree
+                return entriesCount;
+            }
+
+            final char[] cells = this.cells;
+            if (cells != null) {
+                final int bucketX = quadX & ~CHUNK_BUCKET_MASK;
+                final int bucketY = quadY & ~CHUNK_BUCKET_MASK;
+                final long cellXMin = (long) xMin - bucketX, cellXMax = (long) xMax - bucketX;
+                final long cellYMin = (long) yMin - bucketY, cellYMax = (long) yMax - bucketY;
+                int count = 0;
+                final int entriesCount = this.entriesCount;
+                for (int i = 0; i < entriesCount; i++) {
+                    final int x = cells[i] >>> CHUNK_BUCKET_LEVEL;
+                    final int y = cells[i] & CHUNK_BUCKET_MASK;
+                    if (x >= cellXMin && x <= cellXMax && y >= cellYMin && y <= cellYMax) {
+                        count++;
+                    }
+                }
+                return count;
             }
 
+            int count = 0;
             final int subQuadSize = quadSize >> 1;
             final Quad<E>[] quads = this.quads;
             for (int i = 0; i < quads.length; i++) {
@@ -274,8 +880,9 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
                 if (!overlaps(subQuadMinX, subQuadMaxX, xMin, xMax) || !overlaps(subQuadMinY, subQuadMaxY, yMin, yMax))
                     continue;
 
-                quad.query(xMin, xMax, yMin, yMax, subQuadMinX, subQuadMinY, subQuadSize, out);
+                count += quad.count(xMin, xMax, yMin, yMax, subQuadMinX, subQuadMinY, subQuadSize);
             }
+            return count;
         }
 
         final void toList(ArrayList<E> out) {
@@ -305,12 +912,16 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
                     final E entry = (E) entries[i];
                     assert entry.x() >= minX && entry.x() <= maxX;
                     assert entry.y() >= minY && entry.y() <= maxY;
+                    if (cells[i] != cell(entry.x(), entry.y())) {
+                        throw new AssertionError("Bad cell");
+                    }
                 }
             } else {
                 final int midX = (minX + maxX + 1) >> 1;
                 final int midY = (minY + maxY + 1) >> 1;
 
                 int notNull = 0;
+                int subEntries = 0;
                 for (int x = 0; x < 2; x++) {
                     for (int y = 0; y < 2; y++) {
                         final Quad<E> quad = quads[(x << 1) | y];
@@ -319,6 +930,10 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
                         }
 
                         notNull++;
+                        subEntries += quad.entriesCount;
+                        if (quad.entriesCount <= 0) {
+                            throw new AssertionError("Empty node");
+                        }
 
                         int newMinX, newMaxX;
                         int newMinY, newMaxY;
@@ -343,10 +958,157 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
                 if (notNull == 0 || notNull > quads.length) {
                     throw new AssertionError("Bad node");
                 }
+                if (subEntries != entriesCount || entriesCount <= JOIN_QUAD_SIZE) {
+                    throw new AssertionError("Bad node entry count");
+                }
             }
         }
     }
 
+    /** @return squared distance between the point and the closest point of the quad */
+    private static double quadDistance2(double x, double y, int quadX, int quadY, int quadSize) {
+        final double dx = x < quadX ? quadX - x : (x > (double) quadX + quadSize ? x - ((double) quadX + quadSize) : 0.0);
+        final double dy = y < quadY ? quadY - y : (y > (double) quadY + quadSize ? y - ((double) quadY + quadSize) : 0.0);
+        return dx * dx + dy * dy;
+    }
+
+    /** Binary min-heap of quads and entries, used by {@link #queryNearest}. */
+    private static final class NearestHeap {
+        double[] distances = new double[32];
+        Object[] items = new Object[32];
+        /** Position and size of quads, size is 0 for entries. */
+        int[] xs = new int[32], ys = new int[32], sizes = new int[32];
+        int size = 0;
+
+        /** Push a quad with a distance of its closest point to the query point, unless it is too far. */
+        void pushNode(double x, double y, double maxDistance2, @NotNull Quad<?> quad, int quadX, int quadY, int quadSize) {
+            final double distance2 = quadDistance2(x, y, quadX, quadY, quadSize);
+            if (distance2 <= maxDistance2) {
+                push(distance2, quad, quadX, quadY, quadSize);
+            }
+        }
+
+        void push(double distance, @NotNull Object item, int x, int y, int size) {
+            if (this.size == distances.length) {
+                final int newLength = this.size * 2;
+                distances = Arrays.copyOf(distances, newLength);
+                items = Arrays.copyOf(items, newLength);
+                xs = Arrays.copyOf(xs, newLength);
+                ys = Arrays.copyOf(ys, newLength);
+                sizes = Arrays.copyOf(sizes, newLength);
+            }
+            int i = this.size++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                move(parent, i);
+                i = parent;
+            }
+            set(i, distance, item, x, y, size);
+        }
+
+        void clear() {
+            Arrays.fill(items, 0, size, null);
+            size = 0;
+        }
+
+        /** Remove the nearest item. Its position and size must be read before this call. */
+        @NotNull
+        Object pop() {
+            final Object top = items[0];
+            final int last = --size;
+            final double distance = distances[last];
+            final Object item = items[last];
+            final int x = xs[last], y = ys[last], itemSize = sizes[last];
+            items[last] = null;
+
+            int i = 0;
+            while (true) {
+                int child = (i << 1) + 1;
+                if (child >= last) {
+                    break;
+                }
+                if (child + 1 < last && distances[child + 1] < distances[child]) {
+                    child++;
+                }
+                if (distance <= distances[child]) {
+                    break;
+                }
+                move(child, i);
+                i = child;
+            }
+            if (last > 0) {
+                set(i, distance, item, x, y, itemSize);
+            }
+            return top;
+        }
+
+        private void move(int from, int to) {
+            set(to, distances[from], items[from], xs[from], ys[from], sizes[from]);
+        }
+
+        private void set(int i, double distance, Object item, int x, int y, int size) {
+            distances[i] = distance;
+            items[i] = item;
+            xs[i] = x;
+            ys[i] = y;
+            sizes[i] = size;
+        }
+    }
+
+    /** Callback for {@link #query(int, int, int, int, Visitor)}. */
+    public interface Visitor<E> {
+        /** @return true to continue visiting, false to stop */
+        boolean visit(@NotNull E entry);
+    }
+
+    /** Metric for {@link #queryNearest} and {@link #query(double, double, double, Distance, Visitor)}. */
+    public interface Distance<E> {
+        /** @return squared distance of the entry from the query point. Coordinates of the entry are somewhere in
+         * [{@link Entry#x()}, {@link Entry#x()} + 1) and [{@link Entry#y()}, {@link Entry#y()} + 1).
+         * The returned distance must not be smaller than the planar squared distance between that area and the query point,
+         * but it may be larger, for example when the metric takes into account a third dimension. */
+        double distance2(@NotNull E entry);
+
+        /** @return whether the entry, whose {@link #distance2(Entry)} is given, is in range of the query.
+         * By default it is when that distance is not greater than the maximum. Metrics whose range has a different shape
+         * may use another measure, as long as it too is not smaller than the planar squared distance. */
+        default boolean isWithin(@NotNull E entry, double distance2, double maxDistance2) {
+            return distance2 <= maxDistance2;
+        }
+    }
+
+    private static final Comparator<ChunkBucket<?>> BUCKET_ORDER = (a, b) -> Long.compare(a.bucketKey, b.bucketKey);
+
+    /** Spread the bits of the position inside of a chunk bucket to the even bits. */
+    private static int spreadCellBits(int v) {
+        v &= CHUNK_BUCKET_MASK;
+        v = (v | (v << 4)) & 0x0F0F;
+        v = (v | (v << 2)) & 0x3333;
+        v = (v | (v << 1)) & 0x5555;
+        return v;
+    }
+
+    /** @return position along the Z-order (Morton) curve inside of a chunk bucket,
+     * x bits are more significant, like in {@link Quad#quadIndex(int, int, int)} */
+    static int mortonCell(int x, int y) {
+        return spreadCellBits(x) << 1 | spreadCellBits(y);
+    }
+
+    /** Order in which the entries are laid out in the tree: by bucket and then along a Z-order curve inside the bucket.
+     * Only depends on {@link Entry#x()} and {@link Entry#y()}. */
+    static final Comparator<Entry> SPATIAL_ORDER = (a, b) -> {
+        final int ax = a.x(), ay = a.y();
+        final int bx = b.x(), by = b.y();
+        final int bucketCmp = Long.compare(key(ax >> CHUNK_BUCKET_LEVEL, ay >> CHUNK_BUCKET_LEVEL), key(bx >> CHUNK_BUCKET_LEVEL, by >> CHUNK_BUCKET_LEVEL));
+        if (bucketCmp != 0) {
+            return bucketCmp;
+        }
+        return Integer.compare(mortonCell(ax, ay), mortonCell(bx, by));
+    };
+
     private static final class ChunkBucket<E extends SpatialDatabase.Entry> extends Quad<E> {
         final long bucketKey;
 
@@ -355,8 +1117,15 @@ final class SpatialDatabase<E extends SpatialDatabase.Entry> {
         }
     }
 
-    public interface Entry {
-        int x();
-        int y();
+    /** Something that can be stored in the {@link SpatialDatabase}.
+     * Entries are always compared by identity and can be stored in at most one database at a time. */
+    public static abstract class Entry {
+        /** Leaf quad in which this entry is stored, null when not stored anywhere. */
+        transient Quad<?> leaf = null;
+        /** Index of this entry in the {@link #leaf}'s entries. */
+        transient int slot = -1;
+
+        public abstract int x();
+        public abstract int y();
     }
 }
@@ -70,6 +70,10 @@ final class Util {
         return NumberConversions.square(soul.locationX - loc.getX()) + NumberConversions.square((soul.locationY - loc.getY()) * yScale) + NumberConversions.square(soul.locationZ - loc.getZ());
     }
 
+    public static double distance2(@NotNull SoulDatabase.Soul soul, double x, double y, double z) {
+        return NumberConversions.square(soul.locationX - x) + NumberConversions.square(soul.locationY - y) + NumberConversions.square(soul.locationZ - z);
+    }
+
     public static boolean isNear(@NotNull Location a, @NotNull Location b, float distance) {
         final World aWorld = getWorld(a);
         final World bWorld = getWorld(b);
@@ -4,21 +4,29 @@ import org.bukkit.configuration.serialization.ConfigurationSerializable;
 import org.bukkit.configuration.serialization.ConfigurationSerialization;
 import org.bukkit.configuration.serialization.SerializableAs;
 import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
-import static com.darkyen.minecraft.Serialization.SerializedType.CONFIGURATION_SERIALIZABLE_BYTE;
-import static com.darkyen.minecraft.Serialization.SerializedType.LIST_BYTE;
-import static com.darkyen.minecraft.Serialization.SerializedType.MAP_BYTE;
+import static com.darkyen.minecraft.Serialization.SerializedType.CONFIGURATION_SERIALIZABLE;
+import static com.darkyen.minecraft.Serialization.SerializedType.LIST;
+import static com.darkyen.minecraft.Serialization.SerializedType.MAP;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -84,6 +92,96 @@ public final class DataChannelTest {
         }
     }
 
+    @Test
+    void mapped() throws IOException {
+        final Path file = Files.createTempFile("data-input-mapped", ".bin");
+        final String string = "Příliš žluťoučký kůň úpěl ďábelské ódy";
+        try (DataOutputChannel out = new DataOutputChannel(Files.newByteChannel(file, StandardOpenOption.WRITE))) {
+            for (int i = 0; i < 100; i++) {
+                out.writeByte(i);
+                out.writeShort(i * 1000);
+                out.writeInt(i * 1000_000);
+                out.writeLong(i * 1000_000_000_000L);
+                out.writeDouble(i / 3.0);
+                out.writeUTF(string);
+            }
+        }
+
+        // Tiny segments, so that values cross their boundaries
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             DataInputMapped in = new DataInputMapped(channel, 4)) {
+            long secondPosition = 0;
+            for (int i = 0; i < 100; i++) {
+                if (i == 1) {
+                    secondPosition = in.position();
+                }
+                assertEquals((byte) i, in.readByte());
+                assertEquals((short) (i * 1000), in.readShort());
+                assertEquals(i * 1000_000, in.readInt());
+                assertEquals(i * 1000_000_000_000L, in.readLong());
+                assertEquals(i / 3.0, in.readDouble());
+                assertEquals(string, in.readUTF());
+            }
+            assertFalse(in.hasRemaining());
+            assertEquals(Files.size(file), in.position());
+            assertThrows(EOFException.class, in::readByte);
+
+            final DataInputMapped duplicate = in.duplicate();
+            duplicate.position(secondPosition);
+            assertEquals(1, duplicate.readByte());
+            assertEquals(1000, duplicate.readShort());
+            assertEquals(Files.size(file), in.position());
+        }
+        Files.delete(file);
+    }
+
+    /** Reads a large file of typical soul data through {@link DataInputChannel} and {@link DataInputMapped}. */
+    @Disabled
+    @Test
+    void benchmarkMapped() throws IOException {
+        final Path file = Files.createTempFile("data-input-benchmark", ".bin");
+        final int records = 4_000_000;
+        try (DataOutputChannel out = new DataOutputChannel(Files.newByteChannel(file, StandardOpenOption.WRITE), 1 << 16)) {
+            for (int i = 0; i < records; i++) {
+                out.writeLong(i);
+                out.writeDouble(i);
+                out.writeInt(i);
+                out.writeUTF("minecraft:diamond_sword");
+                out.writeShort(i);
+            }
+        }
+        System.out.println("File: "+(Files.size(file) >> 20)+" MiB");
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            try (DataInputChannel in = new DataInputChannel(Files.newByteChannel(file, StandardOpenOption.READ))) {
+                benchmarkRead(in, records);
+            }
+            final long channelTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            try (DataInputMapped in = new DataInputMapped(FileChannel.open(file, StandardOpenOption.READ))) {
+                benchmarkRead(in, records);
+            }
+            final long mappedTime = System.nanoTime() - start;
+            System.out.println("Channel: "+(channelTime / 1000_000)+" ms   Mapped: "+(mappedTime / 1000_000)+" ms");
+        }
+        Files.delete(file);
+    }
+
+    private static void benchmarkRead(@NotNull SeekableDataInput in, int records) throws IOException {
+        long sum = 0;
+        for (int i = 0; i < records; i++) {
+            sum += in.readLong();
+            sum += (long) in.readDouble();
+            sum += in.readInt();
+            sum += in.readUTF().length();
+            sum += in.readShort();
+        }
+        assertFalse(in.hasRemaining());
+        assertTrue(sum != 0);
+    }
+
     @Test
     void string() throws IOException {
         final ByteBufferChannel byteChn = new ByteBufferChannel();
@@ -302,13 +400,17 @@ public final class DataChannelTest {
             case PRIMITIVE_FLOAT:
             case PRIMITIVE_DOUBLE:
             case STRING:
+            case STRING_REF:
                 return false;
             case LIST_BYTE:
             case LIST:
+            case LIST_VAR:
             case MAP_BYTE:
             case MAP:
+            case MAP_VAR:
             case CONFIGURATION_SERIALIZABLE_BYTE:
             case CONFIGURATION_SERIALIZABLE:
+            case CONFIGURATION_SERIALIZABLE_VAR:
                 return true;
             default:
                 throw new IllegalArgumentException(type.toString());
@@ -353,9 +455,13 @@ public final class DataChannelTest {
                 }
                 return new String(characters);
             }
+            case STRING_REF:
+                // Short and repeating
+                return "STRING:"+random.nextInt(100);
             case LIST_BYTE:
-            case LIST: {
-                final int length = type == LIST_BYTE ? random.nextInt(256) : 256 + random.nextInt(10);
+            case LIST:
+            case LIST_VAR: {
+                final int length = type != LIST ? random.nextInt(256) : 256 + random.nextInt(10);
                 final ArrayList<Object> resultList = new ArrayList<>(length);
                 for (int i = 0; i < length; i++) {
                     resultList.add(generateObject(branchChance * 0.3f));
@@ -363,8 +469,9 @@ public final class DataChannelTest {
                 return resultList;
             }
             case MAP_BYTE:
-            case MAP: {
-                final int length = type == MAP_BYTE ? random.nextInt(256) : 256 + random.nextInt(10);
+            case MAP:
+            case MAP_VAR: {
+                final int length = type != MAP ? random.nextInt(256) : 256 + random.nextInt(10);
                 final HashMap<String, Object> resultMap = new HashMap<>();
                 for (int i = 0; i < length; i++) {
                     resultMap.put("KEY:"+i, generateObject(branchChance * 0.3f));
@@ -372,8 +479,9 @@ public final class DataChannelTest {
                 return resultMap;
             }
             case CONFIGURATION_SERIALIZABLE_BYTE:
-            case CONFIGURATION_SERIALIZABLE: {
-                final int length = type == CONFIGURATION_SERIALIZABLE_BYTE ? random.nextInt(256) : 256 + random.nextInt(10);
+            case CONFIGURATION_SERIALIZABLE:
+            case CONFIGURATION_SERIALIZABLE_VAR: {
+                final int length = type != CONFIGURATION_SERIALIZABLE ? random.nextInt(256) : 256 + random.nextInt(10);
                 final HashMap<String, Object> resultMap = new HashMap<>();
                 for (int i = 0; i < length; i++) {
                     resultMap.put("KEY:"+i, generateObject(branchChance * 0.3f));
@@ -469,6 +577,51 @@ public final class DataChannelTest {
         }
     }
 
+    @Test
+    void dictionaryObjectTest() throws IOException, Serialization.Exception {
+        final Dictionary dictionary = new Dictionary();
+        final ArrayList<Object> objects = new ArrayList<>();
+        final ByteBufferChannel legacyChn = new ByteBufferChannel();
+        final ByteBufferChannel byteChn = new ByteBufferChannel();
+        try (DataOutputChannel legacyOut = new DataOutputChannel(legacyChn);
+             DataOutputChannel out = new DataOutputChannel(byteChn)) {
+            for (int i = 0; i < 300; i++) {
+                final Object o = generateObject(0.3f);
+                objects.add(o);
+                Serialization.serializeObject(o, legacyOut);
+                Serialization.serializeObject(o, out, dictionary);
+            }
+        }
+        System.out.println("Without dictionary "+legacyChn.size()+" bytes, with dictionary "+byteChn.size()+" bytes");
+
+        // Objects written without the dictionary can be converted to the same form, in a fresh dictionary
+        legacyChn.position(0);
+        final Dictionary transcodedDictionary = new Dictionary();
+        final ByteBufferChannel transcodedChn = new ByteBufferChannel();
+        try (DataInputChannel in = new DataInputChannel(legacyChn);
+             DataOutputChannel out = new DataOutputChannel(transcodedChn)) {
+            for (int i = 0; i < objects.size(); i++) {
+                Serialization.transcodeObject(in, null, out, transcodedDictionary);
+            }
+            assertFalse(in.hasRemaining());
+        }
+        assertEquals(byteChn.size(), transcodedChn.size());
+        assertArrayEquals(Arrays.copyOf(byteChn.array(), (int) byteChn.size()), Arrays.copyOf(transcodedChn.array(), (int) transcodedChn.size()));
+
+        byteChn.position(0);
+        try (DataInputChannel in = new DataInputChannel(byteChn)) {
+            for (Object expected : objects) {
+                final long position = in.position();
+                Serialization.skipObject(in);
+                final long end = in.position();
+                in.position(position);
+                assertDeepEquals(expected, Serialization.deserializeObject(in, dictionary), "");
+                assertEquals(end, in.position());
+            }
+            assertFalse(in.hasRemaining());
+        }
+    }
+
     private static void assertDeepEquals(Object expected, Object received, String prefix) {
         if (expected == received) {
             return;
@@ -2,18 +2,37 @@ package com.darkyen.minecraft;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.inventory.ItemStack;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  *
@@ -23,7 +42,24 @@ public class SoulDatabaseTest {
 	@BeforeAll
 	static void setup() {
 		Bukkit.setServer(new ServerStub() {
-
+			/** Players for the queries of the concurrency tests, which only need to know who they are */
+			@Override
+			public @NotNull OfflinePlayer getOfflinePlayer(@NotNull UUID id) {
+				return (OfflinePlayer) Proxy.newProxyInstance(OfflinePlayer.class.getClassLoader(), new Class<?>[]{OfflinePlayer.class}, (proxy, method, args) -> {
+					switch (method.getName()) {
+						case "getUniqueId":
+							return id;
+						case "hashCode":
+							return id.hashCode();
+						case "equals":
+							return proxy == args[0];
+						case "toString":
+							return "OfflinePlayer " + id;
+						default:
+							throw new UnsupportedOperationException(method.getName());
+					}
+				});
+			}
 		});
 	}
 
@@ -43,24 +79,1171 @@ public class SoulDatabaseTest {
 		final ItemStack[] goodItems = {goodItem1, goodItem2};
 		final SoulDatabase.Soul soul = new SoulDatabase.Soul(UUID.randomUUID(), UUID.randomUUID(), 1.0, 2.0, 3.0, 1234567890L, brokenItems, 98765);
 
+		final Dictionary dictionary = new Dictionary();
 		final ByteBufferChannel byteBufferChannel = new ByteBufferChannel();
 		try (DataOutputChannel channel = new DataOutputChannel(byteBufferChannel)) {
-			Assertions.assertTrue(SoulDatabase.serializeSoul(soul, channel));
+			Assertions.assertTrue(SoulDatabase.serializeSoul(soul, channel, dictionary));
 		}
 		byteBufferChannel.position(0L);
 
-		final SoulDatabase.Soul deserializedSoul = SoulDatabase.deserializeSoul(new DataInputChannel(byteBufferChannel), SoulDatabase.CURRENT_DB_VERSION);
+		final SoulDatabase.Soul deserializedSoul = SoulDatabase.deserializeSoul(new DataInputChannel(byteBufferChannel), SoulDatabase.CURRENT_DB_VERSION, dictionary);
 
-		assertEquals(soul.owner, deserializedSoul.owner);
+		assertEquals(soul.getOwner(), deserializedSoul.getOwner());
 		assertEquals(soul.locationWorld, deserializedSoul.locationWorld);
 		assertEquals(soul.locationX, deserializedSoul.locationX);
 		assertEquals(soul.locationY, deserializedSoul.locationY);
 		assertEquals(soul.locationZ, deserializedSoul.locationZ);
-		assertEquals(soul.xp, deserializedSoul.xp);
+		assertEquals(soul.getExperiencePoints(), deserializedSoul.getExperiencePoints());
 		assertEquals(soul.timestamp, deserializedSoul.timestamp);
-		assertArrayEquals(goodItems, deserializedSoul.items);
+		assertArrayEquals(goodItems, deserializedSoul.getItems());
 
 		assertEquals(byteBufferChannel.size(), byteBufferChannel.position());
 	}
 
+	@Test
+	void lazyItemsTest() throws IOException, Serialization.Exception {
+		final ItemStack[] items = {new ItemStack(Material.DIRT, 5), new ItemStack(Material.COBBLESTONE, 50)};
+		final SoulDatabase.Soul soul = new SoulDatabase.Soul(null, UUID.randomUUID(), 1.0, 2.0, 3.0, 1234567890L, items, 5);
+		final Dictionary dictionary = new Dictionary();
+
+		final ByteBufferChannel original = new ByteBufferChannel();
+		try (DataOutputChannel channel = new DataOutputChannel(original)) {
+			assertTrue(SoulDatabase.serializeSoul(soul, channel, dictionary));
+		}
+		original.position(0L);
+		final SoulDatabase.Soul lazySoul = SoulDatabase.deserializeSoul(new DataInputChannel(original), SoulDatabase.CURRENT_DB_VERSION, dictionary, true);
+		assertEquals(original.size(), original.position());
+		assertTrue(lazySoul.hasItems());
+
+		// Unchanged soul is saved as it was loaded, even after its items are deserialized
+		assertArrayEquals(items, lazySoul.getItems());
+		lazySoul.setExperiencePoints(0);
+		final ByteBufferChannel resaved = new ByteBufferChannel();
+		try (DataOutputChannel channel = new DataOutputChannel(resaved)) {
+			assertTrue(SoulDatabase.serializeSoul(lazySoul, channel, dictionary));
+		}
+		resaved.position(0L);
+		final SoulDatabase.Soul resavedSoul = SoulDatabase.deserializeSoul(new DataInputChannel(resaved), SoulDatabase.CURRENT_DB_VERSION, dictionary, true);
+		assertEquals(0, resavedSoul.getExperiencePoints());
+		assertArrayEquals(items, resavedSoul.getItems());
+
+		lazySoul.setItems(new ItemStack[0]);
+		Assertions.assertFalse(lazySoul.hasItems());
+		resaved.position(0L);
+		try (DataOutputChannel channel = new DataOutputChannel(resaved)) {
+			assertTrue(SoulDatabase.serializeSoul(lazySoul, channel, dictionary));
+			channel.truncate();
+		}
+		resaved.position(0L);
+		Assertions.assertFalse(SoulDatabase.deserializeSoul(new DataInputChannel(resaved), SoulDatabase.CURRENT_DB_VERSION, dictionary, true).hasItems());
+	}
+
+	@Test
+	void worldPartitionTest() {
+		final SoulDatabase db = new SoulDatabase(null, Paths.get("non-existent-soul-db.bin"));
+		final UUID overworld = UUID.randomUUID();
+		final UUID nether = UUID.randomUUID();
+		final ItemStack[] noItems = new ItemStack[0];
+
+		final SoulDatabase.Soul overworldSoul = db.addSoul(null, overworld, 10, 64, 10, noItems, 5);
+		final SoulDatabase.Soul netherSoul = db.addSoul(null, nether, 10, 64, 10, noItems, 5);
+		assertEquals(2, db.spatialWorldCount());
+
+		final ArrayList<SoulDatabase.Soul> found = new ArrayList<>();
+		// Pre-existing content of the collection must be left alone
+		found.add(netherSoul);
+		db.findSouls(overworld, 0, 0, 50, found);
+		assertEquals(Arrays.asList(netherSoul, overworldSoul), found);
+
+		db.removeSoul(netherSoul);
+		assertEquals(1, db.spatialWorldCount());
+		found.clear();
+		db.findSouls(nether, 0, 0, 50, found);
+		assertTrue(found.isEmpty());
+
+		db.removeSoul(overworldSoul);
+		assertEquals(0, db.spatialWorldCount());
+	}
+
+	@Test
+	void nearestColumnTest() {
+		final SoulDatabase db = new SoulDatabase(null, Paths.get("non-existent-soul-db.bin"));
+		final UUID world = UUID.randomUUID();
+		final ItemStack[] noItems = new ItemStack[0];
+
+		final SoulDatabase.Soul near = db.addSoul(null, world, 30, 64, 0, noItems, 5);
+		final SoulDatabase.Soul deepBelow = db.addSoul(null, world, 0, -60, 0, noItems, 5);
+		final SoulDatabase.Soul highAbove = db.addSoul(null, world, 90, 300, 0, noItems, 5);
+		db.addSoul(null, world, 110, 64, 0, noItems, 5);
+
+		// Range is a column, like findSouls, but the order is by distance in all three dimensions
+		final ArrayList<SoulDatabase.Soul> found = new ArrayList<>();
+		assertEquals(3, db.findNearestSouls(world, 0, 64, 0, 16, 100, null, found));
+		assertEquals(Arrays.asList(near, deepBelow, highAbove), found);
+
+		found.clear();
+		assertEquals(1, db.findNearestSouls(world, 0, 64, 0, 1, 100, null, found));
+		assertEquals(Arrays.asList(near), found);
+	}
+
+	@Test
+	void soulIdTest() throws IOException {
+		final Path directory = Files.createTempDirectory("soul-id-test");
+		final SoulDatabase db = new SoulDatabase(null, directory.resolve("soul-db.bin"));
+		final UUID world = UUID.randomUUID();
+		final ItemStack[] noItems = new ItemStack[0];
+
+		final ArrayList<SoulDatabase.Soul> souls = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			final SoulDatabase.Soul soul = db.addSoul(null, world, i, 64, i, noItems, 1);
+			assertEquals(i, soul.id);
+			souls.add(soul);
+		}
+
+		// Vacated IDs are reused, existing IDs never change
+		db.removeSoul(souls.get(3));
+		db.removeSoul(souls.get(7));
+		final HashSet<Integer> reused = new HashSet<>();
+		reused.add(db.addSoul(null, world, 0, 64, 0, noItems, 1).id);
+		reused.add(db.addSoul(null, world, 0, 64, 0, noItems, 1).id);
+		assertEquals(new HashSet<>(Arrays.asList(3, 7)), reused);
+		assertEquals(10, db.addSoul(null, world, 0, 64, 0, noItems, 1).id);
+		assertEquals(5, souls.get(5).id);
+
+		// Free IDs at the end are dropped on save
+		db.removeSoul(souls.get(2));
+		db.removeSoul(souls.get(9));
+		db.removeSoul(db.getSoulsById().get(10));
+		assertTrue(db.save());
+		assertEquals(9, db.getSoulsById().size());
+		assertEquals(2, db.addSoul(null, world, 0, 64, 0, noItems, 1).id);
+		assertEquals(9, db.addSoul(null, world, 0, 64, 0, noItems, 1).id);
+
+		Files.deleteIfExists(directory.resolve("soul-db.bin"));
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void journalTest() throws IOException {
+		final Path directory = Files.createTempDirectory("soul-journal-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final Path journalFile = directory.resolve("soul-db.bin.journal");
+		final UUID world = UUID.randomUUID();
+		final UUID owner = UUID.randomUUID();
+		final ItemStack[] noItems = new ItemStack[0];
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		final ArrayList<SoulDatabase.Soul> souls = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			souls.add(db.addSoul(owner, world, i * 100, 64, i, noItems, i));
+		}
+		assertTrue(db.save());
+		assertTrue(Files.notExists(journalFile));
+
+		// Changes after the snapshot go only to the journal
+		final long snapshotSize = Files.size(databaseFile);
+		db.removeSoul(souls.get(1));
+		souls.get(2).setExperiencePoints(42);
+		db.markDirty(souls.get(2));
+		db.freeSoul(souls.get(3), System.currentTimeMillis(), Long.MAX_VALUE);
+		final SoulDatabase.Soul added = db.addSoul(null, world, -50, 64, -50, noItems, 7);
+		assertEquals(1, added.id);
+		db.autoSave();
+		assertTrue(Files.exists(journalFile));
+
+		// New world and item keys are added to the dictionary in the journal
+		final ItemStack[] items = {new ItemStack(Material.DIRT, 3)};
+		assertEquals(5, db.addSoul(owner, UUID.randomUUID(), 0, 64, 0, items, 9).id);
+		db.removeSoul(souls.get(4));
+		db.autoSave();
+		assertEquals(snapshotSize, Files.size(databaseFile));
+
+		final SoulDatabase loaded = new SoulDatabase(null, databaseFile);
+		final List<SoulDatabase.Soul> loadedSouls = loaded.getSoulsById();
+		assertEquals(db.getSoulsById().size(), loadedSouls.size());
+		for (int id = 0; id < loadedSouls.size(); id++) {
+			final SoulDatabase.Soul expected = db.getSoulsById().get(id);
+			final SoulDatabase.Soul actual = loadedSouls.get(id);
+			if (expected == null) {
+				Assertions.assertNull(actual);
+				continue;
+			}
+			assertEquals(id, actual.id);
+			assertEquals(expected.getOwner(), actual.getOwner());
+			assertEquals(expected.locationWorld, actual.locationWorld);
+			assertEquals(expected.locationX, actual.locationX);
+			assertEquals(expected.getExperiencePoints(), actual.getExperiencePoints());
+			assertArrayEquals(expected.getItems(), actual.getItems());
+		}
+		assertEquals(42, loadedSouls.get(2).getExperiencePoints());
+		Assertions.assertNull(loadedSouls.get(3).getOwner());
+		assertEquals(4, loaded.addSoul(null, world, 0, 64, 0, noItems, 1).id);
+
+		// Full save starts a new journal
+		assertTrue(loaded.save());
+		assertTrue(Files.notExists(journalFile));
+
+		Files.deleteIfExists(journalFile);
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void journalReusedIdTest() throws IOException {
+		final Path directory = Files.createTempDirectory("soul-journal-reuse-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final Path journalFile = directory.resolve("soul-db.bin.journal");
+		final UUID world = UUID.randomUUID();
+		final ItemStack[] noItems = new ItemStack[0];
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		final SoulDatabase.Soul removed = db.addSoul(null, world, 0, 64, 0, noItems, 1);
+		db.addSoul(null, world, 100, 64, 0, noItems, 2);
+		assertTrue(db.save());
+
+		// Removed soul forgets its ID and the next soul gets it
+		db.removeSoul(removed);
+		assertEquals(-1, removed.id);
+		Assertions.assertFalse(db.contains(removed));
+		final SoulDatabase.Soul reused = db.addSoul(null, world, 50, 64, 0, noItems, 3);
+		assertEquals(0, reused.id);
+		db.autoSave();
+
+		// Changing the removed soul, like a plugin which still holds it would, must not touch the new one
+		removed.setExperiencePoints(4);
+		db.markDirty(removed);
+		removed.setItems(new ItemStack[]{new ItemStack(Material.DIRT, 1)});
+		db.markDirty(removed);
+		db.removeSoul(removed);
+		db.autoSave();
+		assertTrue(Files.exists(journalFile));
+
+		// Crash, the snapshot was not written since
+		final SoulDatabase loaded = new SoulDatabase(null, databaseFile);
+		final SoulDatabase.Soul loadedReused = loaded.getSoulById(0);
+		Assertions.assertNotNull(loadedReused);
+		assertEquals(3, loadedReused.getExperiencePoints());
+		assertEquals(2, loaded.getSoulsById().size());
+
+		Files.deleteIfExists(journalFile);
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void concurrentSaveTest() throws Exception {
+		final Path directory = Files.createTempDirectory("soul-concurrent-save-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final Path journalFile = directory.resolve("soul-db.bin.journal");
+		final UUID world = UUID.randomUUID();
+		final UUID owner = UUID.randomUUID();
+		final Random random = new Random(9);
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		final ArrayList<SoulDatabase.Soul> souls = new ArrayList<>();
+		for (int i = 0; i < 3000; i++) {
+			final ItemStack[] items = {new ItemStack(Material.DIRT, 1 + random.nextInt(64))};
+			souls.add(db.addSoul(owner, world, random.nextInt(1000), 64, random.nextInt(1000), items, i));
+		}
+
+		// Souls change while they are being saved
+		final Thread saver = new Thread(() -> {
+			try {
+				for (int i = 0; i < 10; i++) {
+					assertTrue(db.save());
+					db.autoSave();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		saver.start();
+		while (saver.isAlive()) {
+			final SoulDatabase.Soul soul = souls.get(random.nextInt(souls.size()));
+			switch (random.nextInt(4)) {
+				case 0:
+					soul.setExperiencePoints(random.nextInt(1000));
+					db.markDirty(soul);
+					break;
+				case 1:
+					soul.setItems(new ItemStack[]{new ItemStack(Material.COBBLESTONE, 1 + random.nextInt(64))});
+					db.markDirty(soul);
+					break;
+				case 2:
+					db.freeSoul(soul, System.currentTimeMillis(), Long.MAX_VALUE);
+					break;
+				default:
+					db.removeSoul(soul);
+					souls.set(souls.indexOf(soul), db.addSoul(owner, world, random.nextInt(1000), 64, random.nextInt(1000), new ItemStack[0], 1));
+					break;
+			}
+		}
+		saver.join();
+		db.autoSave();
+
+		// Snapshot and journal together have the latest state
+		final SoulDatabase loaded = new SoulDatabase(null, databaseFile);
+		assertEquals(db.getSoulsById().size(), loaded.getSoulsById().size());
+		for (int id = 0; id < db.getSoulsById().size(); id++) {
+			final SoulDatabase.Soul expected = db.getSoulsById().get(id);
+			final SoulDatabase.Soul actual = loaded.getSoulsById().get(id);
+			if (expected == null) {
+				Assertions.assertNull(actual);
+				continue;
+			}
+			assertEquals(expected.getOwner(), actual.getOwner());
+			assertEquals(expected.locationX, actual.locationX);
+			assertEquals(expected.getExperiencePoints(), actual.getExperiencePoints());
+			assertArrayEquals(expected.getItems(), actual.getItems());
+		}
+
+		Files.deleteIfExists(journalFile);
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void incrementalSaveTest() throws IOException {
+		final Path directory = Files.createTempDirectory("soul-incremental-save-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final Path journalFile = directory.resolve("soul-db.bin.journal");
+		final UUID world = UUID.randomUUID();
+		final Random random = new Random(13);
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		final ArrayList<SoulDatabase.Soul> souls = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			final ItemStack[] items = {new ItemStack(Material.DIRT, 1 + random.nextInt(64)), new ItemStack(Material.STONE, 1)};
+			souls.add(db.addSoul(UUID.randomUUID(), world, random.nextInt(1000), 64, random.nextInt(1000), items, i));
+		}
+
+		// New souls have to be serialized once, then their serialized form is reused
+		assertTrue(db.save());
+		SoulDatabase.SaveReport report = Objects.requireNonNull(db.getLastSave());
+		assertTrue(report.snapshot);
+		assertEquals(2000, report.records);
+		assertEquals(2000, report.serializedSouls);
+		assertTrue(db.save());
+		report = Objects.requireNonNull(db.getLastSave());
+		assertEquals(2000, report.records);
+		assertEquals(0, report.serializedSouls);
+
+		// Only changed souls are written and only changed items are serialized
+		souls.get(0).setItems(new ItemStack[]{new ItemStack(Material.COBBLESTONE, 3)});
+		db.markDirty(souls.get(0));
+		souls.get(1).setExperiencePoints(12345);
+		db.markDirty(souls.get(1));
+		souls.get(2).getItems()[0].setAmount(65);
+		db.markItemsDirty(souls.get(2));
+		db.freeSoul(souls.get(3), System.currentTimeMillis(), Long.MAX_VALUE);
+		db.removeSoul(souls.get(4));
+		db.autoSave();
+		report = Objects.requireNonNull(db.getLastSave());
+		Assertions.assertFalse(report.snapshot);
+		assertEquals(5, report.records);
+		// Souls whose items did not change (xp only, freed) keep their serialized items
+		assertEquals(2, report.serializedSouls);
+
+		db.autoSave();
+		assertEquals(report, db.getLastSave());
+
+		// Whole save is done when asked for, but still reuses what was serialized
+		Assertions.assertFalse(db.isDirty());
+		db.markDirty();
+		assertTrue(db.isDirty());
+		db.autoSave();
+		Assertions.assertFalse(db.isDirty());
+		report = Objects.requireNonNull(db.getLastSave());
+		assertTrue(report.snapshot);
+		assertEquals(1999, report.records);
+		assertEquals(0, report.serializedSouls);
+
+		final SoulDatabase loaded = new SoulDatabase(null, databaseFile);
+		assertEquals(db.getSoulsById().size(), loaded.getSoulsById().size());
+		for (int id = 0; id < db.getSoulsById().size(); id++) {
+			final SoulDatabase.Soul expected = db.getSoulsById().get(id);
+			final SoulDatabase.Soul actual = loaded.getSoulsById().get(id);
+			if (expected == null) {
+				Assertions.assertNull(actual);
+				continue;
+			}
+			assertEquals(expected.getOwner(), actual.getOwner());
+			assertEquals(expected.getExperiencePoints(), actual.getExperiencePoints());
+			assertArrayEquals(expected.getItems(), actual.getItems());
+		}
+		assertEquals(65, loaded.getSoulById(souls.get(2).id).getItems()[0].getAmount());
+
+		Files.deleteIfExists(journalFile);
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void dictionaryReclaimTest() throws IOException, Serialization.Exception {
+		final Path directory = Files.createTempDirectory("soul-dictionary-reclaim-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final Path journalFile = directory.resolve("soul-db.bin.journal");
+		final UUID world = UUID.randomUUID();
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		final ArrayList<SoulDatabase.Soul> souls = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			final ItemStack[] items = {new ItemStack(Material.DIRT, 1 + i)};
+			souls.add(db.addSoul(UUID.randomUUID(), world, i, 64, i, items, i));
+		}
+		assertTrue(db.save());
+
+		Dictionary dictionary = new Dictionary();
+		ArrayList<SoulDatabase.Soul> loaded = new ArrayList<>();
+		SoulDatabase.load(databaseFile, dictionary, loaded);
+		assertEquals(101, dictionary.uuids.size());
+		final int strings = dictionary.strings.size();
+
+		// Owners of removed souls are not carried over to the next snapshot
+		for (int i = 0; i < 90; i++) {
+			db.removeSoul(souls.get(i));
+		}
+		assertTrue(db.save());
+		assertEquals(0, Objects.requireNonNull(db.getLastSave()).serializedSouls);
+
+		dictionary = new Dictionary();
+		loaded = new ArrayList<>();
+		SoulDatabase.load(databaseFile, dictionary, loaded);
+		assertEquals(11, dictionary.uuids.size());
+		assertTrue(dictionary.strings.size() <= strings);
+		for (SoulDatabase.Soul soul : loaded) {
+			if (soul == null) continue;
+			assertEquals(soul.getOwner(), db.getSoulById(soul.id).getOwner());
+			assertArrayEquals(db.getSoulById(soul.id).getItems(), soul.getItems());
+		}
+
+		Files.deleteIfExists(journalFile);
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void persistenceServiceTest() throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger saves = new AtomicInteger();
+		final PersistenceService persistence = new PersistenceService("soul-save-test", () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			saves.incrementAndGet();
+		});
+		assertEquals(0, persistence.queueDepth());
+
+		// Requests made while a save is running wait for a single next save
+		assertTrue(persistence.request());
+		started.await();
+		assertTrue(persistence.isSaving());
+		for (int i = 0; i < 5; i++) {
+			assertTrue(persistence.request());
+		}
+		assertEquals(5, persistence.queueDepth());
+		release.countDown();
+		while (persistence.completedSaves() < 2) {
+			Thread.sleep(1);
+		}
+		assertEquals(0, persistence.queueDepth());
+		assertEquals(2, saves.get());
+		assertTrue(persistence.lastLatencyNanos() > 0);
+		assertTrue(persistence.maxLatencyNanos() >= persistence.lastLatencyNanos());
+
+		persistence.stop();
+		Assertions.assertFalse(persistence.request());
+		Assertions.assertFalse(persistence.isSaving());
+		assertEquals(2, saves.get());
+	}
+
+	@Test
+	void backgroundLoadTest() throws IOException, InterruptedException {
+		final Path directory = Files.createTempDirectory("soul-background-load-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final UUID world = UUID.randomUUID();
+		final Random random = new Random(17);
+
+		final SoulDatabase saved = new SoulDatabase(null, databaseFile);
+		for (int i = 0; i < 1000; i++) {
+			final ItemStack[] items = {new ItemStack(Material.DIRT, 1 + random.nextInt(64))};
+			saved.addSoul(null, world, random.nextInt(1000), 64, random.nextInt(1000), items, i);
+		}
+		assertTrue(saved.save());
+
+		// Nothing is visible and nothing is saved until loaded, new souls wait
+		final SoulDatabase db = new SoulDatabase(null, databaseFile, false);
+		Assertions.assertFalse(db.isReady());
+		assertEquals(0.0, db.getLoadProgress());
+		assertEquals(0, db.getSoulsById().size());
+		final ArrayList<SoulDatabase.Soul> found = new ArrayList<>();
+		db.findSouls(world, 500, 500, 1000, found);
+		assertEquals(0, found.size());
+		Assertions.assertFalse(db.save());
+		final SoulDatabase.Soul pending = db.addSoul(null, world, 1, 64, 1, new ItemStack[]{new ItemStack(Material.STONE, 1)}, 5);
+		assertTrue(db.contains(pending));
+		db.removeSoul(db.addSoul(null, world, 2, 64, 2, new ItemStack[0], 0));
+
+		final CountDownLatch loaded = new CountDownLatch(1);
+		db.loadInBackground(null, loaded::countDown);
+		loaded.await();
+		assertTrue(db.isReady());
+		assertEquals(1.0, db.getLoadProgress());
+		assertEquals(1001, db.getSoulsById().size());
+		assertTrue(pending.id >= 0);
+		assertTrue(db.contains(pending));
+		assertTrue(db.getSoulById(pending.id) == pending);
+		db.findSouls(world, 1, 1, 0, found);
+		assertTrue(found.contains(pending));
+		assertTrue(db.close());
+
+		final SoulDatabase reloaded = new SoulDatabase(null, databaseFile);
+		assertEquals(1001, reloaded.getSoulsById().size());
+
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory.resolve("soul-db.bin.journal"));
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void snapshotTest() throws IOException, Serialization.Exception {
+		final Path directory = Files.createTempDirectory("soul-snapshot-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final UUID world = UUID.randomUUID();
+		final Random random = new Random(3);
+
+		// Old version without IDs or record framing
+		final ArrayList<SoulDatabase.Soul> souls = new ArrayList<>();
+		try (DataOutputChannel out = new DataOutputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
+			out.writeInt(1);
+			for (int i = 0; i < 5000; i++) {
+				final ItemStack[] items = {new ItemStack(Material.DIRT, 1 + random.nextInt(64))};
+				final SoulDatabase.Soul soul = new SoulDatabase.Soul(null, world, random.nextInt(10000), 64, random.nextInt(10000), i, items, i);
+				assertTrue(SoulDatabase.serializeSoul(soul, out, null));
+				souls.add(soul);
+			}
+		}
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		assertEquals(souls.size(), db.getSoulsById().size());
+		db.removeSoul(db.getSoulsById().get(10));
+		// Migrates to the current version
+		db.autoSave();
+		try (DataInputChannel in = new DataInputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.READ))) {
+			assertEquals(SoulDatabase.CURRENT_DB_VERSION, in.readInt());
+		}
+
+		// Spans multiple chunks, which are loaded in parallel
+		final ArrayList<SoulDatabase.Soul> loaded = new ArrayList<>();
+		SoulDatabase.load(databaseFile, new Dictionary(), loaded);
+		assertEquals(souls.size() - 1, loaded.size());
+		for (SoulDatabase.Soul soul : loaded) {
+			final SoulDatabase.Soul original = souls.get(soul.id);
+			assertTrue(soul.id != 10);
+			assertEquals(original.locationX, soul.locationX);
+			assertEquals(original.locationZ, soul.locationZ);
+			assertEquals(original.getExperiencePoints(), soul.getExperiencePoints());
+			assertArrayEquals(original.getItems(), soul.getItems());
+		}
+
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void recoveryTest() throws IOException, Serialization.Exception {
+		final Path directory = Files.createTempDirectory("soul-recovery-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final Path quarantineFile = SoulDatabase.quarantineFile(databaseFile);
+		final UUID world = UUID.randomUUID();
+		final Random random = new Random(5);
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		// Each record on its own, compressed blocks are tested in compressionTest
+		db.setCompressionLevel(0);
+		for (int i = 0; i < 5000; i++) {
+			final ItemStack[] items = {new ItemStack(Material.DIRT, 1 + random.nextInt(64))};
+			db.addSoul(null, world, random.nextInt(10000), 64, random.nextInt(10000), items, i);
+		}
+		assertTrue(db.save());
+		final long size = Files.size(databaseFile);
+
+		// Damage in the middle loses only the damaged souls
+		try (DataOutputChannel out = new DataOutputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.WRITE))) {
+			out.position(size / 2);
+			for (int i = 0; i < 16; i++) {
+				out.writeByte(0x55);
+			}
+		}
+		final ArrayList<SoulDatabase.Soul> loaded = new ArrayList<>();
+		final SoulDatabase.Snapshot snapshot = SoulDatabase.load(databaseFile, new Dictionary(), loaded);
+		assertTrue(snapshot.damaged);
+		assertTrue(loaded.size() < 5000);
+		assertTrue(loaded.size() >= 4998);
+		assertTrue(Files.size(quarantineFile) > 16);
+		Files.delete(quarantineFile);
+
+		// Damaged header is skipped and the souls are searched for, the generation is in the trailer as well
+		assertTrue(db.save());
+		final long generation;
+		try (DataInputChannel in = new DataInputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.READ))) {
+			in.position(4);
+			generation = in.readLong();
+		}
+		try (DataOutputChannel out = new DataOutputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.WRITE))) {
+			out.position(20);
+			out.writeLong(-1L);
+		}
+		loaded.clear();
+		final SoulDatabase.Snapshot headerSnapshot = SoulDatabase.load(databaseFile, new Dictionary(), loaded);
+		assertTrue(headerSnapshot.damaged);
+		assertEquals(generation, headerSnapshot.generation);
+		assertEquals(5000, loaded.size());
+		final HashSet<Integer> ids = new HashSet<>();
+		for (SoulDatabase.Soul soul : loaded) {
+			assertTrue(ids.add(soul.id));
+			assertEquals(db.getSoulsById().get(soul.id).timestamp, soul.timestamp);
+		}
+		Files.deleteIfExists(quarantineFile);
+
+		// Damaged dictionary is replaced by its copy
+		assertTrue(db.save());
+		final long dictionaryPosition;
+		try (DataInputChannel in = new DataInputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.READ))) {
+			// Version, generation, soul count, chunk count, chunk positions
+			in.position(20 + 8 * 5);
+			dictionaryPosition = in.readLong();
+		}
+		try (DataOutputChannel out = new DataOutputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.WRITE))) {
+			out.position(dictionaryPosition + 20);
+			out.writeLong(-1L);
+		}
+		loaded.clear();
+		final SoulDatabase.Snapshot dictionarySnapshot = SoulDatabase.load(databaseFile, new Dictionary(), loaded);
+		assertTrue(dictionarySnapshot.damaged);
+		assertEquals(5000, loaded.size());
+		assertTrue(Files.exists(quarantineFile));
+
+		Files.deleteIfExists(quarantineFile);
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void damagedGenerationTest() throws IOException {
+		final Path directory = Files.createTempDirectory("soul-generation-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final Path journalFile = directory.resolve("soul-db.bin.journal");
+		final Path quarantineFile = SoulDatabase.quarantineFile(databaseFile);
+		final UUID world = UUID.randomUUID();
+		final ItemStack[] noItems = new ItemStack[0];
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		final ArrayList<SoulDatabase.Soul> souls = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			souls.add(db.addSoul(null, world, i, 64, i, noItems, i));
+		}
+		assertTrue(db.save());
+		db.removeSoul(souls.get(1));
+		souls.get(2).setExperiencePoints(42);
+		db.markDirty(souls.get(2));
+		db.autoSave();
+
+		// Header and trailer are both damaged, the journal is replayed anyway and its copy is kept
+		final long size = Files.size(databaseFile);
+		try (DataOutputChannel out = new DataOutputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.WRITE))) {
+			out.position(20);
+			out.writeLong(-1L);
+			out.position(size - 8);
+			out.writeLong(-1L);
+		}
+		final SoulDatabase loaded = new SoulDatabase(null, databaseFile);
+		Assertions.assertNull(loaded.getSoulById(1));
+		assertEquals(42, Objects.requireNonNull(loaded.getSoulById(2)).getExperiencePoints());
+		int soulCount = 0;
+		for (SoulDatabase.Soul soul : loaded.getSoulsById()) {
+			if (soul != null) {
+				soulCount++;
+			}
+		}
+		assertEquals(99, soulCount);
+		assertTrue(Files.size(quarantineFile) > Files.size(journalFile));
+
+		Files.deleteIfExists(quarantineFile);
+		Files.deleteIfExists(journalFile);
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void compressionTest() throws IOException, Serialization.Exception {
+		final Path directory = Files.createTempDirectory("soul-compression-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final Path quarantineFile = SoulDatabase.quarantineFile(databaseFile);
+		final UUID world = UUID.randomUUID();
+		final Random random = new Random(6);
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		for (int i = 0; i < 5000; i++) {
+			final ItemStack[] items = {new ItemStack(Material.DIRT, 1 + random.nextInt(64)), new ItemStack(Material.COBBLESTONE, 1)};
+			db.addSoul(null, world, random.nextInt(10000), 64, random.nextInt(10000), items, i);
+		}
+
+		db.setCompressionLevel(0);
+		assertTrue(db.save());
+		final long uncompressedSize = Files.size(databaseFile);
+
+		for (int level : new int[]{1, 9}) {
+			db.setCompressionLevel(level);
+			assertTrue(db.save());
+			assertTrue(Files.size(databaseFile) < uncompressedSize);
+
+			final SoulDatabase loadedDb = new SoulDatabase(null, databaseFile);
+			assertEquals(5000, loadedDb.getSoulsById().size());
+			for (SoulDatabase.Soul soul : loadedDb.getSoulsById()) {
+				final SoulDatabase.Soul original = db.getSoulsById().get(soul.id);
+				assertEquals(original.timestamp, soul.timestamp);
+				assertEquals(original.getExperiencePoints(), soul.getExperiencePoints());
+				assertArrayEquals(original.getItems(), soul.getItems());
+			}
+		}
+
+		// Damaged block loses only its own chunk of souls
+		try (DataOutputChannel out = new DataOutputChannel(Files.newByteChannel(databaseFile, StandardOpenOption.WRITE))) {
+			out.position(Files.size(databaseFile) / 2);
+			for (int i = 0; i < 16; i++) {
+				out.writeByte(0x55);
+			}
+		}
+		final ArrayList<SoulDatabase.Soul> loaded = new ArrayList<>();
+		final SoulDatabase.Snapshot snapshot = SoulDatabase.load(databaseFile, new Dictionary(), loaded);
+		assertTrue(snapshot.damaged);
+		assertTrue(loaded.size() < 5000);
+		assertTrue(loaded.size() >= 5000 - 1024);
+		assertTrue(Files.size(quarantineFile) > 16);
+
+		Files.deleteIfExists(quarantineFile);
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void savePipelineTest() throws IOException, Serialization.Exception {
+		final Path directory = Files.createTempDirectory("soul-pipeline-test");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final UUID world = UUID.randomUUID();
+		final Random random = new Random(8);
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		for (int i = 0; i < 10_000; i++) {
+			final ItemStack[] items = {new ItemStack(Material.DIRT, 1 + random.nextInt(64))};
+			db.addSoul(null, world, random.nextInt(10000), 64, random.nextInt(10000), items, i);
+		}
+
+		byte[] expected = null;
+		for (int threads : new int[]{0, 1, 3}) {
+			for (int depth : new int[]{1, 2, 16}) {
+				db.setSavePipeline(threads, depth);
+				assertTrue(db.save());
+
+				final ArrayList<SoulDatabase.Soul> loaded = new ArrayList<>();
+				assertTrue(!SoulDatabase.load(databaseFile, new Dictionary(), loaded).damaged);
+				assertEquals(10_000, loaded.size());
+				for (int i = 1; i < loaded.size(); i++) {
+					// Chunks are written in order
+					assertTrue(SpatialDatabase.SPATIAL_ORDER.compare(loaded.get(i - 1), loaded.get(i)) <= 0);
+				}
+
+				// Same file, no matter how it was written, except the header and the trailer with the generation
+				final byte[] bytes = Files.readAllBytes(databaseFile);
+				Arrays.fill(bytes, 0, 32 + 10 * 8, (byte) 0);
+				Arrays.fill(bytes, bytes.length - 24, bytes.length, (byte) 0);
+				if (expected == null) {
+					expected = bytes;
+				} else {
+					assertArrayEquals(expected, bytes);
+				}
+			}
+		}
+
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	/** Compares size and speed of db version 1, which writes everything inline, with the current version. */
+	@Disabled
+	@Test
+	void benchmarkFormat() throws IOException, Serialization.Exception {
+		final Path directory = Files.createTempDirectory("soul-format-benchmark");
+		final Path legacyFile = directory.resolve("soul-db-v1.bin");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final UUID[] worlds = {UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID()};
+		final UUID[] owners = new UUID[200];
+		for (int i = 0; i < owners.length; i++) {
+			owners[i] = UUID.randomUUID();
+		}
+		final Material[] materials = {Material.DIRT, Material.COBBLESTONE, Material.DIAMOND_SWORD, Material.AIR};
+		final Random random = new Random(7);
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		for (int i = 0; i < 200_000; i++) {
+			final ItemStack[] items = new ItemStack[random.nextInt(30)];
+			for (int item = 0; item < items.length; item++) {
+				items[item] = new ItemStack(materials[random.nextInt(materials.length)], 1 + random.nextInt(64));
+			}
+			db.addSoul(random.nextInt(4) == 0 ? null : owners[random.nextInt(owners.length)], worlds[random.nextInt(worlds.length)],
+					random.nextInt(100_000), random.nextInt(256), random.nextInt(100_000), items, random.nextInt(1000));
+		}
+
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			try (DataOutputChannel out = new DataOutputChannel(Files.newByteChannel(legacyFile,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), 1 << 16)) {
+				out.writeInt(1);
+				for (SoulDatabase.Soul soul : db.getSoulsById()) {
+					assertTrue(SoulDatabase.serializeSoul(soul, out, null));
+				}
+			}
+			final long legacySave = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			assertTrue(db.save());
+			final long save = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			final ArrayList<SoulDatabase.Soul> legacyLoaded = new ArrayList<>();
+			SoulDatabase.load(legacyFile, new Dictionary(), legacyLoaded);
+			final long legacyLoad = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			final ArrayList<SoulDatabase.Soul> loaded = new ArrayList<>();
+			SoulDatabase.load(databaseFile, new Dictionary(), loaded);
+			final long load = System.nanoTime() - start;
+
+			assertEquals(legacyLoaded.size(), loaded.size());
+			System.out.println("v1: "+(Files.size(legacyFile) >> 10)+" KiB, save "+(legacySave / 1000_000)+" ms, load "+(legacyLoad / 1000_000)+" ms   "
+					+ "v"+SoulDatabase.CURRENT_DB_VERSION+": "+(Files.size(databaseFile) >> 10)+" KiB, save "+(save / 1000_000)+" ms, load "+(load / 1000_000)+" ms");
+		}
+
+		Files.deleteIfExists(legacyFile);
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	/** Compares size and speed of the compression levels. */
+	@Disabled
+	@Test
+	void benchmarkCompression() throws IOException, Serialization.Exception {
+		final Path directory = Files.createTempDirectory("soul-compression-benchmark");
+		final Path databaseFile = directory.resolve("soul-db.bin");
+		final UUID[] worlds = {UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID()};
+		final UUID[] owners = new UUID[200];
+		for (int i = 0; i < owners.length; i++) {
+			owners[i] = UUID.randomUUID();
+		}
+		final Material[] materials = {Material.DIRT, Material.COBBLESTONE, Material.DIAMOND_SWORD, Material.AIR};
+		final Random random = new Random(7);
+
+		final SoulDatabase db = new SoulDatabase(null, databaseFile);
+		for (int i = 0; i < 200_000; i++) {
+			final ItemStack[] items = new ItemStack[random.nextInt(30)];
+			for (int item = 0; item < items.length; item++) {
+				items[item] = new ItemStack(materials[random.nextInt(materials.length)], 1 + random.nextInt(64));
+			}
+			db.addSoul(random.nextInt(4) == 0 ? null : owners[random.nextInt(owners.length)], worlds[random.nextInt(worlds.length)],
+					random.nextInt(100_000), random.nextInt(256), random.nextInt(100_000), items, random.nextInt(1000));
+		}
+
+		for (int round = 0; round < 3; round++) {
+			final StringBuilder result = new StringBuilder();
+			for (int level : new int[]{0, 1, 6, 9}) {
+				db.setCompressionLevel(level);
+				long start = System.nanoTime();
+				assertTrue(db.save());
+				final long save = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				final ArrayList<SoulDatabase.Soul> loaded = new ArrayList<>();
+				SoulDatabase.load(databaseFile, new Dictionary(), loaded);
+				final long load = System.nanoTime() - start;
+
+				assertEquals(db.getSoulsById().size(), loaded.size());
+				result.append("level ").append(level).append(": ").append(Files.size(databaseFile) >> 10).append(" KiB, save ")
+						.append(save / 1000_000).append(" ms, load ").append(load / 1000_000).append(" ms   ");
+			}
+			System.out.println(result);
+		}
+
+		Files.deleteIfExists(databaseFile);
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	void concurrentQueryTest() throws InterruptedException {
+		final SoulDatabase db = new SoulDatabase(null, Paths.get("non-existent-soul-db.bin"));
+		final UUID world = UUID.randomUUID();
+		final UUID stableOwner = UUID.randomUUID();
+		final UUID[] churnOwners = {UUID.randomUUID(), UUID.randomUUID(), null};
+		final ItemStack[] noItems = new ItemStack[0];
+		final Random random = new Random(11);
+
+		// Stable souls are never changed, so every query must find all of them, no matter what else happens
+		final ArrayList<SoulDatabase.Soul> stableSouls = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			stableSouls.add(db.addSoul(stableOwner, world, random.nextDouble() * 100, 64, random.nextDouble() * 100, noItems, 1));
+		}
+		final HashSet<SoulDatabase.Soul> stableSet = new HashSet<>(stableSouls);
+
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final AtomicInteger queries = new AtomicInteger();
+		final Thread[] readers = new Thread[4];
+		for (int r = 0; r < readers.length; r++) {
+			final Random readerRandom = new Random(r);
+			readers[r] = new Thread(() -> {
+				try {
+					// Queries are made like the plugin and its API make them, for players of the server
+					final OfflinePlayer player = Bukkit.getOfflinePlayer(stableOwner);
+					final ArrayList<SoulDatabase.Soul> found = new ArrayList<>();
+					while (writing.get()) {
+						found.clear();
+						db.findSouls(world, 50, 50, 100, found);
+						assertTrue(found.containsAll(stableSet));
+
+						found.clear();
+						db.findNearestSouls(world, 50, 64, 50, 20, 200, soul -> stableOwner.equals(soul.getOwner()), found);
+						assertEquals(20, found.size());
+						assertTrue(stableSet.containsAll(found));
+
+						found.clear();
+						final long now = System.currentTimeMillis();
+						db.findNearestSouls(world, 50, 64, 50, 20, 200, soul -> db.isAccessibleBy(soul, player, now, Long.MAX_VALUE), found);
+						assertEquals(20, found.size());
+						for (SoulDatabase.Soul soul : found) {
+							final UUID owner = soul.getOwner();
+							assertTrue(owner == null || owner.equals(player.getUniqueId()));
+						}
+
+						found.clear();
+						db.findAllSouls(world, found);
+						assertTrue(found.containsAll(stableSet));
+
+						found.clear();
+						db.findSoulsByOwner(stableOwner, world, found);
+						assertEquals(stableSet, new HashSet<>(found));
+
+						final SoulDatabase.Soul stable = stableSouls.get(readerRandom.nextInt(stableSouls.size()));
+						assertEquals(stable, db.getSoulById(stable.id));
+						db.countSouls(world, readerRandom.nextInt(1000), readerRandom.nextInt(1000), 50);
+						queries.incrementAndGet();
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+			});
+			readers[r].start();
+		}
+
+		// Other souls come and go around and among the stable ones
+		final ArrayList<SoulDatabase.Soul> churnSouls = new ArrayList<>();
+		try {
+			for (int i = 0; i < 20000 && failure.get() == null; i++) {
+				final int action = random.nextInt(4);
+				if (action == 0 && !churnSouls.isEmpty()) {
+					db.removeSoul(churnSouls.remove(random.nextInt(churnSouls.size())));
+				} else if (action == 1 && !churnSouls.isEmpty()) {
+					db.freeSoul(churnSouls.get(random.nextInt(churnSouls.size())), System.currentTimeMillis(), Long.MAX_VALUE);
+				} else {
+					churnSouls.add(db.addSoul(churnOwners[random.nextInt(churnOwners.length)], world,
+							random.nextDouble() * 1000, 64, random.nextDouble() * 1000, noItems, 1));
+				}
+				if (i % 1000 == 0) {
+					db.removeFadedSouls(Long.MAX_VALUE);
+					db.freeExpiredSouls(Long.MAX_VALUE);
+				}
+			}
+		} finally {
+			writing.set(false);
+			for (Thread reader : readers) {
+				reader.join();
+			}
+		}
+		if (failure.get() != null) {
+			throw new AssertionError("Concurrent query failed", failure.get());
+		}
+		assertTrue(queries.get() > 0);
+
+		// Indices agree after the dust settles
+		final HashSet<SoulDatabase.Soul> all = new HashSet<>(stableSouls);
+		all.addAll(churnSouls);
+		final ArrayList<SoulDatabase.Soul> found = new ArrayList<>();
+		db.findSouls(world, 500, 500, 1000, found);
+		assertEquals(all, new HashSet<>(found));
+		for (SoulDatabase.Soul soul : all) {
+			assertEquals(soul, db.getSoulById(soul.id));
+		}
+	}
+
+	@Disabled
+	@Test
+	void benchmarkConcurrentQueries() throws InterruptedException {
+		final SoulDatabase db = new SoulDatabase(null, Paths.get("non-existent-soul-db.bin"));
+		final UUID world = UUID.randomUUID();
+		final ItemStack[] noItems = new ItemStack[0];
+		final Random random = new Random(12);
+		for (int i = 0; i < 100000; i++) {
+			db.addSoul(null, world, random.nextDouble() * 20000 - 10000, 64, random.nextDouble() * 20000 - 10000, noItems, 1);
+		}
+
+		for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors() * 2; threads *= 2) {
+			final AtomicBoolean running = new AtomicBoolean(true);
+			final AtomicLong queries = new AtomicLong();
+			final Thread[] readers = new Thread[threads];
+			for (int r = 0; r < threads; r++) {
+				final Random readerRandom = new Random(r);
+				readers[r] = new Thread(() -> {
+					final OfflinePlayer player = Bukkit.getOfflinePlayer(UUID.randomUUID());
+					final ArrayList<SoulDatabase.Soul> found = new ArrayList<>();
+					long count = 0;
+					while (running.get()) {
+						found.clear();
+						final long now = System.currentTimeMillis();
+						db.findNearestSouls(world, readerRandom.nextInt(20000) - 10000, 64, readerRandom.nextInt(20000) - 10000, 10, 500,
+								soul -> db.isAccessibleBy(soul, player, now, Long.MAX_VALUE), found);
+						count++;
+					}
+					queries.addAndGet(count);
+				});
+				readers[r].start();
+			}
+			Thread.sleep(2000);
+			running.set(false);
+			for (Thread reader : readers) {
+				reader.join();
+			}
+			System.out.println(threads+" thread(s): "+(queries.get() / 2)+" nearest queries/s");
+		}
+	}
+
+	@Test
+	void ownerIndexTest() {
+		final SoulDatabase db = new SoulDatabase(null, Paths.get("non-existent-soul-db.bin"));
+		final UUID[] worlds = {UUID.randomUUID(), UUID.randomUUID()};
+		final UUID[] owners = {UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(), null};
+		final ItemStack[] noItems = new ItemStack[0];
+		final Random random = new Random(3);
+		final ArrayList<SoulDatabase.Soul> souls = new ArrayList<>();
+
+		for (int i = 0; i < 2000; i++) {
+			final int action = random.nextInt(4);
+			if (action == 0 && !souls.isEmpty()) {
+				db.removeSoul(souls.remove(random.nextInt(souls.size())));
+			} else if (action == 1 && !souls.isEmpty()) {
+				db.freeSoul(souls.get(random.nextInt(souls.size())), System.currentTimeMillis(), Long.MAX_VALUE);
+			} else {
+				souls.add(db.addSoul(owners[random.nextInt(owners.length)], worlds[random.nextInt(worlds.length)], 0, 64, 0, noItems, 1));
+			}
+
+			if (i % 50 == 0) {
+				for (UUID owner : owners) {
+					for (UUID world : new UUID[]{worlds[0], worlds[1], null}) {
+						final HashSet<SoulDatabase.Soul> correct = new HashSet<>();
+						for (SoulDatabase.Soul soul : souls) {
+							if (Objects.equals(owner, soul.getOwner()) && (world == null || world.equals(soul.locationWorld))) {
+								correct.add(soul);
+							}
+						}
+						final ArrayList<SoulDatabase.Soul> found = new ArrayList<>();
+						db.findSoulsByOwner(owner, world, found);
+						assertEquals(correct.size(), found.size());
+						assertEquals(correct, new HashSet<>(found));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void expiryTest() throws InterruptedException {
+		final SoulDatabase db = new SoulDatabase(null, Paths.get("non-existent-soul-db.bin"));
+		final UUID world = UUID.randomUUID();
+		final UUID owner = UUID.randomUUID();
+		final ItemStack[] noItems = new ItemStack[0];
+
+		final SoulDatabase.Soul old = db.addSoul(owner, world, 0, 64, 0, noItems, 1);
+		final SoulDatabase.Soul oldFree = db.addSoul(null, world, 0, 64, 0, noItems, 1);
+		Thread.sleep(200);
+		final SoulDatabase.Soul young = db.addSoul(owner, world, 0, 64, 0, noItems, 1);
+		final SoulDatabase.Soul removed = db.addSoul(owner, world, 0, 64, 0, noItems, 1);
+		db.removeSoul(removed);
+
+		// Old souls are due, young ones are not
+		final long age = System.currentTimeMillis() - old.timestamp - 100;
+		assertEquals(1, db.freeExpiredSouls(age));
+		assertEquals(null, old.getOwner());
+		assertEquals(owner, young.getOwner());
+		final ArrayList<SoulDatabase.Soul> found = new ArrayList<>();
+		db.findSoulsByOwner(owner, null, found);
+		assertEquals(Arrays.asList(young), found);
+		assertEquals(0, db.freeExpiredSouls(age));
+
+		assertEquals(2, db.removeFadedSouls(age));
+		assertEquals(null, db.getSoulById(old.id));
+		assertEquals(null, db.getSoulById(oldFree.id));
+		assertEquals(young, db.getSoulById(young.id));
+		assertEquals(0, db.removeFadedSouls(age));
+
+		assertEquals(1, db.freeExpiredSouls(0));
+		assertEquals(1, db.removeFadedSouls(0));
+		assertEquals(0, db.removeFadedSouls(0));
+	}
+
+	@Test
+	void cylinderTest() {
+		final SoulDatabase db = new SoulDatabase(null, Paths.get("non-existent-soul-db.bin"));
+		final UUID world = UUID.randomUUID();
+		final ItemStack[] noItems = new ItemStack[0];
+		final Random random = new Random(5);
+		final ArrayList<SoulDatabase.Soul> souls = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			souls.add(db.addSoul(null, world, random.nextDouble() * 2000 - 1000, random.nextDouble() * 384 - 64, random.nextDouble() * 2000 - 1000, noItems, 1));
+		}
+
+		// Corner of the bounding square is not in the cylinder
+		final SoulDatabase.Soul corner = db.addSoul(null, world, 5000 + 70, 64, 5000 + 70, noItems, 1);
+		souls.add(corner);
+		final ArrayList<SoulDatabase.Soul> found = new ArrayList<>();
+		db.findSouls(world, 5000, 5000, 80, found);
+		assertTrue(found.isEmpty());
+
+		for (int i = 0; i < 200; i++) {
+			final int x = random.nextInt(2400) - 1200;
+			final int z = random.nextInt(2400) - 1200;
+			final int radius = random.nextInt(200);
+			final int yMin = random.nextInt(384) - 64;
+			final int yMax = yMin + random.nextInt(100);
+
+			final HashSet<SoulDatabase.Soul> correct = new HashSet<>();
+			for (SoulDatabase.Soul soul : souls) {
+				final double dx = soul.locationX - x;
+				final double dz = soul.locationZ - z;
+				if (dx * dx + dz * dz <= radius * radius && soul.locationY >= yMin && soul.locationY <= yMax) {
+					correct.add(soul);
+				}
+			}
+
+			found.clear();
+			db.findSouls(world, x, z, radius, yMin, yMax, soul -> {
+				found.add(soul);
+				return true;
+			});
+			assertEquals(correct.size(), found.size());
+			assertEquals(correct, new HashSet<>(found));
+		}
+	}
+
 }
@@ -1,14 +1,20 @@
 package com.darkyen.minecraft;
 
+import org.bukkit.util.NumberConversions;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Random;
 import java.util.function.IntToLongFunction;
+import java.util.function.Predicate;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -71,6 +77,43 @@ class SpatialDatabaseTest {
         db.verify();
     }
 
+    @Test
+    void identity() {
+        final SpatialDatabase<SpatialEntry> db = new SpatialDatabase<>();
+        final ArrayList<SpatialEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            // Same position, same label, equals() must never be used
+            final SpatialEntry entry = new SpatialEntry(3, 7, "same") {
+                @Override
+                public boolean equals(Object obj) {
+                    throw new AssertionError("equals() called");
+                }
+
+                @Override
+                public int hashCode() {
+                    throw new AssertionError("hashCode() called");
+                }
+            };
+            entries.add(entry);
+            db.insert(entry);
+        }
+        db.verify();
+
+        final SpatialEntry stranger = new SpatialEntry(3, 7, "same");
+        assertFalse(db.remove(stranger));
+
+        for (int i = entries.size() - 1; i >= 0; i -= 2) {
+            final SpatialEntry entry = entries.remove(i);
+            assertTrue(db.remove(entry));
+            assertFalse(db.remove(entry));
+            db.verify();
+        }
+        for (SpatialEntry entry : entries) {
+            assertTrue(db.remove(entry));
+        }
+        assertEquals(0, db.nodeCount());
+    }
+
     @Test
     void stress() {
         final int mask = (1 << 4)-1;//(1 << 13) - 1;
@@ -128,6 +171,205 @@ class SpatialDatabaseTest {
             assertTrue(db.remove(toRemove));
             assertFalse(db.remove(toRemove));
         }
+        assertEquals(0, db.bucketCount());
+        assertEquals(0, db.nodeCount());
+    }
+
+    @Test
+    void reclaim() {
+        final SpatialDatabase<SpatialEntry> db = new SpatialDatabase<>();
+        final Random random = new Random(42);
+        final ArrayList<SpatialEntry> entries = new ArrayList<>();
+
+        for (int i = 0; i < 20_000; i++) {
+            final SpatialEntry entry = new SpatialEntry(random.nextInt(1000) - 500, random.nextInt(1000) - 500, Integer.toString(i));
+            entries.add(entry);
+            db.insert(entry);
+        }
+        db.verify();
+        final int fullBuckets = db.bucketCount();
+        final int fullNodes = db.nodeCount();
+        assertTrue(fullNodes > fullBuckets);
+
+        // Remove most entries, the tree must shrink
+        while (entries.size() > 50) {
+            assertTrue(db.remove(entries.remove(random.nextInt(entries.size()))));
+        }
+        db.verify();
+        assertTrue(db.bucketCount() <= 50);
+        assertTrue(db.nodeCount() < fullNodes / 10, "Nodes: " + db.nodeCount() + " of " + fullNodes);
+
+        final HashSet<SpatialEntry> remaining = new HashSet<>(db.toList());
+        assertEquals(new HashSet<>(entries), remaining);
+
+        // Remove everything, nothing may remain
+        for (SpatialEntry entry : entries) {
+            assertTrue(db.remove(entry));
+        }
+        db.verify();
+        assertEquals(0, db.bucketCount());
+        assertEquals(0, db.nodeCount());
+        assertTrue(db.toList().isEmpty());
+    }
+
+    @Test
+    void wideQueries() {
+        final SpatialDatabase<SpatialEntry> db = new SpatialDatabase<>();
+        final Random random = new Random(7);
+        final ArrayList<SpatialEntry> backing = new ArrayList<>();
+
+        for (int i = 0; i < 20_000; i++) {
+            if (random.nextInt(4) == 0 && !backing.isEmpty()) {
+                assertTrue(db.remove(backing.remove(random.nextInt(backing.size()))));
+            } else {
+                final SpatialEntry entry = new SpatialEntry(random.nextInt(20_000) - 10_000, random.nextInt(20_000) - 10_000, Integer.toString(i));
+                backing.add(entry);
+                db.insert(entry);
+            }
+
+            if (i % 100 == 0) {
+                db.verify();
+                // Mix of queries that hit the directory directly and through the ordered buckets
+                final int size = random.nextBoolean() ? random.nextInt(200) : random.nextInt(20_000);
+                final int xMin = random.nextInt(20_000) - 10_000;
+                final int yMin = random.nextInt(20_000) - 10_000;
+                final HashSet<SpatialEntry> correct = new HashSet<>();
+                queryArrayList(backing, xMin, xMin + size, yMin, yMin + size, correct);
+                final ArrayList<SpatialEntry> spatial = new ArrayList<>();
+                db.query(xMin, xMin + size, yMin, yMin + size, spatial);
+                assertEquals(correct.size(), spatial.size());
+                assertEquals(correct, new HashSet<>(spatial));
+                assertEquals(correct.size(), db.count(xMin, xMin + size, yMin, yMin + size));
+
+                // Visitor stops right when asked to
+                final int stopAfter = random.nextInt(5);
+                final int[] visited = {0};
+                final boolean completed = db.query(xMin, xMin + size, yMin, yMin + size, entry -> {
+                    assertTrue(correct.contains(entry));
+                    return ++visited[0] <= stopAfter;
+                });
+                assertEquals(correct.size() <= stopAfter, completed);
+                assertEquals(Math.min(correct.size(), stopAfter + 1), visited[0]);
+            }
+        }
+    }
+
+    @Test
+    void nearest() {
+        final SpatialDatabase<SpatialEntry> db = new SpatialDatabase<>();
+        final Random random = new Random(11);
+        final ArrayList<SpatialEntry> backing = new ArrayList<>();
+
+        for (int i = 0; i < 20_000; i++) {
+            final SpatialEntry entry = new SpatialEntry(random.nextInt(4_000) - 2_000, random.nextInt(4_000) - 2_000, Integer.toString(i));
+            backing.add(entry);
+            db.insert(entry);
+        }
+
+        for (int q = 0; q < 500; q++) {
+            final double x = random.nextDouble() * 5_000 - 2_500;
+            final double y = random.nextDouble() * 5_000 - 2_500;
+            final int k = 1 + random.nextInt(40);
+            final double maxDistance2 = random.nextBoolean() ? Double.POSITIVE_INFINITY : NumberConversions.square(random.nextInt(300));
+            final Predicate<SpatialEntry> filter = random.nextBoolean() ? null : e -> (e.x & 3) != 0;
+            // Distance to the center of the cell, which is never closer than the cell itself
+            final SpatialDatabase.Distance<SpatialEntry> distance = e -> NumberConversions.square(e.x + 0.5 - x) + NumberConversions.square(e.y + 0.5 - y);
+
+            final ArrayList<Double> correct = new ArrayList<>();
+            for (SpatialEntry entry : backing) {
+                final double entryDistance2 = distance.distance2(entry);
+                if ((filter == null || filter.test(entry)) && entryDistance2 <= maxDistance2) {
+                    correct.add(entryDistance2);
+                }
+            }
+            correct.sort(null);
+            while (correct.size() > k) {
+                correct.remove(correct.size() - 1);
+            }
+
+            final ArrayList<SpatialEntry> nearest = new ArrayList<>();
+            assertEquals(correct.size(), db.queryNearest(x, y, k, maxDistance2, distance, filter, nearest));
+            final ArrayList<Double> found = new ArrayList<>();
+            for (SpatialEntry entry : nearest) {
+                assertTrue(filter == null || filter.test(entry));
+                found.add(distance.distance2(entry));
+            }
+            assertEquals(correct, found);
+        }
+    }
+
+    @Test
+    void insertAll() {
+        final Random random = new Random(13);
+        final SpatialEntry[] entries = new SpatialEntry[50_000];
+        for (int i = 0; i < entries.length; i++) {
+            // Dense clusters to get deep trees and full single cell leaves
+            final int size = random.nextInt(3) == 0 ? 4 : 3_000;
+            entries[i] = new SpatialEntry(random.nextInt(size) - size / 2, random.nextInt(size) - size / 2, Integer.toString(i));
+        }
+        final ArrayList<SpatialEntry> backing = new ArrayList<>(Arrays.asList(entries));
+
+        final SpatialDatabase<SpatialEntry> db = new SpatialDatabase<>();
+        db.insertAll(entries);
+        db.verify();
+        assertEquals(new HashSet<>(backing), new HashSet<>(db.toList()));
+
+        // Tree is laid out in the spatial order
+        final ArrayList<SpatialEntry> sorted = new ArrayList<>(backing);
+        sorted.sort(SpatialDatabase.SPATIAL_ORDER);
+        final ArrayList<SpatialEntry> listed = new ArrayList<>(db.toList());
+        for (int i = 0; i < sorted.size(); i++) {
+            assertEquals(0, SpatialDatabase.SPATIAL_ORDER.compare(sorted.get(i), listed.get(i)));
+        }
+
+        // It behaves as usual afterwards
+        for (int i = 0; i < 1000; i++) {
+            final int x = random.nextInt(3_000) - 1_500;
+            final int y = random.nextInt(3_000) - 1_500;
+            final HashSet<SpatialEntry> correct = new HashSet<>();
+            queryArrayList(backing, x, x + 100, y, y + 100, correct);
+            final ArrayList<SpatialEntry> spatial = new ArrayList<>();
+            db.query(x, x + 100, y, y + 100, spatial);
+            assertEquals(correct, new HashSet<>(spatial));
+
+            assertTrue(db.remove(backing.remove(random.nextInt(backing.size()))));
+            final SpatialEntry added = new SpatialEntry(x, y, "added " + i);
+            backing.add(added);
+            db.insert(added);
+        }
+        db.verify();
+        for (SpatialEntry entry : backing) {
+            assertTrue(db.remove(entry));
+        }
+        assertTrue(db.isEmpty());
+    }
+
+    @Test
+    void longMap() {
+        final LongMap<String> map = new LongMap<>();
+        final HashMap<Long, String> correct = new HashMap<>();
+        final Random random = new Random(3);
+        for (int i = 0; i < 100_000; i++) {
+            // Small key space to get a lot of collisions and removals
+            final long key = random.nextInt(5000) * 0x1_0000_0000L + random.nextInt(20);
+            if (random.nextInt(3) == 0) {
+                assertEquals(correct.remove(key), map.remove(key));
+            } else {
+                final String value = Integer.toString(i);
+                assertEquals(correct.put(key, value), map.put(key, value));
+            }
+            assertEquals(correct.size(), map.size());
+        }
+        for (Map.Entry<Long, String> entry : correct.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        int found = 0;
+        for (int i = 0; i < map.capacity(); i++) {
+            if (map.valueAt(i) != null) {
+                found++;
+            }
+        }
+        assertEquals(correct.size(), found);
     }
 
     private int benchmarkArrayList(long seed, int iterations, int mask) {
@@ -208,7 +450,220 @@ class SpatialDatabaseTest {
         measure("SpatialDatabase", i -> benchmarkSpatialDatabase(i, 200, BENCHMARK_MASK));
     }
 
-    private static class SpatialEntry implements SpatialDatabase.Entry, Comparable<SpatialEntry> {
+    /** The bucket directory as it was before {@link LongMap}: a sorted array with binary search. */
+    private static long benchmarkSortedBucketArray(long[] bucketKeys) {
+        long[] keys = new long[16];
+        Object[] buckets = new Object[16];
+        int count = 0;
+        for (long key : bucketKeys) {
+            int index = Arrays.binarySearch(keys, 0, count, key);
+            if (index < 0) {
+                index = -index - 1;
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                    buckets = Arrays.copyOf(buckets, count * 2);
+                }
+                System.arraycopy(keys, index, keys, index + 1, count - index);
+                System.arraycopy(buckets, index, buckets, index + 1, count - index);
+                keys[index] = key;
+                buckets[index] = key;
+                count++;
+            }
+        }
+        long found = 0;
+        for (long key : bucketKeys) {
+            found += Arrays.binarySearch(keys, 0, count, key) >= 0 ? 1 : 0;
+        }
+        return found;
+    }
+
+    private static long benchmarkBucketLongMap(long[] bucketKeys) {
+        final LongMap<Object> map = new LongMap<>();
+        for (long key : bucketKeys) {
+            if (map.get(key) == null) {
+                map.put(key, key);
+            }
+        }
+        long found = 0;
+        for (long key : bucketKeys) {
+            found += map.get(key) != null ? 1 : 0;
+        }
+        return found;
+    }
+
+    @Disabled
+    @Test
+    void benchmarkBucketDirectory() {
+        for (int buckets : new int[]{10_000, 100_000, 1_000_000}) {
+            // Buckets in random order, as when loading souls ordered by ID
+            final Random random = new Random(buckets);
+            final long[] keys = new long[buckets];
+            final int side = (int) Math.ceil(Math.sqrt(buckets));
+            for (int i = 0; i < buckets; i++) {
+                keys[i] = SpatialDatabase.key(i % side - side / 2, i / side - side / 2);
+            }
+            for (int i = buckets - 1; i > 0; i--) {
+                final int j = random.nextInt(i + 1);
+                final long tmp = keys[i];
+                keys[i] = keys[j];
+                keys[j] = tmp;
+            }
+
+            final int iterations = Math.max(1, 1_000_000 / buckets);
+            for (int i = 0; i < iterations; i++) {
+                benchmarkSortedBucketArray(keys);
+                benchmarkBucketLongMap(keys);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                assertEquals(buckets, benchmarkSortedBucketArray(keys));
+            }
+            final long sorted = (System.nanoTime() - start) / iterations;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                assertEquals(buckets, benchmarkBucketLongMap(keys));
+            }
+            final long hashed = (System.nanoTime() - start) / iterations;
+            System.out.println(buckets + " buckets: sorted array " + (sorted / 1000) + "us, LongMap " + (hashed / 1000) + "us");
+        }
+    }
+
+    @Disabled
+    @Test
+    void benchmarkQueryAllocation() {
+        final SpatialDatabase<SpatialEntry> db = new SpatialDatabase<>();
+        final Random random = new Random(3);
+        for (int i = 0; i < 100_000; i++) {
+            db.insert(new SpatialEntry(random.nextInt(10_000), random.nextInt(10_000), Integer.toString(i)));
+        }
+
+        final ArrayList<SpatialEntry> list = new ArrayList<>();
+        final int[] visited = {0};
+        final SpatialDatabase.Visitor<SpatialEntry> visitor = entry -> {
+            visited[0]++;
+            return true;
+        };
+        final SpatialDatabase.Visitor<SpatialEntry> first = entry -> false;
+
+        measureAllocation("Collection", i -> {
+            final ArrayList<SpatialEntry> out = new ArrayList<>();
+            db.query(i % 9_000, i % 9_000 + 200, i % 8_000, i % 8_000 + 200, out);
+            return out.size();
+        });
+        measureAllocation("Collection (reused)", i -> {
+            list.clear();
+            db.query(i % 9_000, i % 9_000 + 200, i % 8_000, i % 8_000 + 200, list);
+            return list.size();
+        });
+        measureAllocation("Visitor", i -> {
+            visited[0] = 0;
+            db.query(i % 9_000, i % 9_000 + 200, i % 8_000, i % 8_000 + 200, visitor);
+            return visited[0];
+        });
+        measureAllocation("Visitor (first)", i -> db.query(i % 9_000, i % 9_000 + 200, i % 8_000, i % 8_000 + 200, first) ? 0 : 1);
+        measureAllocation("Count", i -> db.count(i % 9_000, i % 9_000 + 200, i % 8_000, i % 8_000 + 200));
+    }
+
+    @Disabled
+    @Test
+    void benchmarkMillionEntries() {
+        final Random random = new Random(17);
+        final SpatialEntry[] entries = new SpatialEntry[1_000_000];
+        for (int i = 0; i < entries.length; i++) {
+            // Clustered, like souls around spawns and bases
+            final int cluster = random.nextInt(1000);
+            final int clusterX = (cluster * 7919) % 20_000 - 10_000;
+            final int clusterY = (cluster * 104_729) % 20_000 - 10_000;
+            entries[i] = new SpatialEntry(clusterX + (int) (random.nextGaussian() * 200), clusterY + (int) (random.nextGaussian() * 200), "");
+        }
+
+        final long heapBefore = usedHeap();
+        final SpatialDatabase<SpatialEntry> db = new SpatialDatabase<>();
+        for (SpatialEntry entry : entries) {
+            db.insert(entry);
+        }
+        final long heapAfter = usedHeap();
+        System.out.println("Index heap: " + ((heapAfter - heapBefore) / 1024) + " KiB, " + db.nodeCount() + " nodes");
+
+        final int[] visited = {0};
+        final SpatialDatabase.Visitor<SpatialEntry> visitor = entry -> {
+            visited[0]++;
+            return true;
+        };
+        measure("Query", i -> {
+            final SpatialEntry center = entries[i * 31 % entries.length];
+            visited[0] = 0;
+            db.query(center.x - 50, center.x + 50, center.y - 50, center.y + 50, visitor);
+            return visited[0];
+        });
+    }
+
+    @Disabled
+    @Test
+    void benchmarkInsertAll() {
+        final Random random = new Random(19);
+        final SpatialEntry[] entries = new SpatialEntry[1_000_000];
+        for (int i = 0; i < entries.length; i++) {
+            final int cluster = random.nextInt(1000);
+            final int clusterX = (cluster * 7919) % 20_000 - 10_000;
+            final int clusterY = (cluster * 104_729) % 20_000 - 10_000;
+            entries[i] = new SpatialEntry(clusterX + (int) (random.nextGaussian() * 200), clusterY + (int) (random.nextGaussian() * 200), "");
+        }
+        final SpatialEntry[] sorted = entries.clone();
+        Arrays.sort(sorted, SpatialDatabase.SPATIAL_ORDER);
+
+        for (int round = 0; round < 8; round++) {
+            for (SpatialEntry[] order : new SpatialEntry[][]{entries, sorted}) {
+                long start = System.nanoTime();
+                final SpatialDatabase<SpatialEntry> incremental = new SpatialDatabase<>();
+                for (SpatialEntry entry : order) {
+                    incremental.insert(entry);
+                }
+                final long insertTime = System.nanoTime() - start;
+                for (SpatialEntry entry : order) {
+                    entry.leaf = null;
+                }
+
+                final SpatialEntry[] bulk = order.clone();
+                start = System.nanoTime();
+                new SpatialDatabase<SpatialEntry>().insertAll(bulk);
+                final long insertAllTime = System.nanoTime() - start;
+                for (SpatialEntry entry : order) {
+                    entry.leaf = null;
+                }
+
+                System.out.println((order == entries ? "random order" : "spatial order") + ": insert " + (insertTime / 1_000_000) + "ms, insertAll " + (insertAllTime / 1_000_000) + "ms");
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void measureAllocation(String label, IntToLongFunction runnable) {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final int iterations = 100_000;
+        for (int i = 0; i < iterations; i++) {
+            runnable.applyAsLong(i);
+        }
+        final long startBytes = threads.getThreadAllocatedBytes(thread);
+        final long start = System.nanoTime();
+        long result = 0;
+        for (int i = 0; i < iterations; i++) {
+            result += runnable.applyAsLong(i);
+        }
+        final long total = System.nanoTime() - start;
+        final long bytes = threads.getThreadAllocatedBytes(thread) - startBytes;
+        System.out.println(label+": "+(total / iterations)+"ns   "+(bytes / iterations)+"B/query   "+result);
+    }
+
+    private static class SpatialEntry extends SpatialDatabase.Entry implements Comparable<SpatialEntry> {
 
         final int x, y;
         final String label;